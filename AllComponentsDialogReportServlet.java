@@ -1,6 +1,7 @@
 package com.invest.saudi.core.servlets;
 
 
+import com.aem.mcp.server.ServerTiming;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
@@ -32,6 +33,11 @@ import java.util.Iterator;
  *
  * How to access:
  * http://localhost:4502/bin/report?searchPath=/apps/mysite/components
+ *
+ * The response carries a Server-Timing header with the phases query (finding the components),
+ * iterate (walking the results), fetch (loading and reading each dialog) and serialize. A
+ * traceparent header is passed on to the dialog requests, with the caller's trace id and a new
+ * span id for each.
  */
 @Component(service = { Servlet.class }, scope = ServiceScope.PROTOTYPE)
 @SlingServletPaths(
@@ -43,6 +49,12 @@ public class AllComponentsDialogReportServlet extends SlingSafeMethodsServlet {
 
     @Override
     protected void doGet(final SlingHttpServletRequest req, final SlingHttpServletResponse resp) throws ServletException, IOException {
+        try (ServerTiming timing = ServerTiming.start(req)) {
+            report(req, resp, timing);
+        }
+    }
+
+    private void report(final SlingHttpServletRequest req, final SlingHttpServletResponse resp, final ServerTiming timing) throws IOException {
         // Set content type to JSON for the final output.
         resp.setContentType("application/json");
         resp.setCharacterEncoding("UTF-8");
@@ -60,6 +72,8 @@ public class AllComponentsDialogReportServlet extends SlingSafeMethodsServlet {
         // JCR-SQL2 query to find all components under the search path.
         final String query = "SELECT * FROM [cq:Component] AS s WHERE ISDESCENDANTNODE(s, '" + searchPath + "')";
         Iterator<Resource> components = resolver.findResources(query, Query.JCR_SQL2);
+        timing.lap("query");
+        long fetchNanos = 0;
 
         while (components.hasNext()) {
             Resource component = components.next();
@@ -67,7 +81,9 @@ public class AllComponentsDialogReportServlet extends SlingSafeMethodsServlet {
             String componentName = component.getName();
 
             // Get the dialog JSON for the current component.
-            JSONObject dialogJson = getDialogForComponent(componentPath, req);
+            long fetchStart = System.nanoTime();
+            JSONObject dialogJson = getDialogForComponent(componentPath, req, timing);
+            fetchNanos += System.nanoTime() - fetchStart;
 
             // Only add components that have a valid dialog report (not an error object).
             if (dialogJson != null && !dialogJson.has("error")) {
@@ -79,17 +95,24 @@ public class AllComponentsDialogReportServlet extends SlingSafeMethodsServlet {
             }
         }
 
+        timing.lap("fetch", fetchNanos, "iterate");
+
         finalResponse.put("components", componentsArray);
-        resp.getWriter().write(finalResponse.toString(4)); // Pretty print with an indent of 4
+        String body = finalResponse.toString(4); // Pretty print with an indent of 4
+        timing.lap("serialize");
+        timing.apply(resp);
+        resp.getWriter().write(body);
     }
 
     /**
      * Fetches and parses the dialog for a single component.
      * @param componentPath The path of the component.
      * @param req The SlingHttpServletRequest to construct the fetch URL.
+     * @param timing The request's timing, which supplies the traceparent for the fetch.
      * @return A JSONObject representing the parsed dialog, or null if not found or an error occurs.
      */
-    private JSONObject getDialogForComponent(String componentPath, SlingHttpServletRequest req) {
+    private JSONObject getDialogForComponent(String componentPath, SlingHttpServletRequest req,
+                                             ServerTiming timing) {
         JSONObject componentReport = new JSONObject();
         String dialogJsonUrl = req.getScheme() + "://" + req.getServerName() + ":" + req.getServerPort()
                 + "/mnt/override/" + componentPath.replaceFirst("^/", "") + "/_cq_dialog.-1.json";
@@ -104,6 +127,10 @@ public class AllComponentsDialogReportServlet extends SlingSafeMethodsServlet {
             String password = "admin";
             String encodedAuth = Base64.getEncoder().encodeToString((username + ":" + password).getBytes("UTF-8"));
             conn.setRequestProperty("Authorization", "Basic " + encodedAuth);
+            String traceparent = timing.traceparent();
+            if (traceparent != null) {
+                conn.setRequestProperty(ServerTiming.TRACE_HEADER, traceparent);
+            }
 
             if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
                 InputStream is = conn.getInputStream();
@@ -0,0 +1,307 @@
+package com.aem.mcp.client;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.core5.concurrent.Cancellable;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared HTTP transport for calls from the client to AEM.
+ *
+ * Connections are kept alive in a bounded pool so that repeated questions reuse the same
+ * TCP connection instead of paying a connect and auth handshake per request. Response
+ * bodies are handed to the caller as a byte stream and are never buffered here.
+ *
+ * With aem.http.http2=true requests are multiplexed over HTTP/2 using the async client and its
+ * own connection pool, with the same limits and timeouts; the classic pool is not created.
+ * That path receives the whole body before invoking the handler. Both paths ask for gzip and
+ * hand the handler the decoded body; the classic client does so on its own.
+ */
+@Component
+public class AemHttpTransport {
+
+    private final String baseUrl;
+    private final String authHeader;
+    private final boolean http2;
+    private final long readTimeoutMs;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final PoolingAsyncClientConnectionManager h2ConnectionManager;
+    private final CloseableHttpAsyncClient h2Client;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public AemHttpTransport(@Value("${aem.base-url:http://localhost:4502}") String baseUrl,
+                            @Value("${aem.user:admin}") String user,
+                            @Value("${aem.password:admin}") String password,
+                            @Value("${aem.http.max-total:50}") int maxTotal,
+                            @Value("${aem.http.max-per-route:20}") int maxPerRoute,
+                            @Value("${aem.http.connect-timeout-ms:2000}") long connectTimeoutMs,
+                            @Value("${aem.http.read-timeout-ms:30000}") long readTimeoutMs,
+                            @Value("${aem.http.keep-alive-ms:30000}") long keepAliveMs,
+                            @Value("${aem.http.http2:false}") boolean http2) {
+        this.baseUrl = baseUrl.replaceFirst("/+$", "");
+        this.authHeader = "Basic " + Base64.getEncoder()
+                .encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+        this.http2 = http2;
+        this.readTimeoutMs = readTimeoutMs;
+
+        ConnectionConfig connectionConfig = ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                .setSocketTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                .setValidateAfterInactivity(TimeValue.ofSeconds(2))
+                .build();
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                .setResponseTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                .build();
+
+        if (http2) {
+            this.connectionManager = null;
+            this.httpClient = null;
+            this.h2ConnectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                    .setMaxConnTotal(maxTotal)
+                    .setMaxConnPerRoute(maxPerRoute)
+                    .setDefaultConnectionConfig(connectionConfig)
+                    .setDefaultTlsConfig(TlsConfig.custom()
+                            .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+                            .build())
+                    .build();
+            this.h2Client = HttpAsyncClients.custom()
+                    .setConnectionManager(h2ConnectionManager)
+                    .setH2Config(H2Config.custom().setPushEnabled(false).build())
+                    .setDefaultRequestConfig(requestConfig)
+                    .setKeepAliveStrategy((response, context) -> TimeValue.ofMilliseconds(keepAliveMs))
+                    .evictIdleConnections(TimeValue.ofMilliseconds(keepAliveMs))
+                    .build();
+            this.h2Client.start();
+        } else {
+            this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                    .setMaxConnTotal(maxTotal)
+                    .setMaxConnPerRoute(maxPerRoute)
+                    .setDefaultConnectionConfig(connectionConfig)
+                    .build();
+            this.httpClient = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setKeepAliveStrategy((response, context) -> TimeValue.ofMilliseconds(keepAliveMs))
+                    .evictIdleConnections(TimeValue.ofMilliseconds(keepAliveMs))
+                    .build();
+            this.h2ConnectionManager = null;
+            this.h2Client = null;
+        }
+    }
+
+    /**
+     * Receives the status, headers and body stream of an AEM response. The stream is closed
+     * and the connection returned to the pool once the handler returns.
+     */
+    @FunctionalInterface
+    public interface BodyHandler<T> {
+        T handle(Response response) throws IOException;
+    }
+
+    public static final class Response {
+        private final int status;
+        private final Map<String, String> headers;
+        private final InputStream body;
+
+        Response(int status, Map<String, String> headers, InputStream body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+    }
+
+    public <T> T post(String path, String contentType, byte[] body, BodyHandler<T> handler) throws IOException {
+        return post(path, Collections.emptyMap(), contentType, body, handler);
+    }
+
+    public <T> T post(String path, Map<String, String> headers, String contentType, byte[] body,
+                      BodyHandler<T> handler) throws IOException {
+        return execute("POST", path, headers, contentType, body, handler);
+    }
+
+    public <T> T get(String path, BodyHandler<T> handler) throws IOException {
+        return execute("GET", path, Collections.emptyMap(), null, null, handler);
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    private <T> T execute(String method, String path, Map<String, String> headers, String contentType,
+                          byte[] body, BodyHandler<T> handler) throws IOException {
+        return execute(baseUrl, method, path, headers, contentType, body, null, handler);
+    }
+
+    /**
+     * Sends a request to the given AEM instance instead of aem.base-url. When a hook is given it
+     * receives a handle to abort the request before the request is sent, so a caller racing
+     * several instances can cancel the ones it no longer needs.
+     */
+    public <T> T execute(String instanceUrl, String method, String path, Map<String, String> headers,
+                         String contentType, byte[] body, Consumer<Cancellable> cancelHook,
+                         BodyHandler<T> handler) throws IOException {
+        requests.incrementAndGet();
+        String url = instanceUrl.replaceFirst("/+$", "") + path;
+        try {
+            return http2
+                    ? executeHttp2(method, url, headers, contentType, body, cancelHook, handler)
+                    : executeClassic(method, url, headers, contentType, body, cancelHook, handler);
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private <T> T executeClassic(String method, String url, Map<String, String> headers, String contentType,
+                                 byte[] body, Consumer<Cancellable> cancelHook, BodyHandler<T> handler)
+            throws IOException {
+        HttpUriRequestBase request = new HttpUriRequestBase(method, URI.create(url));
+        request.addHeader("Authorization", authHeader);
+        headers.forEach(request::addHeader);
+        if (body != null) {
+            request.setEntity(new ByteArrayEntity(body, ContentType.parse(contentType)));
+        }
+        if (cancelHook != null) {
+            cancelHook.accept(request);
+        }
+
+        return httpClient.execute(request, response -> {
+            HttpEntity entity = response.getEntity();
+            try (InputStream in = entity != null ? entity.getContent() : InputStream.nullInputStream()) {
+                return handler.handle(new Response(response.getCode(), headerMap(response.getHeaders()), in));
+            }
+        });
+    }
+
+    private <T> T executeHttp2(String method, String url, Map<String, String> headers, String contentType,
+                               byte[] body, Consumer<Cancellable> cancelHook, BodyHandler<T> handler)
+            throws IOException {
+        SimpleRequestBuilder builder = SimpleRequestBuilder.create(method)
+                .setUri(url)
+                .addHeader("Authorization", authHeader)
+                .addHeader("Accept-Encoding", "gzip");
+        headers.forEach(builder::addHeader);
+        if (body != null) {
+            builder.setBody(body, ContentType.parse(contentType));
+        }
+        SimpleHttpRequest request = builder.build();
+
+        SimpleHttpResponse response;
+        try {
+            Future<SimpleHttpResponse> future = h2Client.execute(request, null);
+            if (cancelHook != null) {
+                cancelHook.accept(() -> future.cancel(true));
+            }
+            response = future.get(readTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for AEM", e);
+        } catch (CancellationException e) {
+            throw new IOException("HTTP/2 request to AEM was cancelled", e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException("HTTP/2 request to AEM failed: " + e.getMessage(), e);
+        }
+        byte[] bytes = response.getBodyBytes();
+        Map<String, String> responseHeaders = headerMap(response.getHeaders());
+        InputStream raw = new ByteArrayInputStream(bytes != null ? bytes : new byte[0]);
+        boolean gzip = bytes != null && bytes.length > 0
+                && "gzip".equalsIgnoreCase(responseHeaders.remove("content-encoding"));
+        try (InputStream in = gzip ? new GZIPInputStream(raw) : raw) {
+            return handler.handle(new Response(response.getCode(), responseHeaders, in));
+        }
+    }
+
+    private static Map<String, String> headerMap(Header[] headers) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (Header header : headers) {
+            map.putIfAbsent(header.getName().toLowerCase(), header.getValue());
+        }
+        return map;
+    }
+
+    /**
+     * Snapshot of the connection pool in use, for the stats endpoint. Over HTTP/2 a connection
+     * carries several requests, so leased counts connections rather than requests.
+     */
+    public Map<String, Object> getPoolStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        PoolStats total = http2 ? h2ConnectionManager.getTotalStats() : connectionManager.getTotalStats();
+        stats.put("protocol", http2 ? "HTTP/2" : "HTTP/1.1");
+        stats.put("leased", total.getLeased());
+        stats.put("available", total.getAvailable());
+        stats.put("pending", total.getPending());
+        stats.put("max", total.getMax());
+        stats.put("requests", requests.get());
+        stats.put("failures", failures.get());
+        return stats;
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (httpClient != null) {
+            httpClient.close();
+        }
+        if (h2Client != null) {
+            h2Client.close();
+        }
+    }
+}
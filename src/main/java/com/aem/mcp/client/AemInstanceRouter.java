@@ -0,0 +1,445 @@
+package com.aem.mcp.client;
+
+import org.apache.hc.core5.concurrent.Cancellable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Spreads AEM calls over several instances (author or publish replicas) configured in
+ * aem.instances, defaulting to aem.base-url alone.
+ *
+ * Each request goes to the healthy instance with the fewest requests in flight. An instance
+ * that fails aem.routing.unhealthy-after times in a row (connection errors or 5xx) is left out
+ * for aem.routing.retry-unhealthy-ms, after which it gets traffic again.
+ *
+ * With aem.routing.hedge=true a request that has not started answering within the instance's
+ * recent p95 time to first byte, or that fails before answering, is sent again to another
+ * instance. Whichever answers first is handed to the caller's BodyHandler, which runs on the
+ * calling thread; the other request is cancelled. Only one response body is ever read, so
+ * streaming handlers (which write to the servlet response) are safe to hedge. The requests
+ * themselves run on a bounded pool; when it is full a request goes out without a hedge.
+ *
+ * All of it runs behind a {@link DependencyGuard} for AEM as a whole (aem.resilience.*): an
+ * adaptive concurrency limit, a circuit breaker and retries. A 408, 429 or 5xx answer is retried
+ * (normally on another instance) unless it is the last try, in which case it is passed to the
+ * handler like any other response.
+ *
+ * When a {@link RequestTrace} is attached to the calling thread each request carries its
+ * traceparent, and the Server-Timing header of the response is recorded on the trace.
+ */
+@Component
+public class AemInstanceRouter {
+
+    private static final int LATENCY_SAMPLES = 256;
+    private static final int MIN_SAMPLES_FOR_P95 = 20;
+
+    private final AemHttpTransport transport;
+    private final List<Instance> instances;
+    private final boolean hedge;
+    private final long hedgeMinMs;
+    private final long hedgeDefaultMs;
+    private final int unhealthyAfter;
+    private final long retryUnhealthyMs;
+    private final ExecutorService hedgeExecutor;
+    private final DependencyGuard guard;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    public AemInstanceRouter(AemHttpTransport transport,
+                             @Value("${aem.instances:${aem.base-url:http://localhost:4502}}") String instanceUrls,
+                             @Value("${aem.routing.hedge:true}") boolean hedge,
+                             @Value("${aem.routing.hedge-min-ms:20}") long hedgeMinMs,
+                             @Value("${aem.routing.hedge-default-ms:1000}") long hedgeDefaultMs,
+                             @Value("${aem.routing.unhealthy-after:3}") int unhealthyAfter,
+                             @Value("${aem.routing.retry-unhealthy-ms:10000}") long retryUnhealthyMs,
+                             @Value("${aem.resilience.initial-concurrency:20}") int initialConcurrency,
+                             @Value("${aem.resilience.max-concurrency:${aem.http.max-total:50}}") int maxConcurrency,
+                             @Value("${aem.resilience.failure-rate:0.5}") double failureRate,
+                             @Value("${aem.resilience.open-ms:5000}") long openMs,
+                             @Value("${aem.resilience.retries:2}") int retries,
+                             @Value("${aem.resilience.backoff-ms:50}") long backoffMs) {
+        this.transport = transport;
+        List<Instance> list = new ArrayList<>();
+        for (String url : instanceUrls.split(",")) {
+            if (!url.trim().isEmpty()) {
+                list.add(new Instance(url.trim().replaceFirst("/+$", "")));
+            }
+        }
+        this.instances = Collections.unmodifiableList(list);
+        this.hedge = hedge;
+        this.hedgeMinMs = hedgeMinMs;
+        this.hedgeDefaultMs = hedgeDefaultMs;
+        this.unhealthyAfter = unhealthyAfter;
+        this.retryUnhealthyMs = retryUnhealthyMs;
+        // A guarded call has at most two requests in flight, the primary and its hedge.
+        AtomicInteger counter = new AtomicInteger();
+        this.hedgeExecutor = new ThreadPoolExecutor(0, 2 * maxConcurrency, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread thread = new Thread(r, "mcp-aem-route-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.guard = new DependencyGuard("AEM", initialConcurrency, maxConcurrency, failureRate, openMs,
+                retries, backoffMs);
+    }
+
+    /**
+     * One AEM instance with its load, health and recent latency.
+     */
+    private final class Instance {
+        final String url;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        private final long[] latencies = new long[LATENCY_SAMPLES];
+        private int samples;
+        private int consecutiveFailures;
+        private long unhealthyUntil;
+
+        Instance(String url) {
+            this.url = url;
+        }
+
+        synchronized boolean isAvailable(long now) {
+            return consecutiveFailures < unhealthyAfter || now >= unhealthyUntil;
+        }
+
+        synchronized void recordLatency(long nanos) {
+            latencies[samples++ % LATENCY_SAMPLES] = nanos;
+        }
+
+        synchronized void recordSuccess() {
+            consecutiveFailures = 0;
+        }
+
+        synchronized void recordFailure() {
+            failures.incrementAndGet();
+            if (++consecutiveFailures >= unhealthyAfter) {
+                unhealthyUntil = System.currentTimeMillis() + retryUnhealthyMs;
+            }
+        }
+
+        /**
+         * 95th percentile time to first byte over the recent samples, or -1 with too few.
+         */
+        synchronized long p95Ms() {
+            int n = Math.min(samples, LATENCY_SAMPLES);
+            if (n < MIN_SAMPLES_FOR_P95) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+            return TimeUnit.NANOSECONDS.toMillis(sorted[(int) Math.ceil(n * 0.95) - 1]);
+        }
+
+        synchronized Map<String, Object> getStats(long now) {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("url", url);
+            stats.put("healthy", isAvailable(now));
+            stats.put("outstanding", outstanding.get());
+            stats.put("requests", requests.get());
+            stats.put("failures", failures.get());
+            stats.put("p95Ms", p95Ms());
+            return stats;
+        }
+    }
+
+    public <T> T post(String path, String contentType, byte[] body, AemHttpTransport.BodyHandler<T> handler)
+            throws IOException {
+        return post(path, Collections.emptyMap(), contentType, body, handler);
+    }
+
+    public <T> T post(String path, Map<String, String> headers, String contentType, byte[] body,
+                      AemHttpTransport.BodyHandler<T> handler) throws IOException {
+        return execute("POST", path, headers, contentType, body, handler);
+    }
+
+    public <T> T get(String path, AemHttpTransport.BodyHandler<T> handler) throws IOException {
+        return execute("GET", path, Collections.emptyMap(), null, null, handler);
+    }
+
+    private <T> T execute(String method, String path, Map<String, String> headers, String contentType,
+                          byte[] body, AemHttpTransport.BodyHandler<T> handler) throws IOException {
+        // Handlers of hedged requests run on other threads, so the trace is captured here.
+        RequestTrace trace = RequestTrace.current();
+        return guard.call(attempt -> executeOnce(method, path, traced(headers, trace), contentType, body, response -> {
+            if (trace != null) {
+                trace.recordServerTiming(response.getHeader("Server-Timing"));
+            }
+            int status = response.getStatus();
+            if (DependencyGuard.isRetryable(status) && !attempt.isLast()) {
+                throw new DependencyGuard.StatusException("AEM answered " + status, status,
+                        response.getHeader("Retry-After"));
+            }
+            if (status >= 500) {
+                attempt.markFailed();
+            }
+            attempt.commit();
+            return handler.handle(response);
+        }));
+    }
+
+    private static Map<String, String> traced(Map<String, String> headers, RequestTrace trace) {
+        if (trace == null) {
+            return headers;
+        }
+        Map<String, String> copy = new LinkedHashMap<>(headers);
+        copy.put(RequestTrace.HEADER, trace.traceparent());
+        return copy;
+    }
+
+    private <T> T executeOnce(String method, String path, Map<String, String> headers, String contentType,
+                              byte[] body, AemHttpTransport.BodyHandler<T> handler) throws IOException {
+        Instance primary = choose(null);
+        if (!hedge || instances.size() < 2) {
+            return attempt(primary, method, path, headers, contentType, body, null, () -> false, handler);
+        }
+
+        Race race = new Race(primary, method, path, headers, contentType, body);
+        if (!race.launch(primary)) {
+            // Every hedging thread is busy: go without a hedge on the calling thread.
+            return attempt(primary, method, path, headers, contentType, body, null, () -> false, handler);
+        }
+        long p95 = primary.p95Ms();
+        long delay = Math.max(hedgeMinMs, p95 < 0 ? hedgeDefaultMs : p95);
+        try {
+            AemHttpTransport.Response response;
+            try {
+                response = race.winner.get(delay, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                race.hedge();
+                response = race.winner.get();
+            }
+            // The caller's handler runs here, on the calling thread; the winning request's
+            // thread holds the connection open until it is done.
+            return handler.handle(response);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            race.cancelAll();
+            throw new IOException("Interrupted while waiting for AEM", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            race.consumed.complete(null);
+        }
+    }
+
+    /**
+     * Least outstanding requests among the available instances other than the excluded one,
+     * starting from a rotating index so ties are spread evenly. Falls back to every instance when
+     * none is available; returns null only when excluding leaves nothing.
+     */
+    private Instance choose(Instance excluded) {
+        long now = System.currentTimeMillis();
+        Instance best = pick(excluded, now, true);
+        return best != null ? best : pick(excluded, now, false);
+    }
+
+    private Instance pick(Instance excluded, long now, boolean availableOnly) {
+        int start = Math.floorMod(rotation.getAndIncrement(), instances.size());
+        Instance best = null;
+        for (int i = 0; i < instances.size(); i++) {
+            Instance candidate = instances.get((start + i) % instances.size());
+            if (candidate == excluded || (availableOnly && !candidate.isAvailable(now))) {
+                continue;
+            }
+            if (best == null || candidate.outstanding.get() < best.outstanding.get()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private <T> T attempt(Instance instance, String method, String path, Map<String, String> headers,
+                          String contentType, byte[] body, Consumer<Cancellable> cancelHook,
+                          BooleanSupplier cancelled, AemHttpTransport.BodyHandler<T> handler)
+            throws IOException {
+        instance.outstanding.incrementAndGet();
+        instance.requests.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            return transport.execute(instance.url, method, path, headers, contentType, body, cancelHook,
+                    response -> {
+                        instance.recordLatency(System.nanoTime() - start);
+                        if (response.getStatus() >= 500) {
+                            instance.recordFailure();
+                        } else {
+                            instance.recordSuccess();
+                        }
+                        return handler.handle(response);
+                    });
+        } catch (IOException | RuntimeException e) {
+            // An error status was already recorded when the response arrived.
+            if (!cancelled.getAsBoolean() && !(e instanceof DependencyGuard.StatusException)) {
+                instance.recordFailure();
+            }
+            throw e;
+        } finally {
+            instance.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * The primary request and its hedge, each on a hedging thread. The first response to arrive
+     * claims the race and is handed to the calling thread, which reads it; every other request
+     * is cancelled. The hedge is launched when the primary is slow (see executeOnce) or as soon
+     * as the primary fails without an answer.
+     */
+    private final class Race {
+        final CompletableFuture<AemHttpTransport.Response> winner = new CompletableFuture<>();
+        final CompletableFuture<Void> consumed = new CompletableFuture<>();
+        private final Instance primary;
+        private final String method;
+        private final String path;
+        private final Map<String, String> headers;
+        private final String contentType;
+        private final byte[] body;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final AtomicBoolean hedged = new AtomicBoolean();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final List<Cancellable> requests = new CopyOnWriteArrayList<>();
+        private volatile Throwable lastError;
+
+        Race(Instance primary, String method, String path, Map<String, String> headers, String contentType,
+             byte[] body) {
+            this.primary = primary;
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        void cancelAll() {
+            claimed.set(true);
+            requests.forEach(Cancellable::cancel);
+        }
+
+        /**
+         * Sends the request to another instance, once per race and only while no response has
+         * arrived.
+         */
+        void hedge() {
+            if (claimed.get() || !hedged.compareAndSet(false, true)) {
+                return;
+            }
+            Instance backup = choose(primary);
+            if (backup != null && launch(backup)) {
+                hedges.incrementAndGet();
+            }
+        }
+
+        /**
+         * @return false when no hedging thread is free.
+         */
+        boolean launch(Instance instance) {
+            boolean isHedge = instance != primary;
+            pending.incrementAndGet();
+            try {
+                hedgeExecutor.execute(() -> run(instance, isHedge));
+                return true;
+            } catch (RejectedExecutionException e) {
+                pending.decrementAndGet();
+                return false;
+            }
+        }
+
+        private void run(Instance instance, boolean isHedge) {
+            Cancellable[] own = new Cancellable[1];
+            boolean[] won = new boolean[1];
+            try {
+                attempt(instance, method, path, headers, contentType, body, request -> {
+                    own[0] = request;
+                    requests.add(request);
+                    if (claimed.get()) {
+                        request.cancel();
+                    }
+                }, () -> claimed.get() && !won[0], response -> {
+                    if (!claimed.compareAndSet(false, true)) {
+                        // Lost the race: drop the connection rather than drain the body.
+                        own[0].cancel();
+                        return null;
+                    }
+                    won[0] = true;
+                    if (isHedge) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    for (Cancellable request : requests) {
+                        if (request != own[0]) {
+                            request.cancel();
+                        }
+                    }
+                    winner.complete(response);
+                    // The body is only readable until this handler returns.
+                    consumed.join();
+                    return null;
+                });
+            } catch (Throwable e) {
+                if (!won[0]) {
+                    lastError = e;
+                    if (!isHedge) {
+                        // No point waiting out the hedge delay for an instance that has failed.
+                        hedge();
+                    }
+                }
+            } finally {
+                if (pending.decrementAndGet() == 0 && !winner.isDone()) {
+                    winner.completeExceptionally(lastError != null ? lastError
+                            : new IOException("No AEM instance answered."));
+                }
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (Instance instance : instances) {
+            list.add(instance.getStats(now));
+        }
+        stats.put("instances", list);
+        stats.put("hedging", hedge && instances.size() > 1);
+        stats.put("hedges", hedges.get());
+        stats.put("hedgeWins", hedgeWins.get());
+        stats.put("guard", guard.getStats());
+        return stats;
+    }
+
+    @PreDestroy
+    public void close() {
+        hedgeExecutor.shutdownNow();
+    }
+}
@@ -1,45 +1,262 @@
 package com.aem.mcp.client;
 
+import com.aem.mcp.common.PathWireFormat;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Scanner;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
+/**
+ * Sends JCR-SQL2 statements to McpQueryServlet on AEM through the {@link AemInstanceRouter}.
+ *
+ * Failures are thrown, never returned as a result: when AEM's {@link DependencyGuard} refuses
+ * the call, a {@link RejectedExecutionException} with the {@link DependencyUnavailableException}
+ * as cause, so callers can answer 503 with its Retry-After; when AEM cannot be reached or does
+ * not answer with a successful JSON response, a {@link DependencyFailedException}, answered
+ * with 502.
+ */
 @Service
 public class AemQueryService {
 
-    private static final String AEM_ENDPOINT = "http://localhost:4502/bin/mcp/query";
-    private static final String AEM_USER = "admin";
-    private static final String AEM_PASSWORD = "admin";
+    private static final String QUERY_PATH = "/bin/mcp/query";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final Map<String, String> STREAM_HEADERS =
+            Map.of("Accept", PathWireFormat.MEDIA_TYPE + ", application/json;q=0.9");
+
+    private final AemInstanceRouter transport;
+
+    public AemQueryService(AemInstanceRouter transport) {
+        this.transport = transport;
+    }
 
     public String runQuery(String jcrSql2Query) {
+        return runQuery(jcrSql2Query, 0);
+    }
+
+    /**
+     * @param limit maximum number of paths to return, or 0 for all.
+     */
+    public String runQuery(String jcrSql2Query, long limit) {
+        try {
+            return transport.post(queryPath(limit), "text/plain; charset=UTF-8",
+                    jcrSql2Query.getBytes(StandardCharsets.UTF_8), AemQueryService::jsonBody);
+
+        } catch (DependencyUnavailableException e) {
+            throw new RejectedExecutionException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new DependencyFailedException("AEM", e);
+        }
+    }
+
+    /**
+     * Runs several statements in one request; AEM executes them concurrently. The response holds
+     * one entry per statement, in order, under "results", each with its own paths, timing and
+     * error.
+     */
+    public String runQueries(List<String> jcrSql2Queries) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (JsonGenerator json = JSON_FACTORY.createGenerator(body)) {
+                json.writeStartArray();
+                for (String query : jcrSql2Queries) {
+                    json.writeString(query);
+                }
+                json.writeEndArray();
+            }
+            return transport.post(QUERY_PATH + "?batch=true", "application/json; charset=UTF-8",
+                    body.toByteArray(), AemQueryService::jsonBody);
+
+        } catch (DependencyUnavailableException e) {
+            throw new RejectedExecutionException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new DependencyFailedException("AEM", e);
+        }
+    }
+
+    /**
+     * Runs a query and hands the raw response to the handler, so callers can stream the body
+     * onward instead of reading it into a String.
+     */
+    public <T> T runQuery(String jcrSql2Query, long limit, AemHttpTransport.BodyHandler<T> handler)
+            throws IOException {
+        return transport.post(queryPath(limit), "text/plain; charset=UTF-8",
+                jcrSql2Query.getBytes(StandardCharsets.UTF_8), handler);
+    }
+
+    /**
+     * Fetches one page of results. Pass the statement for the first page, or the "next" cursor
+     * from a previous page (the statement may then be null).
+     */
+    public String runQueryPage(String jcrSql2Query, int limit, String cursor) {
+        StringBuilder path = new StringBuilder(QUERY_PATH).append("?limit=").append(limit);
+        if (cursor != null && !cursor.isEmpty()) {
+            path.append("&cursor=").append(URLEncoder.encode(cursor, StandardCharsets.UTF_8));
+        }
+        try {
+            return transport.post(path.toString(), "text/plain; charset=UTF-8",
+                    (jcrSql2Query == null ? "" : jcrSql2Query).getBytes(StandardCharsets.UTF_8),
+                    AemQueryService::jsonBody);
+
+        } catch (DependencyUnavailableException e) {
+            throw new RejectedExecutionException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new DependencyFailedException("AEM", e);
+        }
+    }
+
+    /**
+     * Runs a query and hands the result paths to the consumer in batches as they are parsed
+     * from the response, without holding the whole result. The servlet is asked for the
+     * compact path format and may answer in JSON instead (projections, errors, older servers).
+     *
+     * @return the other top-level fields of the response (count, next, total, error, ...).
+     */
+    public Map<String, Object> streamQuery(String jcrSql2Query, long limit, int batchSize,
+                                           Consumer<List<String>> batches) {
         try {
-            URL url = new URL(AEM_ENDPOINT);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setDoOutput(true);
-            conn.setRequestProperty("Authorization", "Basic " + encodeAuth(AEM_USER, AEM_PASSWORD));
-            conn.setRequestProperty("Content-Type", "text/plain");
-
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(jcrSql2Query.getBytes());
+            return transport.post(queryPath(limit), STREAM_HEADERS, "text/plain; charset=UTF-8",
+                    jcrSql2Query.getBytes(StandardCharsets.UTF_8),
+                    response -> {
+                        String contentType = response.getHeader("Content-Type");
+                        if (contentType != null && contentType.startsWith(PathWireFormat.MEDIA_TYPE)) {
+                            return readCompact(response.getBody(), batchSize, batches);
+                        }
+                        return readStreaming(response.getBody(), batchSize, batches);
+                    });
+
+        } catch (DependencyUnavailableException e) {
+            throw new RejectedExecutionException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new DependencyFailedException("AEM", e);
+        }
+    }
+
+    private static Map<String, Object> readCompact(InputStream in, int batchSize, Consumer<List<String>> batches)
+            throws IOException {
+        PathWireFormat.Reader reader = new PathWireFormat.Reader(in);
+        List<String> batch = new ArrayList<>(batchSize);
+        String path;
+        while ((path = reader.next()) != null) {
+            batch.add(path);
+            if (batch.size() == batchSize) {
+                batches.accept(batch);
+                batch = new ArrayList<>(batchSize);
             }
+        }
+        if (!batch.isEmpty()) {
+            batches.accept(batch);
+        }
+        return readStreaming(reader.trailer(), batchSize, batches);
+    }
 
-            Scanner scanner = new Scanner(conn.getInputStream()).useDelimiter("\\A");
-            String response = scanner.hasNext() ? scanner.next() : "";
+    private static Map<String, Object> readStreaming(InputStream in, int batchSize, Consumer<List<String>> batches)
+            throws IOException {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected response from AEM.");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("paths") && value == JsonToken.START_ARRAY) {
+                    List<String> batch = new ArrayList<>(batchSize);
+                    while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                        batch.add(parser.getText());
+                        if (batch.size() == batchSize) {
+                            batches.accept(batch);
+                            batch = new ArrayList<>(batchSize);
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        batches.accept(batch);
+                    }
+                } else if (value.isScalarValue()) {
+                    fields.put(field, value == JsonToken.VALUE_NULL ? null
+                            : value.isNumeric() ? parser.getNumberValue() : parser.getText());
+                } else if (value == JsonToken.START_OBJECT && "timing".equals(field)) {
+                    fields.put(field, readTiming(parser));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return fields;
+    }
 
-            conn.disconnect();
-            return response;
+    /**
+     * AEM's phase timings in ms, written after the paths.
+     */
+    private static Map<String, Number> readTiming(JsonParser parser) throws IOException {
+        Map<String, Number> timing = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String phase = parser.getCurrentName();
+            if (parser.nextToken().isNumeric()) {
+                timing.put(phase, parser.getNumberValue());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return timing;
+    }
 
-        } catch (Exception e) {
-            return "{\"error\": \"" + e.getMessage() + "\"}";
+    /**
+     * The servlet path with a limit parameter when there is a limit. With a limit AEM also
+     * returns a "next" cursor when more results exist, which /mcp/query/page accepts.
+     */
+    private static String queryPath(long limit) {
+        return limit > 0 ? QUERY_PATH + "?limit=" + limit : QUERY_PATH;
+    }
+
+    /**
+     * The body of a successful JSON response. Anything else (an error status, an HTML error
+     * page from a proxy, a login redirect) fails, so it is never passed on as a result.
+     */
+    private static String jsonBody(AemHttpTransport.Response response) throws IOException {
+        int status = response.getStatus();
+        String contentType = response.getHeader("Content-Type");
+        if (!isJson(contentType)) {
+            throw new IOException("AEM returned " + status + " with content type "
+                    + (contentType == null ? "none" : contentType) + " instead of JSON.");
+        }
+        String body = readBody(response.getBody());
+        if (status < 200 || status >= 300) {
+            throw new IOException("AEM returned " + status + ": " + body);
+        }
+        return body;
+    }
+
+    static boolean isJson(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        try {
+            MediaType mediaType = MediaType.parseMediaType(contentType);
+            return mediaType.isCompatibleWith(MediaType.APPLICATION_JSON)
+                    || mediaType.getSubtype().endsWith("+json");
+        } catch (InvalidMediaTypeException e) {
+            return false;
         }
     }
 
-    private String encodeAuth(String user, String pass) {
-        String auth = user + ":" + pass;
-        return java.util.Base64.getEncoder().encodeToString(auth.getBytes());
+    static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        in.transferTo(out);
+        return out.toString(StandardCharsets.UTF_8);
     }
 }
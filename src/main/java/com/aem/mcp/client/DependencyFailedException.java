@@ -0,0 +1,23 @@
+package com.aem.mcp.client;
+
+/**
+ * Thrown when a dependency was called and did not give a usable answer after its
+ * {@link DependencyGuard}'s retries: an error status, a broken connection or a response that
+ * could not be read. Reported as 502, unlike {@link DependencyUnavailableException}, which is
+ * reported as 503.
+ */
+public class DependencyFailedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String dependency;
+
+    public DependencyFailedException(String dependency, Throwable cause) {
+        super(dependency + " failed: " + cause.getMessage(), cause);
+        this.dependency = dependency;
+    }
+
+    public String getDependency() {
+        return dependency;
+    }
+}
@@ -0,0 +1,413 @@
+package com.aem.mcp.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one slow or failing dependency (OpenAI, AEM) from taking the client down with it. Every
+ * outbound call goes through {@link #call}, which combines:
+ *
+ * Bulkhead with an adaptive limit - at most "limit" calls are in flight; more fail at once with
+ * {@link DependencyUnavailableException} instead of queueing. The limit follows latency: each
+ * call's time is compared with a slowly moving baseline, and while calls take more than twice
+ * the baseline the limit shrinks in proportion (limit * baseline * 2 / latency, smoothed). A
+ * failed call cuts it by 10%. Otherwise it grows by about the square root of the limit while
+ * the calls actually use it. So when a dependency browns out fewer calls wait on it and the
+ * rest are refused quickly, and the limit climbs back as latency recovers.
+ *
+ * Circuit breaker - when at least half (the configured failure rate) of the last 20 calls
+ * failed, calls are refused for the open time. After that a few probe calls are let through;
+ * if they all succeed the circuit closes, if one fails it opens again.
+ *
+ * Retry - a failed call is repeated up to the configured number of times after a random delay
+ * between 0 and backoff * 2^attempt (capped at 10 * backoff), or after the dependency's
+ * Retry-After when that is within the cap. Retries are limited to about 10% of calls overall,
+ * so a struggling dependency does not get multiplied load. Calls that already handed a response
+ * on (see {@link Attempt#commit}), refused calls and interrupted calls are not retried.
+ */
+public class DependencyGuard {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private enum Outcome {
+        SUCCESS, FAILURE, IGNORED
+    }
+
+    private static final int MIN_LIMIT = 1;
+    private static final double RTT_TOLERANCE = 2.0;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final int BASELINE_SAMPLES = 200;
+    private static final int WINDOW = 20;
+    private static final int MIN_CALLS = 10;
+    private static final int PROBES = 3;
+    private static final double RETRY_RATIO = 0.1;
+    private static final double MAX_RETRY_TOKENS = 10;
+    private static final int MAX_BACKOFF_FACTOR = 10;
+
+    /**
+     * One try of a guarded call.
+     */
+    @FunctionalInterface
+    public interface Task<T> {
+        T run(Attempt attempt) throws IOException;
+    }
+
+    /**
+     * Lets a task report what happened beyond returning or throwing.
+     */
+    public static final class Attempt {
+        private final int number;
+        private final boolean last;
+        private long committedAt;
+        private boolean failed;
+
+        Attempt(int number, boolean last) {
+            this.number = number;
+            this.last = last;
+        }
+
+        /**
+         * 0 for the first try.
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * True when a failure of this try will not be retried, so the task should pass an error
+         * response on rather than throw {@link StatusException}.
+         */
+        public boolean isLast() {
+            return last;
+        }
+
+        /**
+         * Marks the point where the response is handed to the caller. The latency sample ends
+         * here, and a failure after it is neither retried nor counted against the dependency,
+         * since the caller may already have consumed part of the response or failed itself.
+         */
+        public void commit() {
+            if (committedAt == 0) {
+                committedAt = System.nanoTime();
+            }
+        }
+
+        /**
+         * Counts this try as a failure even though it returned, e.g. an error status passed on.
+         */
+        public void markFailed() {
+            failed = true;
+        }
+    }
+
+    /**
+     * An error status from the dependency. 408, 429 and 5xx are retried and count as failures;
+     * other statuses are the request's fault and are neither.
+     */
+    public static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final long retryAfterMs;
+
+        public StatusException(String message, int status, String retryAfter) {
+            super(message);
+            this.status = status;
+            this.retryAfterMs = parseRetryAfter(retryAfter);
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public boolean isRetryable() {
+            return DependencyGuard.isRetryable(status);
+        }
+
+        private static long parseRetryAfter(String value) {
+            try {
+                return value == null ? 0 : TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * One permit of the bulkhead.
+     */
+    private static final class Permit {
+        final boolean probe;
+
+        Permit(boolean probe) {
+            this.probe = probe;
+        }
+    }
+
+    private final String name;
+    private final int maxLimit;
+    private final double failureRate;
+    private final long openMs;
+    private final int retries;
+    private final long backoffMs;
+
+    private double limit;
+    private int inFlight;
+    private double baselineNanos;
+
+    private State state = State.CLOSED;
+    private final boolean[] outcomes = new boolean[WINDOW];
+    private int outcomeCount;
+    private int outcomeIndex;
+    private int windowFailures;
+    private long openedAt;
+    private int probesInFlight;
+    private int probeSuccesses;
+    private double retryTokens = MAX_RETRY_TOKENS;
+
+    private long calls;
+    private long failures;
+    private long limited;
+    private long shortCircuited;
+    private long retried;
+    private long opened;
+
+    /**
+     * @param initialLimit concurrent calls allowed before any latency has been seen.
+     * @param maxLimit     upper bound of the adaptive limit.
+     * @param failureRate  share of failed calls among the recent ones that opens the circuit.
+     * @param openMs       how long an open circuit refuses calls before probing.
+     * @param retries      extra tries after a failure, 0 for none.
+     * @param backoffMs    base delay before the first retry.
+     */
+    public DependencyGuard(String name, int initialLimit, int maxLimit, double failureRate, long openMs,
+                           int retries, long backoffMs) {
+        this.name = name;
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.limit = Math.max(MIN_LIMIT, Math.min(initialLimit, this.maxLimit));
+        this.failureRate = failureRate;
+        this.openMs = openMs;
+        this.retries = Math.max(0, retries);
+        this.backoffMs = Math.max(1, backoffMs);
+    }
+
+    public static boolean isRetryable(int status) {
+        return status == 408 || status == 429 || status >= 500;
+    }
+
+    public <T> T call(Task<T> task) throws IOException {
+        IOException previous = null;
+        deposit();
+        for (int number = 0; ; number++) {
+            Permit permit;
+            try {
+                permit = acquire();
+            } catch (DependencyUnavailableException e) {
+                if (previous != null) {
+                    e.addSuppressed(previous);
+                }
+                throw e;
+            }
+            Attempt attempt = new Attempt(number, number >= retries);
+            long start = System.nanoTime();
+            try {
+                T result = task.run(attempt);
+                release(permit, attempt.failed ? Outcome.FAILURE : Outcome.SUCCESS, elapsed(attempt, start));
+                return result;
+            } catch (IOException e) {
+                boolean retryable = !(e instanceof StatusException) || ((StatusException) e).isRetryable();
+                release(permit, attempt.committedAt != 0 || !retryable ? Outcome.IGNORED : Outcome.FAILURE,
+                        elapsed(attempt, start));
+                long delay = retryable ? backoff(number, e) : -1;
+                if (attempt.committedAt != 0 || attempt.last || delay < 0
+                        || Thread.currentThread().isInterrupted() || !withdraw()) {
+                    throw e;
+                }
+                previous = e;
+                pause(delay);
+            } catch (RuntimeException | Error e) {
+                release(permit, Outcome.IGNORED, elapsed(attempt, start));
+                throw e;
+            }
+        }
+    }
+
+    private static long elapsed(Attempt attempt, long start) {
+        return (attempt.committedAt != 0 ? attempt.committedAt : System.nanoTime()) - start;
+    }
+
+    /**
+     * Full-jitter delay before the next try, or -1 when the dependency asked for a longer wait
+     * than the cap.
+     */
+    private long backoff(int number, IOException error) {
+        long cap = backoffMs * MAX_BACKOFF_FACTOR;
+        long ceiling = Math.min(cap, backoffMs << Math.min(number, 20));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        if (error instanceof StatusException) {
+            long retryAfter = ((StatusException) error).retryAfterMs;
+            if (retryAfter > cap) {
+                return -1;
+            }
+            delay = Math.max(delay, retryAfter);
+        }
+        return delay;
+    }
+
+    private static void pause(long delayMs) throws InterruptedIOException {
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    private synchronized void deposit() {
+        calls++;
+        retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + RETRY_RATIO);
+    }
+
+    private synchronized boolean withdraw() {
+        if (retryTokens < 1) {
+            return false;
+        }
+        retryTokens--;
+        retried++;
+        return true;
+    }
+
+    private synchronized Permit acquire() throws DependencyUnavailableException {
+        long now = System.currentTimeMillis();
+        if (state == State.OPEN) {
+            if (now - openedAt < openMs) {
+                shortCircuited++;
+                throw new DependencyUnavailableException(name, "circuit open", openMs - (now - openedAt));
+            }
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+            probeSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= PROBES) {
+                shortCircuited++;
+                throw new DependencyUnavailableException(name, "circuit half-open, probing", 0);
+            }
+            probesInFlight++;
+            inFlight++;
+            return new Permit(true);
+        }
+        if (inFlight >= (int) limit) {
+            limited++;
+            throw new DependencyUnavailableException(name, "concurrency limit of " + (int) limit + " reached", 0);
+        }
+        inFlight++;
+        return new Permit(false);
+    }
+
+    private synchronized void release(Permit permit, Outcome outcome, long nanos) {
+        int concurrent = inFlight--;
+        if (outcome == Outcome.FAILURE) {
+            failures++;
+        }
+        if (permit.probe) {
+            probesInFlight--;
+            if (state == State.HALF_OPEN) {
+                if (outcome == Outcome.FAILURE) {
+                    open();
+                } else if (outcome == Outcome.SUCCESS && ++probeSuccesses >= PROBES) {
+                    close();
+                }
+            }
+        } else if (outcome != Outcome.IGNORED && state == State.CLOSED) {
+            recordOutcome(outcome == Outcome.FAILURE);
+            if (outcomeCount >= MIN_CALLS && windowFailures >= failureRate * outcomeCount) {
+                open();
+            }
+        }
+        if (outcome != Outcome.IGNORED) {
+            adjustLimit(nanos, outcome == Outcome.FAILURE, concurrent);
+        }
+    }
+
+    private void recordOutcome(boolean failed) {
+        if (outcomeCount == WINDOW) {
+            if (outcomes[outcomeIndex]) {
+                windowFailures--;
+            }
+        } else {
+            outcomeCount++;
+        }
+        outcomes[outcomeIndex] = failed;
+        if (failed) {
+            windowFailures++;
+        }
+        outcomeIndex = (outcomeIndex + 1) % WINDOW;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        opened++;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        outcomeCount = 0;
+        outcomeIndex = 0;
+        windowFailures = 0;
+    }
+
+    /**
+     * @param concurrent calls in flight when this one finished, itself included.
+     */
+    private void adjustLimit(long nanos, boolean failed, int concurrent) {
+        if (failed) {
+            limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+            return;
+        }
+        if (baselineNanos == 0) {
+            baselineNanos = nanos;
+        } else {
+            baselineNanos += (nanos - baselineNanos) / BASELINE_SAMPLES;
+            if (baselineNanos > RTT_TOLERANCE * nanos) {
+                // Latency dropped well below the baseline; catch up faster than the average would.
+                baselineNanos *= 0.95;
+            }
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * baselineNanos / Math.max(1, nanos)));
+        if (gradient == 1.0 && concurrent < limit / 2) {
+            // The limit is not what holds calls back, so there is nothing to learn about raising it.
+            return;
+        }
+        double target = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(MIN_LIMIT, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("state", state.name());
+        stats.put("limit", (int) limit);
+        stats.put("maxLimit", maxLimit);
+        stats.put("inFlight", inFlight);
+        stats.put("baselineMs", Math.round(baselineNanos / 1e5) / 10.0);
+        stats.put("calls", calls);
+        stats.put("failures", failures);
+        stats.put("retries", retried);
+        stats.put("limited", limited);
+        stats.put("shortCircuited", shortCircuited);
+        stats.put("opened", opened);
+        return stats;
+    }
+}
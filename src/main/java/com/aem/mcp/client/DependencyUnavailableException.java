@@ -0,0 +1,32 @@
+package com.aem.mcp.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown without calling a dependency when its {@link DependencyGuard} refuses the call: the
+ * circuit is open, or the concurrency limit is reached.
+ */
+public class DependencyUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String dependency;
+    private final long retryAfterMs;
+
+    public DependencyUnavailableException(String dependency, String reason, long retryAfterMs) {
+        super(dependency + " unavailable: " + reason);
+        this.dependency = dependency;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    public String getDependency() {
+        return dependency;
+    }
+
+    /**
+     * How long until the dependency is tried again, or 0 when unknown.
+     */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+}
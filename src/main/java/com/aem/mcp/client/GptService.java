@@ -2,56 +2,176 @@ package com.aem.mcp.client;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Base64;
+import java.util.concurrent.RejectedExecutionException;
 
 @Service
 public class GptService {
 
-    private static final String OPENAI_ENDPOINT = "https://api.openai.com/v1/chat/completions";
+    private static final String SYSTEM_PROMPT =
+            "You are an AEM JCR-SQL2 expert. Translate the user's question into one JCR-SQL2 query. " +
+                    "Select from the main type with alias 's' and scope it with ISDESCENDANTNODE where a path is given. " +
+                    "Pages: [cq:Page], filter on s.[jcr:content/...] properties. Users in groups: [rep:User] or [rep:Group]. " +
+                    "Pages with a component: [nt:unstructured] under /content/trp-ref where [sling:resourceType] is the component's resource type. " +
+                    "Use only the node types, resource types and properties listed below. " +
+                    "Only return the SQL2 string, no explanation.\n";
+
+    private final TranslationCache translationCache;
+    private final PromptContextBuilder promptContextBuilder;
+    private final String openAiEndpoint;
+    private final String openAiApiKey;
+    private final boolean streaming;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final DependencyGuard guard;
+
+    public GptService(TranslationCache translationCache, PromptContextBuilder promptContextBuilder,
+                      @Value("${openai.endpoint:https://api.openai.com/v1/chat/completions}") String openAiEndpoint,
+                      @Value("${openai.api-key:OPENAI_API_KEY}") String openAiApiKey,
+                      @Value("${openai.streaming:false}") boolean streaming,
+                      @Value("${openai.connect-timeout-ms:5000}") int connectTimeoutMs,
+                      @Value("${openai.read-timeout-ms:60000}") int readTimeoutMs,
+                      @Value("${openai.resilience.initial-concurrency:8}") int initialConcurrency,
+                      @Value("${openai.resilience.max-concurrency:64}") int maxConcurrency,
+                      @Value("${openai.resilience.failure-rate:0.5}") double failureRate,
+                      @Value("${openai.resilience.open-ms:30000}") long openMs,
+                      @Value("${openai.resilience.retries:2}") int retries,
+                      @Value("${openai.resilience.backoff-ms:500}") long backoffMs) {
+        this.translationCache = translationCache;
+        this.promptContextBuilder = promptContextBuilder;
+        this.openAiEndpoint = openAiEndpoint;
+        this.openAiApiKey = openAiApiKey;
+        this.streaming = streaming;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.guard = new DependencyGuard("OpenAI", initialConcurrency, maxConcurrency, failureRate, openMs,
+                retries, backoffMs);
+    }
 
     public String generateJcrQuery(String userQuestion) {
+        return translate(userQuestion).getQuery();
+    }
+
+    /**
+     * @throws RejectedExecutionException when OpenAI is refused by its {@link DependencyGuard}
+     *                                    (circuit open or concurrency limit reached).
+     * @throws DependencyFailedException  when OpenAI fails or its answer cannot be read.
+     */
+    public Translation translate(String userQuestion) {
+        String cached = translationCache.get(userQuestion);
+        if (cached != null) {
+            return new Translation(cached, Translation.Source.CACHE);
+        }
         try {
-            String prompt = String.format(
-                    "{\n" +
-                            "  \"model\": \"gpt-4\",\n" +
-                            "  \"messages\": [\n" +
-                            "    {\"role\": \"system\", \"content\": \"" +
-                            "You are an AEM JCR-SQL2 expert. Translate the user's question into a precise JCR-SQL2 query. " +
-                            "Use [cq:Page] or [cq:Component] as the main type with alias 's', and filter using s.[jcr:content/jcr:createdBy] or other jcr:content-level fields. " +
-                            "Additionally, use [rep:User] or [rep:Group] to find users in groups. " +
-                            "For requests involving 'give me page has child component <component-path>', " +
-                            "search using [nt:unstructured] in content/trp-ref where [sling:resourceType] matches the specified <component-path>. " +
-                            "Only return the SQL2 string, no explanation.\"" +
-                    "},\n" +
-                            "    {\"role\": \"user\", \"content\": \"%s\"}\n" +
-                            "  ]\n" +
-                            "}\n",
-                    userQuestion);
-
-            HttpURLConnection conn = (HttpURLConnection) new URL(OPENAI_ENDPOINT).openConnection();
-            conn.setRequestMethod("POST");
-            conn.setDoOutput(true);
-            conn.setRequestProperty("Authorization", "Bearer " + "OPENAI_API_KEY");
-            conn.setRequestProperty("Content-Type", "application/json");
-
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(prompt.getBytes());
-            }
+            String jcrQuery = guard.call(attempt ->
+                    streaming ? streamCompletion(userQuestion) : requestCompletion(userQuestion));
+            translationCache.put(userQuestion, jcrQuery);
+            return new Translation(jcrQuery, Translation.Source.LLM);
+
+        } catch (DependencyUnavailableException e) {
+            throw new RejectedExecutionException(e.getMessage(), e);
+        } catch (IOException | RuntimeException e) {
+            throw new DependencyFailedException("OpenAI", e);
+        }
+    }
+
+    private String requestCompletion(String userQuestion) throws IOException {
+        HttpURLConnection conn = openCompletion(buildRequestBody(userQuestion, false));
 
-            Scanner scanner = new Scanner(conn.getInputStream()).useDelimiter("\\A");
-            String responseBody = scanner.hasNext() ? scanner.next() : "";
+        Scanner scanner = new Scanner(conn.getInputStream()).useDelimiter("\\A");
+        String responseBody = scanner.hasNext() ? scanner.next() : "";
+        conn.disconnect();
 
-            JsonNode json = new ObjectMapper().readTree(responseBody);
-            return json.get("choices").get(0).get("message").get("content").asText();
+        JsonNode json = new ObjectMapper().readTree(responseBody);
+        return json.get("choices").get(0).get("message").get("content").asText();
+    }
 
-        } catch (Exception e) {
-            return "Error calling OpenAI: " + e.getMessage();
+    /**
+     * Reads the completion as server-sent chunks and returns as soon as the SQL2 statement is
+     * syntactically complete, dropping the rest of the generation.
+     */
+    private String streamCompletion(String userQuestion) throws IOException {
+        HttpURLConnection conn = openCompletion(buildRequestBody(userQuestion, true));
+        ObjectMapper objectMapper = new ObjectMapper();
+        Sql2StreamAssembler assembler = new Sql2StreamAssembler();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+                String data = line.substring(5).trim();
+                if (data.equals("[DONE]")) {
+                    break;
+                }
+                JsonNode delta = objectMapper.readTree(data).path("choices").path(0).path("delta").path("content");
+                if (!delta.isMissingNode() && !delta.isNull() && assembler.append(delta.asText())) {
+                    break;
+                }
+            }
+        } finally {
+            conn.disconnect();
+        }
+        assembler.finish();
+        return assembler.getStatement();
+    }
+
+    /**
+     * Sends the request and fails with a {@link DependencyGuard.StatusException} unless OpenAI
+     * answers 2xx, so rate limits and server errors are retried.
+     */
+    private HttpURLConnection openCompletion(String requestBody) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(openAiEndpoint).openConnection();
+        conn.setConnectTimeout(connectTimeoutMs);
+        conn.setReadTimeout(readTimeoutMs);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Authorization", "Bearer " + openAiApiKey);
+        conn.setRequestProperty("Content-Type", "application/json");
+
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write(requestBody.getBytes(StandardCharsets.UTF_8));
         }
+        int status = conn.getResponseCode();
+        if (status / 100 != 2) {
+            String retryAfter = conn.getHeaderField("Retry-After");
+            conn.disconnect();
+            throw new DependencyGuard.StatusException("OpenAI answered " + status, status, retryAfter);
+        }
+        return conn;
+    }
+
+    private String buildRequestBody(String userQuestion, boolean stream) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        ObjectNode body = objectMapper.createObjectNode();
+        body.put("model", "gpt-4");
+        body.put("stream", stream);
+        ArrayNode messages = body.putArray("messages");
+        messages.addObject()
+                .put("role", "system")
+                .put("content", SYSTEM_PROMPT + promptContextBuilder.getContext());
+        messages.addObject()
+                .put("role", "user")
+                .put("content", userQuestion);
+        return objectMapper.writeValueAsString(body);
+    }
+
+    public Map<String, Object> getStats() {
+        return guard.getStats();
     }
 }
@@ -0,0 +1,151 @@
+package com.aem.mcp.client;
+
+import java.util.Arrays;
+
+/**
+ * Distribution of non-negative long values (nanoseconds, bytes, rows) with percentiles.
+ *
+ * Values are counted in log-scaled buckets, eight per power of two, so any percentile is within
+ * about 9% of the true value whatever the range, in a fixed 4 KB per window slot. Count, sum
+ * and max cover everything recorded since startup; percentiles cover only the last window
+ * (split into slots that are cleared as they expire), so a regression shows up in them within
+ * one window instead of being diluted by history.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final long slotMs;
+    private final long[][] slots;
+    private final long[] slotEpochs;
+
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * @param windowMs how far back percentiles look.
+     * @param slots    parts the window is split into; the window moves on one part at a time.
+     */
+    public Histogram(long windowMs, int slots) {
+        this.slotMs = Math.max(1, windowMs / slots);
+        this.slots = new long[slots][BUCKETS];
+        this.slotEpochs = new long[slots];
+        Arrays.fill(slotEpochs, -1);
+    }
+
+    public synchronized void record(long value) {
+        long v = Math.max(0, value);
+        count++;
+        sum += v;
+        max = Math.max(max, v);
+        long epoch = System.currentTimeMillis() / slotMs;
+        int slot = (int) (epoch % slots.length);
+        if (slotEpochs[slot] != epoch) {
+            Arrays.fill(slots[slot], 0);
+            slotEpochs[slot] = epoch;
+        }
+        slots[slot][bucketOf(v)]++;
+    }
+
+    public synchronized Snapshot snapshot() {
+        long epoch = System.currentTimeMillis() / slotMs;
+        long[] merged = new long[BUCKETS];
+        long windowCount = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if (epoch - slotEpochs[i] < slots.length) {
+                for (int b = 0; b < BUCKETS; b++) {
+                    merged[b] += slots[i][b];
+                    windowCount += slots[i][b];
+                }
+            }
+        }
+        return new Snapshot(count, sum, max, windowCount, merged);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Midpoint of the values that fall into the bucket.
+     */
+    static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return lower + (width - 1) / 2;
+    }
+
+    /**
+     * Totals since startup plus the bucket counts of the current window.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final long sum;
+        private final long max;
+        private final long windowCount;
+        private final long[] buckets;
+
+        Snapshot(long count, long sum, long max, long windowCount, long[] buckets) {
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.windowCount = windowCount;
+            this.buckets = buckets;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Values recorded within the window, the ones percentiles are taken from.
+         */
+        public long getWindowCount() {
+            return windowCount;
+        }
+
+        /**
+         * @param quantile between 0 and 1, e.g. 0.95.
+         * @return the value at that quantile within the window, or 0 when the window is empty.
+         */
+        public long percentile(double quantile) {
+            if (windowCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * windowCount));
+            long seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b];
+                if (seen >= rank) {
+                    return Math.min(valueOf(b), max);
+                }
+            }
+            return max;
+        }
+    }
+}
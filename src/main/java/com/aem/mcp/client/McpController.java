@@ -1,29 +1,566 @@
 package com.aem.mcp.client;
 
+import com.aem.mcp.common.Sql2SyntaxException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/mcp")
 public class McpController {
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int STREAM_BATCH_SIZE = 200;
+    private static final long STREAM_TIMEOUT_MS = 120000;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
     private final GptService gptService;
+    private final RuleBasedTranslator ruleBasedTranslator;
     private final AemQueryService aemQueryService;
+    private final AemHttpTransport aemHttpTransport;
+    private final TranslationCache translationCache;
+    private final PromptContextBuilder promptContextBuilder;
+    private final PipelineExecutor pipelineExecutor;
+    private final AemInstanceRouter aemInstanceRouter;
+    private final Sql2Normalizer sql2Normalizer;
+    private final PipelineMetrics pipelineMetrics;
 
-    public McpController(GptService gptService, AemQueryService aemQueryService) {
+    public McpController(GptService gptService, RuleBasedTranslator ruleBasedTranslator, AemQueryService aemQueryService,
+                         AemHttpTransport aemHttpTransport, TranslationCache translationCache,
+                         PromptContextBuilder promptContextBuilder, PipelineExecutor pipelineExecutor,
+                         AemInstanceRouter aemInstanceRouter, Sql2Normalizer sql2Normalizer,
+                         PipelineMetrics pipelineMetrics) {
         this.gptService = gptService;
+        this.ruleBasedTranslator = ruleBasedTranslator;
         this.aemQueryService = aemQueryService;
+        this.aemHttpTransport = aemHttpTransport;
+        this.translationCache = translationCache;
+        this.promptContextBuilder = promptContextBuilder;
+        this.pipelineExecutor = pipelineExecutor;
+        this.aemInstanceRouter = aemInstanceRouter;
+        this.sql2Normalizer = sql2Normalizer;
+        this.pipelineMetrics = pipelineMetrics;
     }
 
+    /**
+     * Writes the envelope with a JsonGenerator and copies the AEM response into its "data" field
+     * straight from the upstream stream, so memory use does not grow with the result size; see
+     * {@link #copyUpstream}.
+     *
+     * Every query endpoint takes the caller's traceparent header (or starts a new trace), passes
+     * it on to AEM and reports "traceId" and "timings" in its response; see {@link RequestTrace}.
+     */
     @PostMapping("/query")
-    public ResponseEntity<String> query(@RequestBody Map<String, String> input) {
+    public void query(@RequestBody Map<String, String> input,
+                      @RequestHeader(value = RequestTrace.HEADER, required = false) String traceparent,
+                      HttpServletResponse response) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        RequestTrace trace = RequestTrace.start(traceparent);
+        RequestTrace.Scope scope = trace.attach();
+        try {
+            String question = input.get("question");
+            Translation translation = translate(question, trace);
+            String jcrQuery = translation.getQuery();
+
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            OutputStream out = response.getOutputStream();
+            long executeStart = System.nanoTime();
+            long[] firstByte = {0};
+            try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+                json.writeStartObject();
+                json.writeStringField("query", jcrQuery);
+                json.writeStringField("source", translation.getSource().label());
+                writeRewrites(json, translation.getRewrites());
+                json.writeStringField("traceId", trace.getTraceId());
+                json.writeFieldName("data");
+                try {
+                    ok = aemQueryService.runQuery(jcrQuery, translation.getLimit(), upstream -> {
+                        firstByte[0] = System.nanoTime();
+                        recordStage(trace, PipelineMetrics.Stage.EXECUTE, firstByte[0] - executeStart);
+                        return copyUpstream(upstream, json, response);
+                    });
+                } catch (IOException e) {
+                    if (firstByte[0] != 0) {
+                        pipelineMetrics.recordError(PipelineMetrics.Stage.RESPOND);
+                        throw e;
+                    }
+                    pipelineMetrics.recordError(PipelineMetrics.Stage.EXECUTE);
+                    String retryAfter = retryAfter(e);
+                    if (retryAfter != null) {
+                        response.setHeader("Retry-After", retryAfter);
+                    }
+                    response.setStatus(e instanceof DependencyUnavailableException
+                            ? HttpStatus.SERVICE_UNAVAILABLE.value() : HttpStatus.BAD_GATEWAY.value());
+                    json.writeStartObject();
+                    json.writeStringField("error", e.getMessage());
+                    json.writeEndObject();
+                }
+                if (firstByte[0] != 0) {
+                    recordStage(trace, PipelineMetrics.Stage.RESPOND, System.nanoTime() - firstByte[0]);
+                }
+                writeTimings(json, trace);
+                json.writeEndObject();
+            }
+        } finally {
+            scope.close();
+            pipelineMetrics.recordRequest("query", System.nanoTime() - start, ok);
+        }
+    }
+
+    /**
+     * Copies a JSON response from AEM into "data" token by token, so the body is never held in
+     * memory. Anything else (an HTML error page from a proxy, a login redirect) becomes an error
+     * object with AEM's status and the response status becomes 502; JSON errors from the servlet
+     * keep a 4xx status and turn a 5xx into 502. The status is set before the envelope is flushed.
+     *
+     * @return whether AEM answered with JSON and a 2xx status.
+     */
+    private boolean copyUpstream(AemHttpTransport.Response upstream, JsonGenerator json,
+                                 HttpServletResponse response) throws IOException {
+        int status = upstream.getStatus();
+        String contentType = upstream.getHeader("Content-Type");
+        boolean success = status >= 200 && status < 300;
+        if (!AemQueryService.isJson(contentType)) {
+            pipelineMetrics.recordError(PipelineMetrics.Stage.EXECUTE);
+            response.setStatus(HttpStatus.BAD_GATEWAY.value());
+            json.writeStartObject();
+            json.writeStringField("error", "AEM returned " + status + " with content type "
+                    + (contentType == null ? "none" : contentType) + " instead of JSON.");
+            json.writeNumberField("status", status);
+            json.writeEndObject();
+            return false;
+        }
+        if (!success) {
+            pipelineMetrics.recordError(PipelineMetrics.Stage.EXECUTE);
+            response.setStatus(status >= 400 && status < 500 ? status : HttpStatus.BAD_GATEWAY.value());
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(upstream.getBody())) {
+            parser.nextToken();
+            json.copyCurrentStructure(parser);
+            json.flush();
+            pipelineMetrics.recordResult(parser.getCurrentLocation().getByteOffset(), -1);
+        }
+        return success;
+    }
+
+    /**
+     * Same as {@link #query} without holding a container thread: translation and execution
+     * run on the pipeline executor, each with its own timeout. The DeferredResult carries an
+     * explicit timeout covering both stages, since the container's default async timeout is
+     * shorter than the stage timeouts.
+     */
+    @PostMapping("/query/async")
+    public DeferredResult<ResponseEntity<String>> queryAsync(
+            @RequestBody Map<String, String> input,
+            @RequestHeader(value = RequestTrace.HEADER, required = false) String traceparent) {
         String question = input.get("question");
-        String jcrQuery = gptService.generateJcrQuery(question);
-        String results = aemQueryService.runQuery(jcrQuery);
-        jcrQuery = jcrQuery.replaceAll("\"","'");
-        results = " {\n" +
-                "  \"query\": \" "+jcrQuery+"\",\n" +
-                "  \"data\":" +results + "}";
-        return ResponseEntity.ok(results);
-    }
-}
+        long start = System.nanoTime();
+        RequestTrace trace = RequestTrace.start(traceparent);
+        DeferredResult<ResponseEntity<String>> deferred = new DeferredResult<>(
+                pipelineExecutor.getRequestTimeoutMs(), asyncError(new TimeoutException()));
+        pipelineExecutor.submit(PipelineExecutor.Stage.TRANSLATE, trace.wrap(() -> translate(question, trace)))
+                .thenCompose(translation -> pipelineExecutor
+                        .submit(PipelineExecutor.Stage.EXECUTE, trace.wrap(() -> execute(trace, () ->
+                                aemQueryService.runQuery(translation.getQuery(), translation.getLimit()))))
+                        .thenApply(results -> ResponseEntity.ok(envelope(trace, translation.getQuery(),
+                                translation.getSource().label(), translation.getRewrites(), results))))
+                .exceptionally(McpController::asyncError)
+                .whenComplete((result, error) -> {
+                    pipelineMetrics.recordRequest("async", System.nanoTime() - start,
+                            result != null && result.getStatusCode().is2xxSuccessful());
+                    deferred.setResult(result != null ? result : asyncError(error));
+                });
+        return deferred;
+    }
+
+    /**
+     * Server-sent events version of {@link #query}. Emits a "query" event as soon as the
+     * statement is known, "results" events with batches of paths as they arrive from AEM, then
+     * a "done" event with the result metadata and stage timings (or an "error" event).
+     */
+    @GetMapping(path = "/query/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter queryStream(@RequestParam("question") String question,
+                                  @RequestHeader(value = RequestTrace.HEADER, required = false) String traceparent) {
+        SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT_MS);
+        long start = System.nanoTime();
+        RequestTrace trace = RequestTrace.start(traceparent);
+
+        pipelineExecutor.submit(PipelineExecutor.Stage.TRANSLATE, trace.wrap(() -> translate(question, trace)))
+                .thenCompose(translation -> {
+                    long translated = System.nanoTime();
+                    Map<String, Object> queryEvent = new LinkedHashMap<>();
+                    queryEvent.put("query", translation.getQuery());
+                    queryEvent.put("source", translation.getSource().label());
+                    if (!translation.getRewrites().isEmpty()) {
+                        queryEvent.put("rewrites", translation.getRewrites());
+                    }
+                    queryEvent.put("translateMs", millisBetween(start, translated));
+                    queryEvent.put("traceId", trace.getTraceId());
+                    sendEvent(emitter, "query", queryEvent);
+
+                    long[] rows = {0};
+                    return pipelineExecutor.submit(PipelineExecutor.Stage.EXECUTE,
+                            trace.wrap(() -> timed(trace, PipelineMetrics.Stage.EXECUTE, () -> aemQueryService.streamQuery(
+                                    translation.getQuery(), translation.getLimit(), STREAM_BATCH_SIZE, batch -> {
+                                        rows[0] += batch.size();
+                                        sendEvent(emitter, "results", Map.of("paths", batch));
+                                    }))))
+                            .thenAccept(fields -> {
+                                long finished = System.nanoTime();
+                                pipelineMetrics.recordResult(-1, rows[0]);
+                                pipelineMetrics.recordRequest("stream", finished - start, !fields.containsKey("error"));
+                                Map<String, Object> doneEvent = new LinkedHashMap<>(fields);
+                                // AEM's complete phases arrive at the end of the body, after its header.
+                                Object aemTiming = doneEvent.remove("timing");
+                                if (aemTiming instanceof Map) {
+                                    trace.recordServerTiming((Map<?, ?>) aemTiming);
+                                }
+                                doneEvent.put("translateMs", millisBetween(start, translated));
+                                doneEvent.put("executeMs", millisBetween(translated, finished));
+                                doneEvent.put("totalMs", millisBetween(start, finished));
+                                doneEvent.put("traceId", trace.getTraceId());
+                                doneEvent.put("timings", trace.getTimings());
+                                sendEvent(emitter, "done", doneEvent);
+                                emitter.complete();
+                            });
+                })
+                .exceptionally(error -> {
+                    pipelineMetrics.recordRequest("stream", System.nanoTime() - start, false);
+                    ResponseEntity<String> failure = asyncError(error);
+                    try {
+                        emitter.send(SseEmitter.event().name("error").data(failure.getBody(), MediaType.APPLICATION_JSON));
+                        emitter.complete();
+                    } catch (IOException | IllegalStateException e) {
+                        emitter.completeWithError(e);
+                    }
+                    return null;
+                });
+        return emitter;
+    }
+
+    /**
+     * A failed send means the client went away; the exception stops reading from AEM.
+     */
+    private static void sendEvent(SseEmitter emitter, String name, Object data) {
+        try {
+            emitter.send(SseEmitter.event().name(name).data(data, MediaType.APPLICATION_JSON));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long millisBetween(long startNanos, long endNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+    }
+
+    private static ResponseEntity<String> asyncError(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        HttpStatus status = cause instanceof TimeoutException ? HttpStatus.GATEWAY_TIMEOUT
+                : cause instanceof RejectedExecutionException ? HttpStatus.SERVICE_UNAVAILABLE
+                : cause instanceof DependencyFailedException ? HttpStatus.BAD_GATEWAY
+                : cause instanceof Sql2SyntaxException ? HttpStatus.UNPROCESSABLE_ENTITY
+                : HttpStatus.INTERNAL_SERVER_ERROR;
+        String message = cause instanceof TimeoutException ? "Timed out" : String.valueOf(cause.getMessage());
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(status);
+        String retryAfter = retryAfter(cause.getCause());
+        if (retryAfter != null) {
+            builder.header("Retry-After", retryAfter);
+        }
+        return builder.body(errorBody(message));
+    }
+
+    private static String errorBody(String message) {
+        StringWriter body = new StringWriter();
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(body)) {
+            json.writeStartObject();
+            json.writeStringField("error", message);
+            json.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return body.toString();
+    }
+
+    /**
+     * Returns one page of results. The first call sends a question (and optionally a limit);
+     * later calls send the "next" cursor from the previous page's data and skip translation.
+     */
+    @PostMapping("/query/page")
+    public ResponseEntity<String> queryPage(@RequestBody Map<String, String> input,
+                                            @RequestHeader(value = RequestTrace.HEADER, required = false)
+                                            String traceparent) {
+        String cursor = input.get("cursor");
+        int limit = pageLimit(input.get("limit"));
+        long start = System.nanoTime();
+        boolean ok = false;
+        RequestTrace trace = RequestTrace.start(traceparent);
+        RequestTrace.Scope scope = trace.attach();
+        try {
+            if (limit <= 0) {
+                return ResponseEntity.badRequest().contentType(MediaType.APPLICATION_JSON)
+                        .body(errorBody("limit must be a positive number."));
+            }
+            if (cursor != null && !cursor.isEmpty()) {
+                String results = execute(trace, () -> aemQueryService.runQueryPage(null, limit, cursor));
+                ResponseEntity<String> page = ResponseEntity.ok(
+                        envelope(trace, "", "cursor", Collections.emptyList(), results));
+                ok = true;
+                return page;
+            }
+            Translation translation = translate(input.get("question"), trace);
+            String results = execute(trace, () -> aemQueryService.runQueryPage(translation.getQuery(), limit, null));
+            ResponseEntity<String> page = ResponseEntity.ok(envelope(trace, translation.getQuery(),
+                    translation.getSource().label(), translation.getRewrites(), results));
+            ok = true;
+            return page;
+        } finally {
+            scope.close();
+            pipelineMetrics.recordRequest("page", System.nanoTime() - start, ok);
+        }
+    }
+
+    /**
+     * The page size from the request, the default when none is given, or 0 when the value is
+     * not a positive number.
+     */
+    private static int pageLimit(String value) {
+        if (value == null || value.isEmpty()) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Runs an AEM call that returns the whole response body as a String and records the
+     * execute time and result size.
+     */
+    private String execute(RequestTrace trace, Supplier<String> call) {
+        String results = timed(trace, PipelineMetrics.Stage.EXECUTE, call);
+        pipelineMetrics.recordResult(results.length(), -1);
+        return results;
+    }
+
+    private <T> T timed(RequestTrace trace, PipelineMetrics.Stage stage, Supplier<T> task) {
+        long start = System.nanoTime();
+        try {
+            return task.get();
+        } catch (RuntimeException e) {
+            pipelineMetrics.recordError(stage);
+            throw e;
+        } finally {
+            recordStage(trace, stage, System.nanoTime() - start);
+        }
+    }
+
+    private void recordStage(RequestTrace trace, PipelineMetrics.Stage stage, long nanos) {
+        pipelineMetrics.recordStage(stage, nanos);
+        trace.addPhase(stage.name().toLowerCase(Locale.ROOT), nanos);
+    }
+
+    /**
+     * Statements that fail local validation never reach AEM.
+     */
+    @ExceptionHandler(Sql2SyntaxException.class)
+    public ResponseEntity<Map<String, Object>> invalidStatement(Sql2SyntaxException e) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("query", e.getStatement());
+        body.put("error", e.getMessage());
+        body.put("position", e.getPosition());
+        return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(body);
+    }
+
+    /**
+     * A dependency refused by its {@link DependencyGuard}, or too many questions in flight.
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<Map<String, Object>> unavailable(RejectedExecutionException e) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("error", e.getMessage());
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE);
+        String retryAfter = retryAfter(e.getCause());
+        if (retryAfter != null) {
+            builder.header("Retry-After", retryAfter);
+        }
+        return builder.body(body);
+    }
+
+    /**
+     * OpenAI or AEM failed after its retries, or answered with something that could not be read.
+     */
+    @ExceptionHandler(DependencyFailedException.class)
+    public ResponseEntity<Map<String, Object>> dependencyFailed(DependencyFailedException e) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("error", e.getMessage());
+        return ResponseEntity.status(HttpStatus.BAD_GATEWAY).body(body);
+    }
+
+    /**
+     * The Retry-After value in seconds for a dependency refused by its guard, or null when the
+     * error is something else or the guard does not know when it will try again.
+     */
+    private static String retryAfter(Throwable error) {
+        if (!(error instanceof DependencyUnavailableException)) {
+            return null;
+        }
+        long retryAfterMs = ((DependencyUnavailableException) error).getRetryAfterMs();
+        return retryAfterMs > 0 ? String.valueOf(TimeUnit.MILLISECONDS.toSeconds(retryAfterMs + 999)) : null;
+    }
+
+    /**
+     * Copies the results, a JSON response body checked by AemQueryService, into "data" through
+     * the parser, so a body that is not well-formed fails with 502 instead of being spliced into
+     * the envelope. The response time recorded is the time to build the envelope up to its
+     * "timings", which come last.
+     */
+    private String envelope(RequestTrace trace, String jcrQuery, String source, List<String> rewrites,
+                            String results) {
+        long start = System.nanoTime();
+        StringWriter writer = new StringWriter(results.length() + jcrQuery.length() + 256);
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(writer)) {
+            json.writeStartObject();
+            json.writeStringField("query", jcrQuery);
+            json.writeStringField("source", source);
+            writeRewrites(json, rewrites);
+            json.writeStringField("traceId", trace.getTraceId());
+            json.writeFieldName("data");
+            try (JsonParser parser = JSON_FACTORY.createParser(results)) {
+                if (parser.nextToken() == null) {
+                    throw new JsonParseException(parser, "AEM returned an empty body.");
+                }
+                json.copyCurrentStructure(parser);
+            } catch (JsonProcessingException e) {
+                pipelineMetrics.recordError(PipelineMetrics.Stage.EXECUTE);
+                throw new DependencyFailedException("AEM", e);
+            }
+            recordStage(trace, PipelineMetrics.Stage.RESPOND, System.nanoTime() - start);
+            writeTimings(json, trace);
+            json.writeEndObject();
+        } catch (IOException e) {
+            pipelineMetrics.recordError(PipelineMetrics.Stage.RESPOND);
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * "timings": client phases in ms, and AEM's phases from its Server-Timing header under
+     * "aem". AEM sets the header before streaming its body, so for large results it may hold
+     * only login and query; the complete phases are then in the data's own "timing".
+     */
+    private static void writeTimings(JsonGenerator json, RequestTrace trace) throws IOException {
+        json.writeObjectFieldStart("timings");
+        for (Map.Entry<String, Object> timing : trace.getTimings().entrySet()) {
+            if (timing.getValue() instanceof Map) {
+                json.writeObjectFieldStart(timing.getKey());
+                for (Map.Entry<?, ?> phase : ((Map<?, ?>) timing.getValue()).entrySet()) {
+                    json.writeNumberField(String.valueOf(phase.getKey()), ((Number) phase.getValue()).doubleValue());
+                }
+                json.writeEndObject();
+            } else {
+                json.writeNumberField(timing.getKey(), ((Number) timing.getValue()).longValue());
+            }
+        }
+        json.writeEndObject();
+    }
+
+    private static void writeRewrites(JsonGenerator json, List<String> rewrites) throws IOException {
+        if (!rewrites.isEmpty()) {
+            json.writeArrayFieldStart("rewrites");
+            for (String rewrite : rewrites) {
+                json.writeString(rewrite);
+            }
+            json.writeEndArray();
+        }
+    }
+
+    /**
+     * Uses the local rules when one matches and only falls back to GptService otherwise, then
+     * validates and normalizes the statement. A cached translation that does not validate is
+     * dropped so the next attempt asks the model again.
+     */
+    private Translation translate(String question, RequestTrace trace) {
+        long start = System.nanoTime();
+        Translation translation;
+        try {
+            translation = ruleBasedTranslator.translate(question);
+            if (translation == null) {
+                translation = gptService.translate(question);
+            }
+        } catch (RuntimeException e) {
+            pipelineMetrics.recordError(PipelineMetrics.Stage.TRANSLATE);
+            throw e;
+        }
+        try {
+            Translation normalized = sql2Normalizer.normalize(translation);
+            long nanos = System.nanoTime() - start;
+            pipelineMetrics.recordTranslation(translation.getSource(), nanos);
+            trace.addPhase("translate", nanos);
+            return normalized;
+        } catch (Sql2SyntaxException e) {
+            pipelineMetrics.recordError(PipelineMetrics.Stage.TRANSLATE);
+            if (translation.getSource() != Translation.Source.RULES) {
+                translationCache.remove(question);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stage latencies, result sizes, pool usage and cache counters; see {@link PipelineMetrics}.
+     * JSON by default, the Prometheus text format with format=prometheus.
+     */
+    @GetMapping("/metrics")
+    public ResponseEntity<?> metrics(@RequestParam(name = "format", required = false) String format) {
+        if ("prometheus".equals(format)) {
+            return ResponseEntity.ok()
+                    .contentType(MediaType.parseMediaType("text/plain; version=0.0.4; charset=utf-8"))
+                    .body(pipelineMetrics.toPrometheus());
+        }
+        return ResponseEntity.ok(pipelineMetrics.getMetrics());
+    }
+
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, Object>> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("aemPool", aemHttpTransport.getPoolStats());
+        stats.put("aemRouting", aemInstanceRouter.getStats());
+        stats.put("openai", gptService.getStats());
+        stats.put("translationCache", translationCache.getStats());
+        stats.put("translationRules", ruleBasedTranslator.getStats());
+        stats.put("promptContext", promptContextBuilder.getStats());
+        stats.put("pipeline", pipelineExecutor.getStats());
+        stats.put("sql2", sql2Normalizer.getStats());
+        return ResponseEntity.ok(stats);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,142 @@
+package com.aem.mcp.client;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs the blocking stages of the asynchronous /mcp/query pipeline (translation, then the AEM
+ * call) off the servlet container's worker threads.
+ *
+ * On a JVM with virtual threads each stage gets its own virtual thread; otherwise a dedicated
+ * thread pool is used whose queue holds at most mcp.async.queue-capacity waiting stages. Either
+ * way at most mcp.async.max-in-flight stages are accepted at once and each stage has its own
+ * timeout. A timed-out stage completes its future exceptionally; the blocked call itself
+ * finishes in the background.
+ */
+@Component
+public class PipelineExecutor {
+
+    public enum Stage {
+        TRANSLATE, EXECUTE
+    }
+
+    /**
+     * Head room over the stage timeouts for the servlet container's async request timeout, so
+     * a stage timeout always wins and the caller gets the pipeline's own 504.
+     */
+    private static final long REQUEST_TIMEOUT_GRACE_MS = 5000;
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final long translateTimeoutMs;
+    private final long executeTimeoutMs;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public PipelineExecutor(@Value("${mcp.async.threads:64}") int threads,
+                            @Value("${mcp.async.max-in-flight:4096}") int maxInFlight,
+                            @Value("${mcp.async.queue-capacity:1024}") int queueCapacity,
+                            @Value("${mcp.async.translate-timeout-ms:30000}") long translateTimeoutMs,
+                            @Value("${mcp.async.execute-timeout-ms:60000}") long executeTimeoutMs) {
+        ExecutorService virtual = virtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : boundedExecutor(threads, queueCapacity);
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.translateTimeoutMs = translateTimeoutMs;
+        this.executeTimeoutMs = executeTimeoutMs;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() when the running JVM has it. The project
+     * still compiles for an older target, so it is looked up reflectively.
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService boundedExecutor(int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "mcp-pipeline-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public <T> CompletableFuture<T> submit(Stage stage, Supplier<T> task) {
+        if (!inFlight.tryAcquire()) {
+            rejected.incrementAndGet();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Too many questions in flight."));
+        }
+        CompletableFuture<T> future;
+        try {
+            future = CompletableFuture.supplyAsync(task, executor);
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            rejected.incrementAndGet();
+            return CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((result, error) -> inFlight.release());
+
+        long timeoutMs = stage == Stage.TRANSLATE ? translateTimeoutMs : executeTimeoutMs;
+        return future.copy().orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((result, error) -> {
+            if (error instanceof TimeoutException) {
+                timeouts.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * How long a request may stay asynchronous: both stages back to back plus a grace period.
+     */
+    public long getRequestTimeoutMs() {
+        return translateTimeoutMs + executeTimeoutMs + REQUEST_TIMEOUT_GRACE_MS;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("virtualThreads", virtualThreads);
+        stats.put("inFlight", maxInFlight - inFlight.availablePermits());
+        stats.put("maxInFlight", maxInFlight);
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            stats.put("activeThreads", pool.getActiveCount());
+            stats.put("queued", pool.getQueue().size());
+        }
+        stats.put("rejected", rejected.get());
+        stats.put("timeouts", timeouts.get());
+        return stats;
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,275 @@
+package com.aem.mcp.client;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and size metrics of the /mcp/query endpoints, served by /mcp/metrics as JSON or in
+ * the Prometheus text format.
+ *
+ * Stages of a question:
+ * translate - rules, translation cache or OpenAI, then local validation; by translation source.
+ * execute - the AEM call, up to the first byte of the response where the body is streamed on.
+ * respond - building or copying the response to the caller.
+ * Each endpoint also gets a request timer by outcome (ok or error), and AEM responses a size
+ * distribution in bytes and, where paths are parsed on the client, rows.
+ *
+ * Percentiles (p50, p90, p95, p99) are over the last mcp.metrics.window-minutes; counts, sums
+ * and max since startup. Pool usage and cache hits are read from their components when the
+ * metrics are requested, so they cost nothing in between.
+ */
+@Component
+public class PipelineMetrics {
+
+    public static final double[] QUANTILES = {0.5, 0.9, 0.95, 0.99};
+    private static final int WINDOW_SLOTS = 5;
+
+    public enum Stage {
+        TRANSLATE, EXECUTE, RESPOND
+    }
+
+    /**
+     * One histogram of a metric family with its labels.
+     */
+    private static final class Series {
+        final String family;
+        final Map<String, String> labels;
+        final Histogram histogram;
+
+        Series(String family, Map<String, String> labels, Histogram histogram) {
+            this.family = family;
+            this.labels = labels;
+            this.histogram = histogram;
+        }
+    }
+
+    private final long windowMs;
+    private final AemHttpTransport aemHttpTransport;
+    private final PipelineExecutor pipelineExecutor;
+    private final TranslationCache translationCache;
+    private final AemInstanceRouter aemInstanceRouter;
+    private final ConcurrentMap<String, Series> series = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Stage, AtomicLong> errors = new ConcurrentHashMap<>();
+
+    public PipelineMetrics(@Value("${mcp.metrics.window-minutes:5}") long windowMinutes,
+                           AemHttpTransport aemHttpTransport, PipelineExecutor pipelineExecutor,
+                           TranslationCache translationCache, AemInstanceRouter aemInstanceRouter) {
+        this.windowMs = TimeUnit.MINUTES.toMillis(windowMinutes);
+        this.aemHttpTransport = aemHttpTransport;
+        this.pipelineExecutor = pipelineExecutor;
+        this.translationCache = translationCache;
+        this.aemInstanceRouter = aemInstanceRouter;
+    }
+
+    public void recordTranslation(Translation.Source source, long nanos) {
+        histogram("mcp_stage_seconds", "stage", "translate", "source", source.label()).record(nanos);
+    }
+
+    public void recordStage(Stage stage, long nanos) {
+        histogram("mcp_stage_seconds", "stage", stage.name().toLowerCase(Locale.ROOT)).record(nanos);
+    }
+
+    public void recordError(Stage stage) {
+        errors.computeIfAbsent(stage, s -> new AtomicLong()).incrementAndGet();
+    }
+
+    public void recordRequest(String endpoint, long nanos, boolean ok) {
+        histogram("mcp_request_seconds", "endpoint", endpoint, "outcome", ok ? "ok" : "error").record(nanos);
+    }
+
+    /**
+     * @param rows paths in the result, or a negative number when they were not counted.
+     */
+    public void recordResult(long bytes, long rows) {
+        if (bytes >= 0) {
+            histogram("mcp_result_bytes").record(bytes);
+        }
+        if (rows >= 0) {
+            histogram("mcp_result_rows").record(rows);
+        }
+    }
+
+    private Histogram histogram(String family, String... labels) {
+        StringBuilder key = new StringBuilder(family);
+        for (String label : labels) {
+            key.append('|').append(label);
+        }
+        return series.computeIfAbsent(key.toString(), k -> {
+            Map<String, String> map = new LinkedHashMap<>();
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                map.put(labels[i], labels[i + 1]);
+            }
+            return new Series(family, map, new Histogram(windowMs, WINDOW_SLOTS));
+        }).histogram;
+    }
+
+    private List<Series> sortedSeries() {
+        List<Series> list = new ArrayList<>(series.values());
+        list.sort((a, b) -> (a.family + a.labels).compareTo(b.family + b.labels));
+        return list;
+    }
+
+    private static boolean isTimer(String family) {
+        return family.endsWith("_seconds");
+    }
+
+    /**
+     * Times in milliseconds, sizes as recorded.
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (Series s : sortedSeries()) {
+            Histogram.Snapshot snapshot = s.histogram.snapshot();
+            double scale = isTimer(s.family) ? 1e6 : 1;
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("name", s.family.replace("_seconds", "_ms"));
+            entry.putAll(s.labels);
+            entry.put("count", snapshot.getCount());
+            entry.put("mean", round(snapshot.getMean() / scale));
+            entry.put("max", round(snapshot.getMax() / scale));
+            entry.put("windowCount", snapshot.getWindowCount());
+            for (double q : QUANTILES) {
+                entry.put(quantileName(q), round(snapshot.percentile(q) / scale));
+            }
+            list.add(entry);
+        }
+        metrics.put("windowMinutes", TimeUnit.MILLISECONDS.toMinutes(windowMs));
+        metrics.put("histograms", list);
+        Map<String, Object> errorCounts = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            AtomicLong count = errors.get(stage);
+            errorCounts.put(stage.name().toLowerCase(Locale.ROOT), count == null ? 0 : count.get());
+        }
+        metrics.put("errors", errorCounts);
+        metrics.put("counters", counters());
+        metrics.put("gauges", gauges());
+        return metrics;
+    }
+
+    /**
+     * Current pool, concurrency and cache usage, flattened into name to number.
+     */
+    private Map<String, Number> gauges() {
+        Map<String, Number> gauges = new LinkedHashMap<>();
+        Map<String, Object> pool = aemHttpTransport.getPoolStats();
+        for (String name : new String[]{"leased", "available", "pending", "max"}) {
+            gauges.put("mcp_aem_pool_" + name, (Number) pool.get(name));
+        }
+        Map<String, Object> pipeline = pipelineExecutor.getStats();
+        gauges.put("mcp_pipeline_in_flight", (Number) pipeline.get("inFlight"));
+        gauges.put("mcp_pipeline_max_in_flight", (Number) pipeline.get("maxInFlight"));
+        if (pipeline.containsKey("activeThreads")) {
+            gauges.put("mcp_pipeline_active_threads", (Number) pipeline.get("activeThreads"));
+            gauges.put("mcp_pipeline_queued", (Number) pipeline.get("queued"));
+        }
+        Map<String, Object> guard = castMap(aemInstanceRouter.getStats().get("guard"));
+        gauges.put("mcp_aem_in_flight", (Number) guard.get("inFlight"));
+        gauges.put("mcp_aem_concurrency_limit", (Number) guard.get("limit"));
+        Map<String, Object> cache = translationCache.getStats();
+        gauges.put("mcp_translation_cache_size", (Number) cache.get("size"));
+        gauges.put("mcp_translation_cache_max_entries", (Number) cache.get("maxEntries"));
+        return gauges;
+    }
+
+    /**
+     * Cumulative counts kept by other components.
+     */
+    private Map<String, Number> counters() {
+        Map<String, Number> counters = new LinkedHashMap<>();
+        Map<String, Object> cache = translationCache.getStats();
+        for (String name : new String[]{"hits", "misses", "evictions", "expirations"}) {
+            counters.put("mcp_translation_cache_" + name + "_total", (Number) cache.get(name));
+        }
+        Map<String, Object> pipeline = pipelineExecutor.getStats();
+        counters.put("mcp_pipeline_rejected_total", (Number) pipeline.get("rejected"));
+        counters.put("mcp_pipeline_timeouts_total", (Number) pipeline.get("timeouts"));
+        return counters;
+    }
+
+    /**
+     * Prometheus text exposition format: histograms as summaries in seconds, errors as a
+     * counter and the gauges.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        String family = null;
+        for (Series s : sortedSeries()) {
+            if (!s.family.equals(family)) {
+                family = s.family;
+                out.append("# TYPE ").append(family).append(" summary\n");
+            }
+            Histogram.Snapshot snapshot = s.histogram.snapshot();
+            double scale = isTimer(s.family) ? 1e9 : 1;
+            for (double q : QUANTILES) {
+                out.append(family).append(labels(s.labels, "quantile", String.valueOf(q))).append(' ')
+                        .append(snapshot.percentile(q) / scale).append('\n');
+            }
+            out.append(family).append("_sum").append(labels(s.labels, null, null)).append(' ')
+                    .append(snapshot.getSum() / scale).append('\n');
+            out.append(family).append("_count").append(labels(s.labels, null, null)).append(' ')
+                    .append(snapshot.getCount()).append('\n');
+        }
+        out.append("# TYPE mcp_stage_errors_total counter\n");
+        for (Stage stage : Stage.values()) {
+            AtomicLong count = errors.get(stage);
+            out.append("mcp_stage_errors_total")
+                    .append(labels(Collections.singletonMap("stage", stage.name().toLowerCase(Locale.ROOT)), null, null))
+                    .append(' ').append(count == null ? 0 : count.get()).append('\n');
+        }
+        for (Map.Entry<String, Number> counter : counters().entrySet()) {
+            out.append("# TYPE ").append(counter.getKey()).append(" counter\n");
+            out.append(counter.getKey()).append(' ').append(counter.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Number> gauge : gauges().entrySet()) {
+            out.append("# TYPE ").append(gauge.getKey()).append(" gauge\n");
+            out.append(gauge.getKey()).append(' ').append(gauge.getValue()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String labels(Map<String, String> labels, String extraName, String extraValue) {
+        if (labels.isEmpty() && extraName == null) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder("{");
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            appendLabel(out, label.getKey(), label.getValue());
+        }
+        if (extraName != null) {
+            appendLabel(out, extraName, extraValue);
+        }
+        out.setLength(out.length() - 1);
+        return out.append('}').toString();
+    }
+
+    private static void appendLabel(StringBuilder out, String name, String value) {
+        out.append(name).append("=\"")
+                .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                .append("\",");
+    }
+
+    private static String quantileName(double quantile) {
+        return "p" + String.valueOf(quantile * 100).replaceFirst("\\.0$", "");
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> castMap(Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : Collections.emptyMap();
+    }
+}
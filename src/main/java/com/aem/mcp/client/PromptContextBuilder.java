@@ -0,0 +1,156 @@
+package com.aem.mcp.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the schema part of the GptService prompt from the component catalog that the
+ * /bin/allreport servlet produces: node types, component resource types and the property
+ * names their dialogs write.
+ *
+ * The catalog is kept within a token budget, cached, and rebuilt in the background so that
+ * no request waits on AEM for it.
+ */
+@Component
+public class PromptContextBuilder {
+
+    private static final String REPORT_PATH = "/bin/allreport";
+    private static final int CHARS_PER_TOKEN = 4;
+
+    private static final String BASE_CONTEXT =
+            "Node types: cq:Page (pages, properties under jcr:content), nt:unstructured (component instances), "
+                    + "rep:User, rep:Group (rep:principalName, rep:members).\n"
+                    + "Page properties: jcr:content/jcr:title, jcr:content/jcr:createdBy, jcr:content/jcr:created, "
+                    + "jcr:content/cq:lastModifiedBy, jcr:content/cq:lastModified, jcr:content/cq:lastReplicatedBy, "
+                    + "jcr:content/cq:lastReplicated, jcr:content/cq:template.\n";
+
+    private final AemInstanceRouter transport;
+    private final String searchPath;
+    private final int tokenBudget;
+    private final long refreshMinutes;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private volatile String context = BASE_CONTEXT;
+    private volatile int componentCount;
+    private volatile int includedComponents;
+    private volatile long lastRefresh;
+    private volatile long failures;
+    private ScheduledExecutorService refresher;
+
+    public PromptContextBuilder(AemInstanceRouter transport,
+                                @Value("${mcp.prompt-context.search-path:/apps/trp-compose/components}") String searchPath,
+                                @Value("${mcp.prompt-context.token-budget:1500}") int tokenBudget,
+                                @Value("${mcp.prompt-context.refresh-minutes:30}") long refreshMinutes) {
+        this.transport = transport;
+        this.searchPath = searchPath;
+        this.tokenBudget = tokenBudget;
+        this.refreshMinutes = refreshMinutes;
+    }
+
+    @PostConstruct
+    public void start() {
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "prompt-context-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, 0, refreshMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * The current catalog. Until the first refresh succeeds only the built-in node types are
+     * included.
+     */
+    public String getContext() {
+        return context;
+    }
+
+    void refresh() {
+        try {
+            JsonNode report = transport.get(REPORT_PATH + "?searchPath=" + URLEncoder.encode(searchPath, StandardCharsets.UTF_8),
+                    response -> {
+                        if (response.getStatus() != 200) {
+                            throw new IOException("Component report returned " + response.getStatus());
+                        }
+                        return objectMapper.readTree(response.getBody());
+                    });
+            context = build(report.path("components"));
+            lastRefresh = System.currentTimeMillis();
+        } catch (Exception e) {
+            // Keep serving the previous catalog; the next scheduled run tries again.
+            failures++;
+        }
+    }
+
+    private String build(JsonNode components) {
+        StringBuilder catalog = new StringBuilder(BASE_CONTEXT);
+        catalog.append("Components (sling:resourceType: dialog properties):\n");
+        int budgetChars = tokenBudget * CHARS_PER_TOKEN;
+        int total = components.size();
+        int included = 0;
+
+        for (JsonNode component : components) {
+            String line = componentLine(component);
+            if (catalog.length() + line.length() > budgetChars) {
+                break;
+            }
+            catalog.append(line);
+            included++;
+        }
+        if (included < total) {
+            catalog.append("(").append(total - included).append(" more components omitted)\n");
+        }
+        componentCount = total;
+        includedComponents = included;
+        return catalog.toString();
+    }
+
+    private static String componentLine(JsonNode component) {
+        String resourceType = component.path("componentPath").asText().replaceFirst("^/(apps|libs)/", "");
+        Set<String> properties = new LinkedHashSet<>();
+        JsonNode config = component.path("componentConfig");
+        for (Iterator<JsonNode> tabs = config.elements(); tabs.hasNext(); ) {
+            for (JsonNode field : tabs.next()) {
+                String name = field.path("name").asText();
+                if (!name.isEmpty()) {
+                    properties.add(name);
+                }
+            }
+        }
+        return resourceType + ": " + String.join(",", properties) + "\n";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("estimatedTokens", context.length() / CHARS_PER_TOKEN);
+        stats.put("tokenBudget", tokenBudget);
+        stats.put("components", componentCount);
+        stats.put("includedComponents", includedComponents);
+        stats.put("lastRefresh", lastRefresh);
+        stats.put("failures", failures);
+        return stats;
+    }
+}
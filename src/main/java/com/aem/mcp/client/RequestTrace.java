@@ -0,0 +1,159 @@
+package com.aem.mcp.client;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Trace id and phase timings of one /mcp/query request.
+ *
+ * The trace id comes from the caller's W3C traceparent header, or is generated when there is
+ * none. While a trace is attached to the current thread, AemInstanceRouter sends it to AEM as
+ * traceparent (with a fresh span id per call) and records the Server-Timing header of the AEM
+ * response here, so the envelope can show where the time went: the client's own phases
+ * (translate, execute, respond) next to AEM's (login, query, iterate, serialize).
+ *
+ * Pipeline stages run on other threads; {@link #wrap} carries the trace over.
+ */
+public final class RequestTrace {
+
+    public static final String HEADER = "traceparent";
+
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+    private static final Pattern TRACEPARENT = Pattern.compile("^[0-9a-f]{2}-([0-9a-f]{32})-[0-9a-f]{16}-[0-9a-f]{2}$");
+    private static final Pattern SERVER_TIMING = Pattern.compile("([A-Za-z0-9_.-]+)[^,]*?;\\s*dur=([0-9.]+)");
+
+    private final String traceId;
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private Map<String, Double> serverTimings = Collections.emptyMap();
+
+    private RequestTrace(String traceId) {
+        this.traceId = traceId;
+    }
+
+    /**
+     * @param traceparent the caller's traceparent header, or null.
+     */
+    public static RequestTrace start(String traceparent) {
+        if (traceparent != null) {
+            Matcher matcher = TRACEPARENT.matcher(traceparent.trim());
+            if (matcher.matches() && !matcher.group(1).equals("00000000000000000000000000000000")) {
+                return new RequestTrace(matcher.group(1));
+            }
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new RequestTrace(String.format("%016x%016x", random.nextLong(), random.nextLong()));
+    }
+
+    /**
+     * The trace attached to this thread, or null.
+     */
+    public static RequestTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Attaches the trace to this thread until the returned scope is closed.
+     */
+    public Scope attach() {
+        RequestTrace previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * The task with this trace attached while it runs, for handing to another thread.
+     */
+    public <T> Supplier<T> wrap(Supplier<T> task) {
+        return () -> {
+            Scope scope = attach();
+            try {
+                return task.get();
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * traceparent value for an outbound call: this trace id with a new span id.
+     */
+    public String traceparent() {
+        return "00-" + traceId + "-" + String.format("%016x", ThreadLocalRandom.current().nextLong() | 1) + "-01";
+    }
+
+    /**
+     * Adds the time of a client phase; repeated phases add up.
+     */
+    public synchronized void addPhase(String phase, long nanos) {
+        phases.merge(phase, nanos, Long::sum);
+    }
+
+    /**
+     * Keeps the phases of an AEM response's Server-Timing header, replacing those of an
+     * earlier response (a retried call reports its last try).
+     */
+    public synchronized void recordServerTiming(String header) {
+        if (header == null || header.isEmpty()) {
+            return;
+        }
+        Map<String, Double> timings = new LinkedHashMap<>();
+        Matcher matcher = SERVER_TIMING.matcher(header);
+        while (matcher.find()) {
+            timings.put(matcher.group(1), Double.parseDouble(matcher.group(2)));
+        }
+        serverTimings = timings;
+    }
+
+    /**
+     * Same for the phases of a response's "timing" object, which AEM writes after the body and
+     * which is therefore complete even when the header was sent early.
+     */
+    public synchronized void recordServerTiming(Map<?, ?> timing) {
+        Map<String, Double> timings = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> phase : timing.entrySet()) {
+            if (phase.getValue() instanceof Number) {
+                timings.put(String.valueOf(phase.getKey()), ((Number) phase.getValue()).doubleValue());
+            }
+        }
+        if (!timings.isEmpty()) {
+            serverTimings = timings;
+        }
+    }
+
+    /**
+     * Client phases in milliseconds ("translateMs", ...), then AEM's under "aem" when it sent
+     * any.
+     */
+    public synchronized Map<String, Object> getTimings() {
+        Map<String, Object> timings = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            timings.put(phase.getKey() + "Ms", TimeUnit.NANOSECONDS.toMillis(phase.getValue()));
+        }
+        if (!serverTimings.isEmpty()) {
+            timings.put("aem", new LinkedHashMap<>(serverTimings));
+        }
+        return timings;
+    }
+}
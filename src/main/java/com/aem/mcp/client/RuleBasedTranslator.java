@@ -0,0 +1,191 @@
+package com.aem.mcp.client;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Translates the common question shapes into JCR-SQL2 locally, without calling OpenAI.
+ *
+ * The shapes are the ones the GptService prompt describes:
+ * - pages created / modified / replicated by a user under a path
+ * - users in a group
+ * - pages containing a component resource type
+ *
+ * A rule only applies when it matches the whole question, so anything with extra conditions
+ * (dates, templates, ...) is left to the model.
+ */
+@Component
+public class RuleBasedTranslator {
+
+    private static final String DEFAULT_COMPONENT_SCOPE = "/content/trp-ref";
+
+    private static final String LEAD = "(?:(?:please\\s+)?(?:show|list|find|get|give|return)\\s+(?:me\\s+)?)?(?:all\\s+)?(?:the\\s+)?";
+    private static final String TAIL = "\\s*[?.!]*";
+    private static final String ACTION = "created|modified|updated|edited|changed|replicated|published|activated|touched";
+    private static final String ACTIONS = "(?<actions>(?:" + ACTION + ")(?:\\s*(?:,|/|or|and|,\\s*or|,\\s*and)\\s*(?:" + ACTION + "))*)";
+    private static final String QUOTED_OR_WORD = "\"[^\"]+\"|'[^']+'|\\S+";
+    private static final String USER = "(?<user>" + QUOTED_OR_WORD + ")";
+    private static final String PATH = "(?<path>['\"]?/[^\\s'\"]*['\"]?)";
+    private static final String SCOPE = "(?:under|in|below|within|inside)\\s+";
+
+    private static final Pattern PAGES_BY_USER_UNDER_PATH = Pattern.compile(
+            LEAD + "pages?\\s+(?:that\\s+(?:were|are|was|is|have\\s+been|has\\s+been)\\s+)?" + ACTIONS
+                    + "\\s+by\\s+" + USER + "\\s+" + SCOPE + PATH + TAIL,
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern PAGES_UNDER_PATH_BY_USER = Pattern.compile(
+            LEAD + "pages?\\s+" + SCOPE + PATH + "\\s+(?:that\\s+(?:were|are|was|is|have\\s+been|has\\s+been)\\s+)?"
+                    + ACTIONS + "\\s+by\\s+" + USER + TAIL,
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern USERS_IN_GROUP = Pattern.compile(
+            LEAD + "(?:users?|members)\\s+(?:in|of|belonging\\s+to)\\s+(?:the\\s+)?(?:group\\s+)?"
+                    + "(?<group>" + QUOTED_OR_WORD + ")(?:\\s+group)?" + TAIL,
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern PAGES_WITH_COMPONENT = Pattern.compile(
+            LEAD + "pages?\\s+(?:that\\s+|which\\s+)?(?:has|have|contains?|containing|with|using|uses)\\s+"
+                    + "(?:an?\\s+|the\\s+)?(?:child\\s+)?component\\s+(?<type>['\"]?[^\\s'\"]+['\"]?)"
+                    + "(?:\\s+" + SCOPE + PATH + ")?" + TAIL,
+            Pattern.CASE_INSENSITIVE);
+
+    private final Map<String, AtomicLong> matches = new LinkedHashMap<>();
+    private final AtomicLong misses = new AtomicLong();
+
+    public RuleBasedTranslator() {
+        matches.put("pagesByUser", new AtomicLong());
+        matches.put("usersInGroup", new AtomicLong());
+        matches.put("pagesWithComponent", new AtomicLong());
+    }
+
+    /**
+     * @return the translation, or null when no rule matches the question.
+     */
+    public Translation translate(String question) {
+        String query = toSql2(question == null ? "" : question.trim().replaceAll("\\s+", " "));
+        if (query == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        return new Translation(query, Translation.Source.RULES);
+    }
+
+    private String toSql2(String question) {
+        Matcher m = PAGES_BY_USER_UNDER_PATH.matcher(question);
+        if (!m.matches()) {
+            m = PAGES_UNDER_PATH_BY_USER.matcher(question);
+        }
+        if (m.matches()) {
+            matches.get("pagesByUser").incrementAndGet();
+            return pagesByUser(m.group("actions"), unquote(m.group("user")), path(m.group("path")));
+        }
+
+        m = PAGES_WITH_COMPONENT.matcher(question);
+        if (m.matches()) {
+            matches.get("pagesWithComponent").incrementAndGet();
+            String scope = m.group("path") != null ? path(m.group("path")) : DEFAULT_COMPONENT_SCOPE;
+            return pagesWithComponent(resourceType(m.group("type")), scope);
+        }
+
+        m = USERS_IN_GROUP.matcher(question);
+        if (m.matches()) {
+            matches.get("usersInGroup").incrementAndGet();
+            return usersInGroup(unquote(m.group("group")));
+        }
+        return null;
+    }
+
+    private static String pagesByUser(String actions, String user, String path) {
+        Set<String> properties = new LinkedHashSet<>();
+        for (String action : actions.toLowerCase(Locale.ROOT).split("[^a-z]+")) {
+            switch (action) {
+                case "created":
+                    properties.add("jcr:content/jcr:createdBy");
+                    break;
+                case "modified":
+                case "updated":
+                case "edited":
+                case "changed":
+                    properties.add("jcr:content/cq:lastModifiedBy");
+                    break;
+                case "replicated":
+                case "published":
+                case "activated":
+                    properties.add("jcr:content/cq:lastReplicatedBy");
+                    break;
+                case "touched":
+                    properties.add("jcr:content/jcr:createdBy");
+                    properties.add("jcr:content/cq:lastModifiedBy");
+                    properties.add("jcr:content/cq:lastReplicatedBy");
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        StringBuilder condition = new StringBuilder();
+        for (String property : properties) {
+            if (condition.length() > 0) {
+                condition.append(" OR ");
+            }
+            condition.append("s.[").append(property).append("] = ").append(literal(user));
+        }
+        String filter = properties.size() > 1 ? "(" + condition + ")" : condition.toString();
+        return "SELECT * FROM [cq:Page] AS s WHERE ISDESCENDANTNODE(s, " + literal(path) + ") AND " + filter;
+    }
+
+    /**
+     * The group's rep:members holds the jcr:uuid of each direct member (users and nested
+     * groups), so the members are joined on it. Only m's columns are selected, so the server
+     * reads the member paths from the rows (the query has two selectors, which rules out
+     * getNodes()). Both selectors are kept below /home, where Oak stores authorizables.
+     * Groups with so many members that Oak moved some into rep:membersList return only those
+     * still in rep:members.
+     */
+    private static String usersInGroup(String group) {
+        return "SELECT m.* FROM [rep:Group] AS g INNER JOIN [rep:Authorizable] AS m"
+                + " ON g.[rep:members] = m.[jcr:uuid] WHERE ISDESCENDANTNODE(g, '/home')"
+                + " AND ISDESCENDANTNODE(m, '/home') AND g.[rep:principalName] = " + literal(group);
+    }
+
+    private static String pagesWithComponent(String resourceType, String scope) {
+        return "SELECT * FROM [nt:unstructured] AS s WHERE ISDESCENDANTNODE(s, " + literal(scope)
+                + ") AND s.[sling:resourceType] = " + literal(resourceType);
+    }
+
+    private static String unquote(String value) {
+        return value.replaceAll("^['\"]|['\"]$", "").replaceAll("[,.;:?!]+$", "");
+    }
+
+    private static String path(String value) {
+        String path = unquote(value).replaceAll("/{2,}", "/");
+        return path.length() > 1 ? path.replaceAll("/+$", "") : path;
+    }
+
+    /**
+     * sling:resourceType is stored relative to the search path, so /apps/site/components/x
+     * becomes site/components/x.
+     */
+    private static String resourceType(String value) {
+        return unquote(value).replaceFirst("^/(apps|libs)/", "");
+    }
+
+    private static String literal(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        matches.forEach((rule, count) -> stats.put(rule, count.get()));
+        stats.put("misses", misses.get());
+        return stats;
+    }
+}
@@ -0,0 +1,98 @@
+package com.aem.mcp.client;
+
+import com.aem.mcp.common.Sql2Statement;
+import com.aem.mcp.common.Sql2SyntaxException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks every translation locally before it is sent to AEM, so a malformed statement fails
+ * here instead of costing a round trip and an Oak parse.
+ *
+ * Valid statements are passed on in canonical form (see {@link Sql2Statement}) with these
+ * rewrites applied:
+ * scope - a query that is not limited to a path gets ISDESCENDANTNODE for the root configured
+ * for its node type in mcp.sql2.scopes, so Oak can use the path restriction instead of walking
+ * the whole repository. Only the listed types are scoped: there is no catch-all, since a type
+ * such as cq:Component or nt:unstructured lives under /apps, /libs and /conf as well.
+ * redundantOr - duplicate OR branches and branches another branch already covers are dropped.
+ * JCR-SQL2 has no LIMIT clause, so the limit is carried on the translation and sent as the
+ * servlet's limit parameter instead (mcp.sql2.max-results, 0 for none).
+ *
+ * Code fences and a trailing semicolon, which the model sometimes adds, are stripped first.
+ */
+@Component
+public class Sql2Normalizer {
+
+    public static final String SCOPE = "scope";
+    public static final String REDUNDANT_OR = "redundantOr";
+
+    private final Map<String, String> scopes = new LinkedHashMap<>();
+    private final long maxResults;
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong scoped = new AtomicLong();
+    private final AtomicLong redundantOr = new AtomicLong();
+
+    public Sql2Normalizer(
+            @Value("${mcp.sql2.scopes:rep:User=/home,rep:Group=/home,rep:Authorizable=/home,rep:SystemUser=/home,cq:Template=/conf}") String scopes,
+            @Value("${mcp.sql2.max-results:10000}") long maxResults) {
+        for (String entry : scopes.split(",")) {
+            int separator = entry.lastIndexOf('=');
+            if (separator > 0) {
+                this.scopes.put(entry.substring(0, separator).trim(), entry.substring(separator + 1).trim());
+            }
+        }
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * @throws Sql2SyntaxException when the translated statement is not valid JCR-SQL2.
+     */
+    public Translation normalize(Translation translation) {
+        checked.incrementAndGet();
+        Sql2Statement statement;
+        try {
+            statement = Sql2Statement.parse(strip(translation.getQuery()));
+        } catch (Sql2SyntaxException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+        List<String> rewrites = new ArrayList<>();
+        if (statement.removeRedundantBranches()) {
+            rewrites.add(REDUNDANT_OR);
+            redundantOr.incrementAndGet();
+        }
+        if (statement.addDefaultScope(scopes::get)) {
+            rewrites.add(SCOPE);
+            scoped.incrementAndGet();
+        }
+        return new Translation(statement.toString(), translation.getSource(), rewrites, maxResults);
+    }
+
+    private static String strip(String query) {
+        String text = query == null ? "" : query.trim();
+        text = text.replaceFirst("^```[A-Za-z0-9]*\\s*", "").replaceFirst("\\s*```$", "").trim();
+        while (text.endsWith(";")) {
+            text = text.substring(0, text.length() - 1).trim();
+        }
+        return text;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("checked", checked.get());
+        stats.put("rejected", rejected.get());
+        stats.put(SCOPE, scoped.get());
+        stats.put(REDUNDANT_OR, redundantOr.get());
+        stats.put("maxResults", maxResults);
+        return stats;
+    }
+}
@@ -0,0 +1,211 @@
+package com.aem.mcp.client;
+
+import com.aem.mcp.common.Sql2Statement;
+import com.aem.mcp.common.Sql2SyntaxException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assembles a JCR-SQL2 statement from streamed completion chunks and reports when it is
+ * syntactically complete, so the query can be dispatched before the model stops generating.
+ *
+ * The statement starts at the first SELECT. It is complete once, outside string literals,
+ * brackets and parentheses, the text after FROM reaches a semicolon or a closing code fence.
+ * Otherwise it completes when the stream ends ({@link #finish}). A blank line does not end it
+ * while streaming, since the model may put one before WHERE; it is only used at the end to drop
+ * an explanation that follows the statement.
+ */
+public class Sql2StreamAssembler {
+
+    private final StringBuilder text = new StringBuilder();
+    private int start = -1;
+    private int scanned;
+    private int end = -1;
+
+    private boolean inLiteral;
+    private int bracketDepth;
+    private int parenDepth;
+    private boolean seenFrom;
+    private final List<Integer> blankLines = new ArrayList<>();
+
+    /**
+     * @return true once the statement is complete; further chunks are ignored.
+     */
+    public boolean append(String chunk) {
+        if (end >= 0) {
+            return true;
+        }
+        text.append(chunk);
+        if (start < 0) {
+            int select = indexOfIgnoreCase(text, "select", 0);
+            if (select < 0) {
+                return false;
+            }
+            start = select;
+            scanned = select;
+        }
+        scan();
+        return end >= 0;
+    }
+
+    private void scan() {
+        while (scanned < text.length()) {
+            char c = text.charAt(scanned);
+            if (inLiteral) {
+                if (c == '\'') {
+                    if (scanned + 1 >= text.length()) {
+                        // Cannot tell a closing quote from an escaped '' yet.
+                        return;
+                    }
+                    if (text.charAt(scanned + 1) == '\'') {
+                        scanned++;
+                    } else {
+                        inLiteral = false;
+                    }
+                }
+            } else if (c == '\'') {
+                inLiteral = true;
+            } else if (c == '[') {
+                bracketDepth++;
+            } else if (c == ']') {
+                bracketDepth = Math.max(0, bracketDepth - 1);
+            } else if (c == '(') {
+                parenDepth++;
+            } else if (c == ')') {
+                parenDepth = Math.max(0, parenDepth - 1);
+            } else if (bracketDepth == 0 && parenDepth == 0) {
+                if (!seenFrom) {
+                    Boolean from = isKeywordAt("from");
+                    if (from == null) {
+                        return;
+                    }
+                    seenFrom = from;
+                } else {
+                    Boolean terminator = isTerminatorAt();
+                    if (terminator == null) {
+                        return;
+                    }
+                    if (terminator) {
+                        end = scanned;
+                        return;
+                    }
+                    Boolean blankLine = isBlankLineAt();
+                    if (blankLine == null) {
+                        return;
+                    }
+                    if (blankLine) {
+                        blankLines.add(scanned);
+                    }
+                }
+            }
+            scanned++;
+        }
+    }
+
+    /**
+     * @return whether the statement ends at the current position, or null when that depends on
+     * text that has not arrived yet.
+     */
+    private Boolean isTerminatorAt() {
+        char c = text.charAt(scanned);
+        if (c == ';') {
+            return true;
+        }
+        if (c == '`') {
+            if (text.length() - scanned < 3) {
+                return null;
+            }
+            return "```".contentEquals(text.subSequence(scanned, scanned + 3));
+        }
+        return false;
+    }
+
+    /**
+     * @return whether a blank line starts at the current position, or null when that depends on
+     * text that has not arrived yet.
+     */
+    private Boolean isBlankLineAt() {
+        if (text.charAt(scanned) == '\n') {
+            int next = scanned + 1;
+            while (next < text.length() && (text.charAt(next) == ' ' || text.charAt(next) == '\t' || text.charAt(next) == '\r')) {
+                next++;
+            }
+            if (next == text.length()) {
+                return null;
+            }
+            return text.charAt(next) == '\n';
+        }
+        return false;
+    }
+
+    private Boolean isKeywordAt(String keyword) {
+        int i = scanned;
+        int after = i + keyword.length();
+        if (after >= text.length()) {
+            return text.substring(i).equalsIgnoreCase(keyword.substring(0, text.length() - i)) ? null : false;
+        }
+        if (!text.substring(i, after).equalsIgnoreCase(keyword)) {
+            return false;
+        }
+        boolean startsWord = i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1));
+        return startsWord && !Character.isLetterOrDigit(text.charAt(after));
+    }
+
+    private static int indexOfIgnoreCase(CharSequence haystack, String needle, int from) {
+        for (int i = from; i + needle.length() <= haystack.length(); i++) {
+            if (haystack.subSequence(i, i + needle.length()).toString().equalsIgnoreCase(needle)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Ends the statement when the stream has ended without a terminator. The whole text is
+     * taken when it is a valid statement; otherwise it is cut at the last blank line that leaves
+     * one, which drops an explanation the model added after the statement.
+     */
+    public void finish() {
+        if (end >= 0 || start < 0) {
+            return;
+        }
+        end = text.length();
+        if (isValid(end)) {
+            return;
+        }
+        for (int i = blankLines.size() - 1; i >= 0; i--) {
+            if (isValid(blankLines.get(i))) {
+                end = blankLines.get(i);
+                return;
+            }
+        }
+    }
+
+    private boolean isValid(int to) {
+        try {
+            Sql2Statement.parse(clean(text.substring(start, to)));
+            return true;
+        } catch (Sql2SyntaxException e) {
+            return false;
+        }
+    }
+
+    public boolean isComplete() {
+        return end >= 0;
+    }
+
+    /**
+     * The statement assembled so far, or the whole text when no SELECT was seen.
+     */
+    public String getStatement() {
+        if (start < 0) {
+            return text.toString().trim();
+        }
+        return clean(text.substring(start, end >= 0 ? end : text.length()));
+    }
+
+    private static String clean(String statement) {
+        return statement.replaceAll("`{3}\\s*$", "").trim();
+    }
+}
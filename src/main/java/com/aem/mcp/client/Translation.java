@@ -0,0 +1,56 @@
+package com.aem.mcp.client;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A JCR-SQL2 statement together with the path that produced it.
+ */
+public class Translation {
+
+    public enum Source {
+        RULES, CACHE, LLM;
+
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final String query;
+    private final Source source;
+    private final List<String> rewrites;
+    private final long limit;
+
+    public Translation(String query, Source source) {
+        this(query, source, Collections.emptyList(), 0);
+    }
+
+    public Translation(String query, Source source, List<String> rewrites, long limit) {
+        this.query = query;
+        this.source = source;
+        this.rewrites = rewrites;
+        this.limit = limit;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    /**
+     * Names of the rewrites Sql2Normalizer applied to the statement; empty when none.
+     */
+    public List<String> getRewrites() {
+        return rewrites;
+    }
+
+    /**
+     * Maximum number of results to fetch, or 0 for all.
+     */
+    public long getLimit() {
+        return limit;
+    }
+}
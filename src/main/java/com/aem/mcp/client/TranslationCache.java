@@ -0,0 +1,232 @@
+package com.aem.mcp.client;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of question to JCR-SQL2 translations sitting in front of the OpenAI call.
+ *
+ * Questions are normalized before lookup so that "Pages created by bob under /content/site/"
+ * and "pages created by Bob under '/content/site'?" share an entry. Entries are evicted
+ * least-recently-used once the cache is full and expire after a fixed time to live.
+ *
+ * When mcp.translation-cache.file is set the cache is loaded from that file at startup and
+ * written back periodically and on shutdown.
+ */
+@Component
+public class TranslationCache {
+
+    private static final long FLUSH_INTERVAL_SECONDS = 30;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Path file;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final LinkedHashMap<String, Entry> entries;
+    private ScheduledExecutorService flusher;
+    private boolean dirty;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    public TranslationCache(@Value("${mcp.translation-cache.max-entries:1000}") int maxEntries,
+                            @Value("${mcp.translation-cache.ttl-minutes:1440}") long ttlMinutes,
+                            @Value("${mcp.translation-cache.file:}") String file) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = TimeUnit.MINUTES.toMillis(ttlMinutes);
+        this.file = file.isEmpty() ? null : Paths.get(file);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > TranslationCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * A cached translation. Public with a default constructor so it can be read back from disk.
+     */
+    public static class Entry {
+        public String query;
+        public long created;
+
+        public Entry() {
+        }
+
+        Entry(String query, long created) {
+            this.query = query;
+            this.created = created;
+        }
+    }
+
+    public synchronized String get(String question) {
+        String key = normalize(question);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (isExpired(entry, System.currentTimeMillis())) {
+            entries.remove(key);
+            expirations++;
+            misses++;
+            dirty = true;
+            return null;
+        }
+        hits++;
+        return entry.query;
+    }
+
+    public synchronized void put(String question, String query) {
+        entries.put(normalize(question), new Entry(query, System.currentTimeMillis()));
+        dirty = true;
+    }
+
+    /**
+     * Drops the entry for a question, e.g. when its translation turned out to be invalid.
+     */
+    public synchronized void remove(String question) {
+        if (entries.remove(normalize(question)) != null) {
+            dirty = true;
+        }
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", entries.size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("expirations", expirations);
+        stats.put("persistent", file != null);
+        return stats;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.created > ttlMillis;
+    }
+
+    /**
+     * Builds the cache key for a question. Words are lower-cased and stripped of punctuation,
+     * whitespace is collapsed, and repository paths lose their quotes, duplicate slashes and
+     * trailing slash but keep their case since JCR paths are case sensitive.
+     */
+    static String normalize(String question) {
+        if (question == null) {
+            return "";
+        }
+        String[] tokens = question.replaceAll("[\"'`?!,;()\\[\\]{}]", " ").trim().split("\\s+");
+        StringBuilder key = new StringBuilder();
+        for (String token : tokens) {
+            String normalized;
+            if (token.startsWith("/")) {
+                normalized = token.replaceAll("/{2,}", "/").replaceAll("[/.:]+$", "");
+            } else {
+                normalized = token.toLowerCase(Locale.ROOT).replaceAll("^[.:]+|[.:]+$", "");
+            }
+            if (!normalized.isEmpty()) {
+                if (key.length() > 0) {
+                    key.append(' ');
+                }
+                key.append(normalized);
+            }
+        }
+        return key.toString();
+    }
+
+    @PostConstruct
+    public void load() {
+        if (file == null) {
+            return;
+        }
+        if (Files.exists(file)) {
+            try {
+                Map<String, Entry> stored = objectMapper.readValue(file.toFile(), new TypeReference<LinkedHashMap<String, Entry>>() {
+                });
+                long now = System.currentTimeMillis();
+                synchronized (this) {
+                    stored.forEach((key, entry) -> {
+                        if (entry != null && entry.query != null && !isExpired(entry, now)) {
+                            entries.put(key, entry);
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                // A corrupt or unreadable cache file only means a cold start.
+            }
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "translation-cache-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush();
+    }
+
+    void flush() {
+        if (file == null) {
+            return;
+        }
+        Map<String, Entry> snapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                if (isExpired(it.next(), now)) {
+                    it.remove();
+                    expirations++;
+                }
+            }
+            snapshot = new LinkedHashMap<>(entries);
+            dirty = false;
+        }
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            objectMapper.writeValue(tmp.toFile(), snapshot);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.aem.mcp.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact alternative to the JSON {"paths": [...]} response of /bin/mcp/query, negotiated with
+ * Accept: application/x-mcp-paths.
+ *
+ * Layout: the magic bytes "MCPP" and a version byte, then one record per path (tag 1, the
+ * length of the prefix shared with the previous path, the length of the rest and the rest as
+ * UTF-8, lengths as varints), then tag 0 followed by the remaining envelope fields ("count",
+ * "next", "truncated", ...) as a JSON object up to the end of the stream.
+ *
+ * Sibling paths share most of their bytes, so the path list shrinks to a fraction of its JSON
+ * size and decoding needs no JSON tokenizing or string unescaping. The servlet writes it and the
+ * client reads it, so it lives outside both packages and depends on neither.
+ */
+public final class PathWireFormat {
+
+    public static final String MEDIA_TYPE = "application/x-mcp-paths";
+
+    private static final byte[] MAGIC = {'M', 'C', 'P', 'P', 1};
+    private static final int PATH = 1;
+    private static final int END = 0;
+
+    private PathWireFormat() {
+    }
+
+    /**
+     * True when an Accept header lists the compact format.
+     */
+    public static boolean accepts(String acceptHeader) {
+        if (acceptHeader == null) {
+            return false;
+        }
+        for (String range : acceptHeader.split(",")) {
+            String[] parts = range.split(";");
+            if (parts[0].trim().equalsIgnoreCase(MEDIA_TYPE)) {
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim().replace(" ", "");
+                    if (parameter.matches("q=0(\\.0*)?")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Front-codes paths into path records. Used by the {@link Writer} and by callers that keep
+     * the records in memory instead (the servlet's result cache), which read them back with
+     * {@link Reader#records}.
+     */
+    public static final class Encoder {
+        private byte[] previous = new byte[0];
+        private byte[] pending;
+        private int shared;
+
+        /**
+         * Front-codes the path against the previous one written.
+         *
+         * @return the size of its record in bytes.
+         */
+        public int encode(String path) {
+            pending = path.getBytes(StandardCharsets.UTF_8);
+            shared = 0;
+            int max = Math.min(pending.length, previous.length);
+            while (shared < max && pending[shared] == previous[shared]) {
+                shared++;
+            }
+            int suffix = pending.length - shared;
+            return 1 + varIntSize(shared) + varIntSize(suffix) + suffix;
+        }
+
+        /**
+         * Writes the record of the path last encoded, which becomes the previous path.
+         */
+        public void write(OutputStream out) throws IOException {
+            out.write(PATH);
+            writeVarInt(out, shared);
+            writeVarInt(out, pending.length - shared);
+            out.write(pending, shared, pending.length - shared);
+            previous = pending;
+        }
+
+        private static int varIntSize(int value) {
+            int bytes = 1;
+            while ((value & ~0x7F) != 0) {
+                value >>>= 7;
+                bytes++;
+            }
+            return bytes;
+        }
+
+        private static void writeVarInt(OutputStream out, int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    public static final class Writer {
+        private final OutputStream out;
+        private final Encoder encoder = new Encoder();
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new BufferedOutputStream(out, 8192);
+            this.out.write(MAGIC);
+        }
+
+        public void path(String path) throws IOException {
+            encoder.encode(path);
+            encoder.write(out);
+        }
+
+        /**
+         * Ends the path list. The caller writes the trailing JSON object to the underlying
+         * stream next.
+         */
+        public void end() throws IOException {
+            out.write(END);
+            out.flush();
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    public static final class Reader {
+        private final InputStream in;
+        private final boolean unterminated;
+        private byte[] previous = new byte[256];
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new BufferedInputStream(in, 8192);
+            this.unterminated = false;
+            byte[] magic = this.in.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not an " + MEDIA_TYPE + " stream.");
+            }
+        }
+
+        private Reader(byte[] records) {
+            this.in = new ByteArrayInputStream(records);
+            this.unterminated = true;
+        }
+
+        /**
+         * Reads path records written by an {@link Encoder}, without the stream's magic bytes.
+         * {@link #next()} returns null at the end of the array.
+         */
+        public static Reader records(byte[] records) {
+            return new Reader(records);
+        }
+
+        /**
+         * @return the next path, or null once the path list has ended.
+         */
+        public String next() throws IOException {
+            int tag = in.read();
+            if (tag == END || (tag < 0 && unterminated)) {
+                return null;
+            }
+            if (tag != PATH) {
+                throw new EOFException("Truncated " + MEDIA_TYPE + " stream.");
+            }
+            int shared = readVarInt();
+            int suffix = readVarInt();
+            int length = shared + suffix;
+            if (previous.length < length) {
+                previous = Arrays.copyOf(previous, Math.max(length, previous.length * 2));
+            }
+            if (in.readNBytes(previous, shared, suffix) != suffix) {
+                throw new EOFException("Truncated " + MEDIA_TYPE + " stream.");
+            }
+            return new String(previous, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * The trailing JSON object; valid once {@link #next()} has returned null.
+         */
+        public InputStream trailer() {
+            return in;
+        }
+
+        private int readVarInt() throws IOException {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Truncated " + MEDIA_TYPE + " stream.");
+                }
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
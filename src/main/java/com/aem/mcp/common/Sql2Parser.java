@@ -0,0 +1,565 @@
+package com.aem.mcp.common;
+
+import com.aem.mcp.common.Sql2Statement.Call;
+import com.aem.mcp.common.Sql2Statement.Column;
+import com.aem.mcp.common.Sql2Statement.Comparison;
+import com.aem.mcp.common.Sql2Statement.Identifier;
+import com.aem.mcp.common.Sql2Statement.In;
+import com.aem.mcp.common.Sql2Statement.Join;
+import com.aem.mcp.common.Sql2Statement.Junction;
+import com.aem.mcp.common.Sql2Statement.Literal;
+import com.aem.mcp.common.Sql2Statement.Node;
+import com.aem.mcp.common.Sql2Statement.Not;
+import com.aem.mcp.common.Sql2Statement.NullCheck;
+import com.aem.mcp.common.Sql2Statement.Ordering;
+import com.aem.mcp.common.Sql2Statement.Path;
+import com.aem.mcp.common.Sql2Statement.Property;
+import com.aem.mcp.common.Sql2Statement.Select;
+import com.aem.mcp.common.Sql2Statement.Selector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Recursive-descent parser for the JCR-SQL2 grammar of JSR 283 plus the Oak extensions the
+ * translators produce (UNION, IN, NOT LIKE, OPTION and the NATIVE / SIMILAR / SPELLCHECK /
+ * SUGGEST constraints).
+ */
+final class Sql2Parser {
+
+    private static final Set<String> KEYWORDS = Set.of("SELECT", "FROM", "WHERE", "AND", "OR", "NOT", "ORDER",
+            "BY", "ASC", "DESC", "AS", "ON", "JOIN", "INNER", "LEFT", "RIGHT", "OUTER", "UNION", "ALL", "OPTION",
+            "IS", "NULL", "LIKE", "IN");
+    private static final Set<String> SEARCH_FUNCTIONS = Set.of("NATIVE", "SIMILAR", "SPELLCHECK", "SUGGEST");
+    private static final Set<String> SELECTOR_FUNCTIONS = Set.of("NAME", "LOCALNAME", "SCORE", "PATH");
+    private static final Set<String> VALUE_FUNCTIONS = Set.of("LOWER", "UPPER", "LENGTH", "COALESCE", "FIRST");
+    private static final Set<String> OPERATORS = Set.of("=", "<>", "<", "<=", ">", ">=");
+
+    private enum Type { WORD, NAME, STRING, NUMBER, BIND, SYMBOL, END }
+
+    private static final class Token {
+        final Type type;
+        final String text;
+        final int position;
+
+        Token(Type type, String text, int position) {
+            this.type = type;
+            this.text = text;
+            this.position = position;
+        }
+
+        boolean is(String value) {
+            return (type == Type.WORD && text.equalsIgnoreCase(value)) || (type == Type.SYMBOL && text.equals(value));
+        }
+
+        String describe() {
+            switch (type) {
+                case END:
+                    return "end of statement";
+                case NAME:
+                    return Sql2Statement.bracket(text);
+                case STRING:
+                    return Sql2Statement.quote(text);
+                case BIND:
+                    return "$" + text;
+                default:
+                    return "'" + text + "'";
+            }
+        }
+    }
+
+    private final String statement;
+    private final List<Token> tokens;
+    private int index;
+
+    Sql2Parser(String statement) {
+        this.statement = statement;
+        this.tokens = tokenize(statement);
+    }
+
+    static boolean isKeyword(String word) {
+        return KEYWORDS.contains(word.toUpperCase(Locale.ROOT));
+    }
+
+    Sql2Statement parse() {
+        List<Select> selects = new ArrayList<>();
+        List<Boolean> unionAll = new ArrayList<>();
+        selects.add(parseSelect());
+        while (readIf("UNION")) {
+            unionAll.add(readIf("ALL"));
+            selects.add(parseSelect());
+        }
+        List<Ordering> orderings = new ArrayList<>();
+        if (readIf("ORDER")) {
+            read("BY");
+            do {
+                Node operand = parseOperand();
+                boolean descending = readIf("DESC");
+                if (!descending) {
+                    readIf("ASC");
+                }
+                orderings.add(new Ordering(operand, descending));
+            } while (readIf(","));
+        }
+        String options = readIf("OPTION") ? parseOptions() : null;
+        if (current().type != Type.END) {
+            throw error("unexpected " + current().describe());
+        }
+        Sql2Statement parsed = new Sql2Statement(statement, selects, unionAll, orderings, options);
+        parsed.validate();
+        return parsed;
+    }
+
+    private Select parseSelect() {
+        read("SELECT");
+        List<Column> columns = new ArrayList<>();
+        if (!readIf("*")) {
+            do {
+                Node operand = parseOperand();
+                columns.add(new Column(operand, readIf("AS") ? readName() : null));
+            } while (readIf(","));
+        }
+        read("FROM");
+        List<Selector> selectors = new ArrayList<>();
+        List<Join> joins = new ArrayList<>();
+        selectors.add(parseSelector());
+        while (true) {
+            String type;
+            if (readIf("JOIN")) {
+                type = "INNER JOIN";
+            } else if (readIf("INNER")) {
+                read("JOIN");
+                type = "INNER JOIN";
+            } else if (readIf("LEFT") || current().is("RIGHT")) {
+                type = readIf("RIGHT") ? "RIGHT OUTER JOIN" : "LEFT OUTER JOIN";
+                readIf("OUTER");
+                read("JOIN");
+            } else {
+                break;
+            }
+            selectors.add(parseSelector());
+            read("ON");
+            joins.add(new Join(type, parseJoinCondition()));
+        }
+        Node where = readIf("WHERE") ? parseOr() : null;
+        return new Select(columns, selectors, joins, where);
+    }
+
+    private Selector parseSelector() {
+        int position = current().position;
+        String type = readName();
+        String alias = null;
+        if (readIf("AS")) {
+            alias = readName();
+        } else if (current().type == Type.WORD && !isKeyword(current().text)) {
+            alias = readName();
+        }
+        return new Selector(type, alias, position);
+    }
+
+    private Node parseJoinCondition() {
+        Token token = current();
+        if (token.type == Type.WORD && peek().is("(")
+                && Sql2Statement.PATH_FUNCTIONS.contains(token.text.toUpperCase(Locale.ROOT))) {
+            return parsePathFunction(true);
+        }
+        Node left = parseOperand();
+        read("=");
+        Node right = parseOperand();
+        if (!(left instanceof Property) || ((Property) left).selector == null
+                || !(right instanceof Property) || ((Property) right).selector == null) {
+            throw error("a join condition compares a property of each selector", token.position);
+        }
+        return new Comparison(left, "=", right);
+    }
+
+    private Node parseOr() {
+        List<Node> children = new ArrayList<>();
+        children.add(parseAnd());
+        while (readIf("OR")) {
+            children.add(parseAnd());
+        }
+        return children.size() == 1 ? children.get(0) : new Junction(true, children);
+    }
+
+    private Node parseAnd() {
+        List<Node> children = new ArrayList<>();
+        children.add(parseNot());
+        while (readIf("AND")) {
+            children.add(parseNot());
+        }
+        return children.size() == 1 ? children.get(0) : new Junction(false, children);
+    }
+
+    private Node parseNot() {
+        return readIf("NOT") ? new Not(parseNot()) : parseCondition();
+    }
+
+    private Node parseCondition() {
+        if (readIf("(")) {
+            Node inner = parseOr();
+            read(")");
+            return inner;
+        }
+        Token token = current();
+        if (token.type == Type.WORD && peek().is("(")) {
+            String name = token.text.toUpperCase(Locale.ROOT);
+            if (Sql2Statement.PATH_FUNCTIONS.contains(name)) {
+                return parsePathFunction(false);
+            }
+            if (name.equals("CONTAINS")) {
+                advance();
+                advance();
+                List<Node> args = new ArrayList<>();
+                args.add(parseOperand());
+                read(",");
+                args.add(parseOperand());
+                read(")");
+                if (!(args.get(0) instanceof Property)) {
+                    throw error("CONTAINS searches a property or *", token.position);
+                }
+                return new Call(name, args, Call.Kind.VALUE, token.position);
+            }
+            if (SEARCH_FUNCTIONS.contains(name)) {
+                advance();
+                advance();
+                return new Call(name, parseArguments(), Call.Kind.OPAQUE, token.position);
+            }
+        }
+        Node left = parseOperand();
+        if (readIf("IS")) {
+            boolean not = readIf("NOT");
+            read("NULL");
+            return new NullCheck(left, not);
+        }
+        boolean not = readIf("NOT");
+        if (readIf("LIKE")) {
+            return new Comparison(left, not ? "NOT LIKE" : "LIKE", parseOperand());
+        }
+        if (readIf("IN")) {
+            read("(");
+            List<Node> values = parseArguments();
+            if (values.isEmpty()) {
+                throw error("IN needs at least one value");
+            }
+            return new In(left, values, not);
+        }
+        if (not) {
+            throw error("expected LIKE or IN after NOT but found " + current().describe());
+        }
+        Token operator = current();
+        String text = operator.text.equals("!=") ? "<>" : operator.text;
+        if (operator.type != Type.SYMBOL || !OPERATORS.contains(text)) {
+            throw error("expected a comparison but found " + operator.describe());
+        }
+        advance();
+        return new Comparison(left, text, parseOperand());
+    }
+
+    /**
+     * ISDESCENDANTNODE, ISCHILDNODE or ISSAMENODE. In a WHERE clause they take an optional
+     * selector and a path; as a join condition two selectors (and, for ISSAMENODE, an optional
+     * path).
+     */
+    private Node parsePathFunction(boolean join) {
+        Token function = current();
+        String name = function.text.toUpperCase(Locale.ROOT);
+        advance();
+        read("(");
+        List<Token> args = new ArrayList<>();
+        do {
+            Token arg = current();
+            if (arg.type != Type.WORD && arg.type != Type.NAME && arg.type != Type.STRING && arg.type != Type.BIND) {
+                throw error("expected a selector or path but found " + arg.describe());
+            }
+            advance();
+            args.add(arg);
+        } while (readIf(","));
+        read(")");
+
+        int selectors = join ? 2 : args.size() - 1;
+        int max = join ? (name.equals("ISSAMENODE") ? 3 : 2) : 2;
+        if (args.size() < (join ? 2 : 1) || args.size() > max) {
+            throw error(name + (join ? " joins two selectors" : " takes an optional selector and a path"),
+                    function.position);
+        }
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            Token arg = args.get(i);
+            if (i < selectors) {
+                if (arg.type != Type.WORD && arg.type != Type.NAME) {
+                    throw error("expected a selector name but found " + arg.describe(), arg.position);
+                }
+                nodes.add(new Identifier(arg.text, arg.position));
+            } else if (arg.type == Type.BIND) {
+                nodes.add(new Literal("$" + arg.text, arg.position));
+            } else if (arg.type == Type.WORD) {
+                throw error("expected a path but found " + arg.describe(), arg.position);
+            } else {
+                nodes.add(new Path(arg.text, arg.position));
+            }
+        }
+        return new Call(name, nodes, Call.Kind.PATH, function.position);
+    }
+
+    private Node parseOperand() {
+        Token token = current();
+        switch (token.type) {
+            case STRING:
+                advance();
+                return new Literal(Sql2Statement.quote(token.text), token.position);
+            case NUMBER:
+                advance();
+                return new Literal(token.text, token.position);
+            case BIND:
+                advance();
+                return new Literal("$" + token.text, token.position);
+            case SYMBOL:
+                if (token.is("-") && peek().type == Type.NUMBER) {
+                    advance();
+                    Token number = current();
+                    advance();
+                    return new Literal("-" + number.text, token.position);
+                }
+                if (token.is("*")) {
+                    advance();
+                    return new Property(null, null, token.position);
+                }
+                break;
+            case WORD:
+                if (peek().is("(")) {
+                    return parseFunction();
+                }
+                if (isKeyword(token.text)) {
+                    break;
+                }
+                return parseProperty();
+            case NAME:
+                return parseProperty();
+            default:
+                break;
+        }
+        throw error("expected a value or property but found " + token.describe());
+    }
+
+    private Node parseFunction() {
+        Token function = current();
+        String name = function.text.toUpperCase(Locale.ROOT);
+        advance();
+        advance();
+        if (name.equals("CAST")) {
+            Node value = parseOperand();
+            if (!(value instanceof Literal)) {
+                throw error("CAST converts a literal", value.position);
+            }
+            read("AS");
+            Token type = current();
+            if (type.type != Type.WORD) {
+                throw error("expected a property type but found " + type.describe());
+            }
+            advance();
+            read(")");
+            return new Literal("CAST(" + value + " AS " + type.text.toUpperCase(Locale.ROOT) + ")", function.position);
+        }
+        if (SELECTOR_FUNCTIONS.contains(name)) {
+            List<Node> args = new ArrayList<>();
+            if (!readIf(")")) {
+                Token selector = current();
+                args.add(new Identifier(readName(), selector.position));
+                read(")");
+            }
+            return new Call(name, args, Call.Kind.VALUE, function.position);
+        }
+        if (VALUE_FUNCTIONS.contains(name)) {
+            return new Call(name, parseArguments(), Call.Kind.VALUE, function.position);
+        }
+        return new Call(function.text, parseArguments(), Call.Kind.OPAQUE, function.position);
+    }
+
+    /**
+     * Reads comma-separated operands up to and including the closing parenthesis.
+     */
+    private List<Node> parseArguments() {
+        List<Node> args = new ArrayList<>();
+        if (readIf(")")) {
+            return args;
+        }
+        do {
+            args.add(parseOperand());
+        } while (readIf(","));
+        read(")");
+        return args;
+    }
+
+    private Node parseProperty() {
+        int position = current().position;
+        String first = readName();
+        if (!readIf(".")) {
+            return new Property(null, first, position);
+        }
+        if (readIf("*")) {
+            return new Property(first, null, position);
+        }
+        return new Property(first, readName(), position);
+    }
+
+    /**
+     * Keeps OPTION(...) as written apart from spacing; its contents are Oak specific.
+     */
+    private String parseOptions() {
+        read("(");
+        StringBuilder options = new StringBuilder("OPTION(");
+        int depth = 1;
+        boolean first = true;
+        while (true) {
+            Token token = current();
+            if (token.type == Type.END) {
+                throw error("unterminated OPTION");
+            }
+            advance();
+            if (token.is("(")) {
+                depth++;
+            } else if (token.is(")") && --depth == 0) {
+                return options.append(')').toString();
+            }
+            if (!first && !token.is(",") && !token.is(")")) {
+                options.append(' ');
+            }
+            first = token.is("(");
+            options.append(token.type == Type.WORD || token.type == Type.SYMBOL || token.type == Type.NUMBER
+                    ? token.text : token.describe());
+        }
+    }
+
+    private String readName() {
+        Token token = current();
+        if (token.type == Type.NAME || (token.type == Type.WORD && !isKeyword(token.text))) {
+            advance();
+            return token.text;
+        }
+        throw error("expected a name but found " + token.describe());
+    }
+
+    private void read(String expected) {
+        if (!readIf(expected)) {
+            throw error("expected " + expected + " but found " + current().describe());
+        }
+    }
+
+    private boolean readIf(String expected) {
+        if (current().is(expected)) {
+            advance();
+            return true;
+        }
+        return false;
+    }
+
+    private Token current() {
+        return tokens.get(index);
+    }
+
+    private Token peek() {
+        return tokens.get(Math.min(index + 1, tokens.size() - 1));
+    }
+
+    private void advance() {
+        if (index < tokens.size() - 1) {
+            index++;
+        }
+    }
+
+    private Sql2SyntaxException error(String message) {
+        return error(message, current().position);
+    }
+
+    private Sql2SyntaxException error(String message, int position) {
+        return new Sql2SyntaxException(message, statement, position);
+    }
+
+    // ---- tokenizer ----
+
+    private List<Token> tokenize(String text) {
+        List<Token> list = new ArrayList<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            int start = i;
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '[' || c == '\'' || c == '"') {
+                char close = c == '[' ? ']' : c;
+                StringBuilder value = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= length) {
+                        throw error(c == '[' ? "unterminated name" : "unterminated string", start);
+                    }
+                    char d = text.charAt(i++);
+                    if (d == close) {
+                        if (i < length && text.charAt(i) == close) {
+                            i++;
+                        } else {
+                            break;
+                        }
+                    }
+                    value.append(d);
+                }
+                list.add(new Token(c == '[' ? Type.NAME : Type.STRING, value.toString(), start));
+            } else if (Character.isLetter(c) || c == '_') {
+                while (i < length && isWordPart(text.charAt(i))) {
+                    i++;
+                }
+                list.add(new Token(Type.WORD, text.substring(start, i), start));
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < length && Character.isDigit(text.charAt(i + 1)))) {
+                while (i < length && Character.isDigit(text.charAt(i))) {
+                    i++;
+                }
+                if (i < length && text.charAt(i) == '.') {
+                    i++;
+                    while (i < length && Character.isDigit(text.charAt(i))) {
+                        i++;
+                    }
+                }
+                if (i < length && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+                    i++;
+                    if (i < length && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                        i++;
+                    }
+                    while (i < length && Character.isDigit(text.charAt(i))) {
+                        i++;
+                    }
+                }
+                list.add(new Token(Type.NUMBER, text.substring(start, i), start));
+            } else if (c == '$') {
+                i++;
+                while (i < length && isWordPart(text.charAt(i))) {
+                    i++;
+                }
+                if (i == start + 1) {
+                    throw error("expected a bind variable name", start);
+                }
+                list.add(new Token(Type.BIND, text.substring(start + 1, i), start));
+            } else {
+                String two = i + 1 < length ? text.substring(i, i + 2) : "";
+                if (two.equals("<>") || two.equals("<=") || two.equals(">=") || two.equals("!=")) {
+                    i += 2;
+                    list.add(new Token(Type.SYMBOL, two, start));
+                } else if ("(),.*=<>-".indexOf(c) >= 0) {
+                    i++;
+                    list.add(new Token(Type.SYMBOL, String.valueOf(c), start));
+                } else {
+                    throw error("unexpected character '" + c + "'", start);
+                }
+            }
+        }
+        list.add(new Token(Type.END, "", length));
+        return list;
+    }
+
+    private static boolean isWordPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == ':';
+    }
+}
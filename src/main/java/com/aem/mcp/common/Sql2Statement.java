@@ -0,0 +1,871 @@
+package com.aem.mcp.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed JCR-SQL2 statement.
+ *
+ * toString() renders the canonical form: keywords in upper case, node type and property names
+ * in brackets, string literals in single quotes, single spaces and only the parentheses that
+ * operator precedence needs. In a single-selector query, properties and path constraints
+ * without a selector name get the selector's alias. Statements that differ only in spelling
+ * therefore render the same, and the text can be used as a cache key.
+ *
+ * Only the constraint tree is modelled in detail since that is what the rewrites change;
+ * columns, joins and orderings are kept as parsed.
+ */
+public final class Sql2Statement {
+
+    static final String ISDESCENDANTNODE = "ISDESCENDANTNODE";
+    static final Set<String> PATH_FUNCTIONS = Set.of(ISDESCENDANTNODE, "ISCHILDNODE", "ISSAMENODE");
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final String text;
+    private final List<Select> selects;
+    private final List<Boolean> unionAll;
+    private final List<Ordering> orderings;
+    private final String options;
+
+    Sql2Statement(String text, List<Select> selects, List<Boolean> unionAll, List<Ordering> orderings,
+                  String options) {
+        this.text = text;
+        this.selects = selects;
+        this.unionAll = unionAll;
+        this.orderings = orderings;
+        this.options = options;
+    }
+
+    /**
+     * @throws Sql2SyntaxException when the statement does not parse or refers to selectors it
+     *                             does not declare.
+     */
+    public static Sql2Statement parse(String statement) {
+        return new Sql2Parser(statement).parse();
+    }
+
+    // ---- rewrites ----
+
+    /**
+     * Adds ISDESCENDANTNODE(root) to every single-selector query whose constraint does not
+     * already limit it to a path on every branch. The root comes from the selector's node type;
+     * null leaves that query alone.
+     *
+     * @return whether any query was changed.
+     */
+    public boolean addDefaultScope(Function<String, String> rootForType) {
+        boolean changed = false;
+        for (Select select : selects) {
+            if (select.selectors.size() != 1 || isScoped(select.where)) {
+                continue;
+            }
+            Selector selector = select.selectors.get(0);
+            String root = rootForType.apply(selector.type);
+            if (root == null || root.isEmpty()) {
+                continue;
+            }
+            List<Node> args = new ArrayList<>();
+            if (selector.alias != null) {
+                args.add(new Identifier(selector.alias, selector.position));
+            }
+            args.add(new Path(root, selector.position));
+            Node scope = new Call(ISDESCENDANTNODE, args, Call.Kind.PATH);
+            if (select.where == null) {
+                select.where = scope;
+            } else if (select.where instanceof Junction && !((Junction) select.where).or) {
+                ((Junction) select.where).children.add(scope);
+            } else {
+                List<Node> children = new ArrayList<>();
+                children.add(select.where);
+                children.add(scope);
+                select.where = new Junction(false, children);
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * True when the constraint only matches nodes below a path: a path constraint, an AND with
+     * one, or an OR whose branches all are.
+     */
+    private static boolean isScoped(Node node) {
+        if (node instanceof Call) {
+            return ((Call) node).kind == Call.Kind.PATH;
+        }
+        if (node instanceof Junction) {
+            Junction junction = (Junction) node;
+            for (Node child : junction.children) {
+                if (isScoped(child) != junction.or) {
+                    return !junction.or;
+                }
+            }
+            return junction.or;
+        }
+        return false;
+    }
+
+    /**
+     * Flattens nested AND / OR, removes duplicate branches and applies absorption:
+     * A OR (A AND B) becomes A and A AND (A OR B) becomes A.
+     *
+     * @return whether a branch of an OR was dropped.
+     */
+    public boolean removeRedundantBranches() {
+        boolean[] droppedOr = {false};
+        for (Select select : selects) {
+            if (select.where != null) {
+                select.where = simplify(select.where, droppedOr);
+            }
+        }
+        return droppedOr[0];
+    }
+
+    private static Node simplify(Node node, boolean[] droppedOr) {
+        if (node instanceof Not) {
+            Not not = (Not) node;
+            return new Not(simplify(not.child, droppedOr));
+        }
+        if (!(node instanceof Junction)) {
+            return node;
+        }
+        Junction junction = (Junction) node;
+        List<Node> flat = new ArrayList<>();
+        for (Node child : junction.children) {
+            Node simplified = simplify(child, droppedOr);
+            if (simplified instanceof Junction && ((Junction) simplified).or == junction.or) {
+                flat.addAll(((Junction) simplified).children);
+            } else {
+                flat.add(simplified);
+            }
+        }
+        List<Set<String>> terms = new ArrayList<>(flat.size());
+        for (Node child : flat) {
+            terms.add(terms(child, !junction.or));
+        }
+        List<Node> kept = new ArrayList<>();
+        for (int i = 0; i < flat.size(); i++) {
+            boolean redundant = false;
+            for (int j = 0; j < flat.size() && !redundant; j++) {
+                if (i != j && terms.get(i).containsAll(terms.get(j))) {
+                    // Equal term sets are duplicates; keep the first of them.
+                    redundant = terms.get(i).size() > terms.get(j).size() || j < i;
+                }
+            }
+            if (!redundant) {
+                kept.add(flat.get(i));
+            }
+        }
+        if (junction.or && kept.size() < flat.size()) {
+            droppedOr[0] = true;
+        }
+        return kept.size() == 1 ? kept.get(0) : new Junction(junction.or, kept);
+    }
+
+    /**
+     * The canonical texts of a node's conjuncts (or disjuncts).
+     */
+    private static Set<String> terms(Node node, boolean or) {
+        Set<String> terms = new HashSet<>();
+        if (node instanceof Junction && ((Junction) node).or == or) {
+            for (Node child : ((Junction) node).children) {
+                terms.add(child.toString());
+            }
+        } else {
+            terms.add(node.toString());
+        }
+        return terms;
+    }
+
+    // ---- analysis ----
+
+    /**
+     * The paths whose subtrees hold every node the results can depend on: for each selector of
+     * each query, the paths of the ISDESCENDANTNODE / ISCHILDNODE / ISSAMENODE constraints the
+     * WHERE clause ANDs at its top level.
+     *
+     * Empty when no such set can be given, i.e. when some selector is not restricted that way
+     * (only inside an OR or a NOT, by a bind variable, or not at all) or a property path leaves
+     * the selected node with "..". A change anywhere in the repository may then change the
+     * results.
+     */
+    public Set<String> pathScopes() {
+        Set<String> scopes = new LinkedHashSet<>();
+        for (Select select : selects) {
+            List<Node> conjuncts = select.where == null ? Collections.emptyList()
+                    : select.where instanceof Junction && !((Junction) select.where).or
+                    ? ((Junction) select.where).children : Collections.singletonList(select.where);
+            for (Selector selector : select.selectors) {
+                boolean restricted = false;
+                for (Node conjunct : conjuncts) {
+                    String path = restriction(conjunct, selector, select.selectors.size() == 1);
+                    if (path != null) {
+                        scopes.add(path);
+                        restricted = true;
+                    }
+                }
+                if (!restricted) {
+                    return Collections.emptySet();
+                }
+            }
+            for (Column column : select.columns) {
+                if (leavesNode(column.operand)) {
+                    return Collections.emptySet();
+                }
+            }
+            for (Join join : select.joins) {
+                if (leavesNode(join.condition)) {
+                    return Collections.emptySet();
+                }
+            }
+            if (select.where != null && leavesNode(select.where)) {
+                return Collections.emptySet();
+            }
+        }
+        for (Ordering ordering : orderings) {
+            if (leavesNode(ordering.operand)) {
+                return Collections.emptySet();
+            }
+        }
+        return scopes;
+    }
+
+    /**
+     * The path a constraint restricts the selector to, or null.
+     */
+    private static String restriction(Node node, Selector selector, boolean single) {
+        if (!(node instanceof Call) || ((Call) node).kind != Call.Kind.PATH) {
+            return null;
+        }
+        List<Node> args = ((Call) node).args;
+        Node path = args.get(args.size() - 1);
+        if (!(path instanceof Path)) {
+            return null;
+        }
+        boolean ofSelector = args.size() == 1 ? single
+                : args.get(0) instanceof Identifier && ((Identifier) args.get(0)).name.equals(selector.reference());
+        return ofSelector ? ((Path) path).path : null;
+    }
+
+    private static boolean leavesNode(Node node) {
+        if (node instanceof Property) {
+            String name = ((Property) node).name;
+            return name != null && (name.equals("..") || name.startsWith("../") || name.contains("/../")
+                    || name.endsWith("/.."));
+        }
+        if (node instanceof Call) {
+            for (Node arg : ((Call) node).args) {
+                if (leavesNode(arg)) {
+                    return true;
+                }
+            }
+        } else if (node instanceof Junction) {
+            for (Node child : ((Junction) node).children) {
+                if (leavesNode(child)) {
+                    return true;
+                }
+            }
+        } else if (node instanceof Not) {
+            return leavesNode(((Not) node).child);
+        } else if (node instanceof Comparison) {
+            return leavesNode(((Comparison) node).left) || leavesNode(((Comparison) node).right);
+        } else if (node instanceof NullCheck) {
+            return leavesNode(((NullCheck) node).operand);
+        } else if (node instanceof In) {
+            return leavesNode(((In) node).operand);
+        }
+        return false;
+    }
+
+    /**
+     * The selector whose nodes a join's result stands for: the one whose s.* columns it selects,
+     * else the first. Null for a single-selector query, whose rows are its nodes, and for a
+     * UNION.
+     */
+    public String resultSelector() {
+        if (selects.size() != 1 || selects.get(0).selectors.size() < 2) {
+            return null;
+        }
+        Select select = selects.get(0);
+        for (Column column : select.columns) {
+            if (column.operand instanceof Property && ((Property) column.operand).name == null) {
+                return ((Property) column.operand).selector;
+            }
+        }
+        return select.selectors.get(0).reference();
+    }
+
+    /**
+     * The root below which the statement can be run as one query per child subtree: the path
+     * of the ISDESCENDANTNODE that a single-selector query without UNION or ORDER BY ANDs at
+     * the top level of its WHERE clause, when that is its only path constraint. Null for any
+     * other statement.
+     */
+    public String descendantRoot() {
+        Call constraint = descendantConstraint();
+        return constraint != null ? ((Path) constraint.args.get(constraint.args.size() - 1)).path : null;
+    }
+
+    /**
+     * The canonical text with the constraint {@link #descendantRoot} found replaced by the path
+     * function (ISCHILDNODE, ISDESCENDANTNODE or ISSAMENODE) on another path.
+     */
+    public String withPathConstraint(String function, String path) {
+        Call constraint = descendantConstraint();
+        if (constraint == null) {
+            throw new IllegalStateException("The statement has no single top-level ISDESCENDANTNODE.");
+        }
+        List<Node> args = new ArrayList<>(constraint.args.subList(0, constraint.args.size() - 1));
+        args.add(new Path(path, constraint.position));
+        Node replacement = new Call(function, args, Call.Kind.PATH, constraint.position);
+        Select select = selects.get(0);
+        Node where = select.where;
+        if (where == constraint) {
+            select.where = replacement;
+        } else {
+            List<Node> children = new ArrayList<>(((Junction) where).children);
+            children.set(children.indexOf(constraint), replacement);
+            select.where = new Junction(false, children);
+        }
+        try {
+            return toString();
+        } finally {
+            select.where = where;
+        }
+    }
+
+    private Call descendantConstraint() {
+        if (selects.size() != 1 || !orderings.isEmpty()) {
+            return null;
+        }
+        Select select = selects.get(0);
+        if (select.selectors.size() != 1 || select.where == null || countPathCalls(select.where) != 1) {
+            return null;
+        }
+        List<Node> conjuncts = select.where instanceof Junction && !((Junction) select.where).or
+                ? ((Junction) select.where).children : Collections.singletonList(select.where);
+        for (Node conjunct : conjuncts) {
+            if (conjunct instanceof Call && ((Call) conjunct).kind == Call.Kind.PATH
+                    && ((Call) conjunct).name.equals(ISDESCENDANTNODE)) {
+                Call call = (Call) conjunct;
+                return call.args.get(call.args.size() - 1) instanceof Path ? call : null;
+            }
+        }
+        return null;
+    }
+
+    private static int countPathCalls(Node node) {
+        if (node instanceof Call) {
+            return ((Call) node).kind == Call.Kind.PATH ? 1 : 0;
+        }
+        int count = 0;
+        if (node instanceof Junction) {
+            for (Node child : ((Junction) node).children) {
+                count += countPathCalls(child);
+            }
+        } else if (node instanceof Not) {
+            count = countPathCalls(((Not) node).child);
+        }
+        return count;
+    }
+
+    // ---- validation ----
+
+    /**
+     * Checks selector references and paths, and qualifies unqualified references in
+     * single-selector queries.
+     */
+    void validate() {
+        for (Select select : selects) {
+            Map<String, Selector> declared = new LinkedHashMap<>();
+            for (Selector selector : select.selectors) {
+                if (declared.put(selector.reference(), selector) != null) {
+                    throw error("selector '" + selector.reference() + "' is declared twice", selector.position);
+                }
+            }
+            boolean multiple = declared.size() > 1;
+            String implicit = multiple ? null : select.selectors.get(0).alias;
+            for (Column column : select.columns) {
+                check(column.operand, declared, multiple, null);
+            }
+            for (Join join : select.joins) {
+                check(join.condition, declared, false, null);
+            }
+            if (select.where != null) {
+                check(select.where, declared, multiple, implicit);
+            }
+        }
+        if (selects.size() == 1) {
+            Select select = selects.get(0);
+            Map<String, Selector> declared = new LinkedHashMap<>();
+            for (Selector selector : select.selectors) {
+                declared.put(selector.reference(), selector);
+            }
+            boolean multiple = declared.size() > 1;
+            for (Ordering ordering : orderings) {
+                check(ordering.operand, declared, multiple, multiple ? null : select.selectors.get(0).alias);
+            }
+        }
+    }
+
+    private void check(Node node, Map<String, Selector> declared, boolean multiple, String implicit) {
+        if (node instanceof Property) {
+            Property property = (Property) node;
+            if (property.selector != null) {
+                if (!declared.containsKey(property.selector)) {
+                    throw error("unknown selector '" + property.selector + "'", property.position);
+                }
+            } else if (multiple) {
+                throw error("'" + (property.name == null ? "*" : property.name)
+                        + "' needs a selector name since the query has several selectors", property.position);
+            } else if (implicit != null) {
+                property.selector = implicit;
+            }
+        } else if (node instanceof Identifier) {
+            Identifier identifier = (Identifier) node;
+            if (!declared.containsKey(identifier.name)) {
+                throw error("unknown selector '" + identifier.name + "'", identifier.position);
+            }
+        } else if (node instanceof Path) {
+            Path path = (Path) node;
+            if (!path.path.startsWith("/")) {
+                throw error("path '" + path.path + "' is not absolute", path.position);
+            }
+        } else if (node instanceof Call) {
+            Call call = (Call) node;
+            if (call.kind == Call.Kind.OPAQUE) {
+                return;
+            }
+            if (call.kind == Call.Kind.PATH && !(call.args.get(0) instanceof Identifier)) {
+                if (multiple) {
+                    throw error(call.name + " needs a selector name since the query has several selectors",
+                            call.args.get(0).position);
+                }
+                if (implicit != null) {
+                    call.args.add(0, new Identifier(implicit, call.args.get(0).position));
+                }
+            }
+            for (Node arg : call.args) {
+                check(arg, declared, multiple, implicit);
+            }
+        } else if (node instanceof Junction) {
+            for (Node child : ((Junction) node).children) {
+                check(child, declared, multiple, implicit);
+            }
+        } else if (node instanceof Not) {
+            check(((Not) node).child, declared, multiple, implicit);
+        } else if (node instanceof Comparison) {
+            check(((Comparison) node).left, declared, multiple, implicit);
+            check(((Comparison) node).right, declared, multiple, implicit);
+        } else if (node instanceof NullCheck) {
+            check(((NullCheck) node).operand, declared, multiple, implicit);
+        } else if (node instanceof In) {
+            check(((In) node).operand, declared, multiple, implicit);
+        }
+    }
+
+    private Sql2SyntaxException error(String message, int position) {
+        return new Sql2SyntaxException(message, text, position);
+    }
+
+    // ---- rendering ----
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < selects.size(); i++) {
+            if (i > 0) {
+                out.append(unionAll.get(i - 1) ? " UNION ALL " : " UNION ");
+            }
+            selects.get(i).render(out);
+        }
+        if (!orderings.isEmpty()) {
+            out.append(" ORDER BY ");
+            for (int i = 0; i < orderings.size(); i++) {
+                if (i > 0) {
+                    out.append(", ");
+                }
+                orderings.get(i).operand.render(out);
+                if (orderings.get(i).descending) {
+                    out.append(" DESC");
+                }
+            }
+        }
+        if (options != null) {
+            out.append(' ').append(options);
+        }
+        return out.toString();
+    }
+
+    static String bracket(String name) {
+        return "[" + name.replace("]", "]]") + "]";
+    }
+
+    static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    static String identifier(String name) {
+        return IDENTIFIER.matcher(name).matches() && !Sql2Parser.isKeyword(name) ? name : bracket(name);
+    }
+
+    // ---- syntax tree ----
+
+    static final class Select {
+        final List<Column> columns;
+        final List<Selector> selectors;
+        final List<Join> joins;
+        Node where;
+
+        Select(List<Column> columns, List<Selector> selectors, List<Join> joins, Node where) {
+            this.columns = columns;
+            this.selectors = selectors;
+            this.joins = joins;
+            this.where = where;
+        }
+
+        void render(StringBuilder out) {
+            out.append("SELECT ");
+            if (columns.isEmpty()) {
+                out.append('*');
+            }
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    out.append(", ");
+                }
+                columns.get(i).operand.render(out);
+                if (columns.get(i).alias != null) {
+                    out.append(" AS ").append(identifier(columns.get(i).alias));
+                }
+            }
+            out.append(" FROM ");
+            selectors.get(0).render(out);
+            for (int i = 0; i < joins.size(); i++) {
+                out.append(' ').append(joins.get(i).type).append(' ');
+                selectors.get(i + 1).render(out);
+                out.append(" ON ");
+                joins.get(i).condition.render(out);
+            }
+            if (where != null) {
+                out.append(" WHERE ");
+                where.render(out);
+            }
+        }
+    }
+
+    static final class Selector {
+        final String type;
+        final String alias;
+        final int position;
+
+        Selector(String type, String alias, int position) {
+            this.type = type;
+            this.alias = alias;
+            this.position = position;
+        }
+
+        /**
+         * The name constraints use for this selector: its alias, or its node type without one.
+         */
+        String reference() {
+            return alias != null ? alias : type;
+        }
+
+        void render(StringBuilder out) {
+            out.append(bracket(type));
+            if (alias != null) {
+                out.append(" AS ").append(identifier(alias));
+            }
+        }
+    }
+
+    static final class Join {
+        final String type;
+        final Node condition;
+
+        Join(String type, Node condition) {
+            this.type = type;
+            this.condition = condition;
+        }
+    }
+
+    static final class Column {
+        final Node operand;
+        final String alias;
+
+        Column(Node operand, String alias) {
+            this.operand = operand;
+            this.alias = alias;
+        }
+    }
+
+    static final class Ordering {
+        final Node operand;
+        final boolean descending;
+
+        Ordering(Node operand, boolean descending) {
+            this.operand = operand;
+            this.descending = descending;
+        }
+    }
+
+    /**
+     * A constraint or operand. Precedence decides where parentheses are needed: OR 1, AND 2,
+     * NOT 3, everything else 4.
+     */
+    abstract static class Node {
+        final int position;
+
+        Node(int position) {
+            this.position = position;
+        }
+
+        int precedence() {
+            return 4;
+        }
+
+        abstract void render(StringBuilder out);
+
+        void renderChild(StringBuilder out, Node child) {
+            if (child.precedence() < precedence()) {
+                out.append('(');
+                child.render(out);
+                out.append(')');
+            } else {
+                child.render(out);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            render(out);
+            return out.toString();
+        }
+    }
+
+    static final class Junction extends Node {
+        final boolean or;
+        final List<Node> children;
+
+        Junction(boolean or, List<Node> children) {
+            super(children.get(0).position);
+            this.or = or;
+            this.children = children;
+        }
+
+        @Override
+        int precedence() {
+            return or ? 1 : 2;
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            for (int i = 0; i < children.size(); i++) {
+                if (i > 0) {
+                    out.append(or ? " OR " : " AND ");
+                }
+                renderChild(out, children.get(i));
+            }
+        }
+    }
+
+    static final class Not extends Node {
+        final Node child;
+
+        Not(Node child) {
+            super(child.position);
+            this.child = child;
+        }
+
+        @Override
+        int precedence() {
+            return 3;
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            out.append("NOT ");
+            renderChild(out, child);
+        }
+    }
+
+    static final class Comparison extends Node {
+        final Node left;
+        final String operator;
+        final Node right;
+
+        Comparison(Node left, String operator, Node right) {
+            super(left.position);
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            left.render(out);
+            out.append(' ').append(operator).append(' ');
+            right.render(out);
+        }
+    }
+
+    static final class NullCheck extends Node {
+        final Node operand;
+        final boolean not;
+
+        NullCheck(Node operand, boolean not) {
+            super(operand.position);
+            this.operand = operand;
+            this.not = not;
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            operand.render(out);
+            out.append(not ? " IS NOT NULL" : " IS NULL");
+        }
+    }
+
+    static final class In extends Node {
+        final Node operand;
+        final List<Node> values;
+        final boolean not;
+
+        In(Node operand, List<Node> values, boolean not) {
+            super(operand.position);
+            this.operand = operand;
+            this.values = values;
+            this.not = not;
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            operand.render(out);
+            out.append(not ? " NOT IN(" : " IN(");
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    out.append(", ");
+                }
+                values.get(i).render(out);
+            }
+            out.append(')');
+        }
+    }
+
+    /**
+     * A function call. PATH calls (ISDESCENDANTNODE, ISCHILDNODE, ISSAMENODE) take selector
+     * names and a path; OPAQUE calls (NATIVE, SIMILAR, ...) are rendered but not checked.
+     */
+    static final class Call extends Node {
+        enum Kind { PATH, VALUE, OPAQUE }
+
+        final String name;
+        final List<Node> args;
+        final Kind kind;
+
+        Call(String name, List<Node> args, Kind kind) {
+            this(name, args, kind, args.isEmpty() ? 0 : args.get(0).position);
+        }
+
+        Call(String name, List<Node> args, Kind kind, int position) {
+            super(position);
+            this.name = name;
+            this.args = args;
+            this.kind = kind;
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            out.append(name).append('(');
+            for (int i = 0; i < args.size(); i++) {
+                if (i > 0) {
+                    out.append(", ");
+                }
+                args.get(i).render(out);
+            }
+            out.append(')');
+        }
+    }
+
+    /**
+     * A property value, or all properties when name is null.
+     */
+    static final class Property extends Node {
+        String selector;
+        final String name;
+
+        Property(String selector, String name, int position) {
+            super(position);
+            this.selector = selector;
+            this.name = name;
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            if (selector != null) {
+                out.append(identifier(selector)).append('.');
+            }
+            out.append(name == null ? "*" : bracket(name));
+        }
+    }
+
+    /**
+     * A selector name used as a function argument.
+     */
+    static final class Identifier extends Node {
+        final String name;
+
+        Identifier(String name, int position) {
+            super(position);
+            this.name = name;
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            out.append(identifier(name));
+        }
+    }
+
+    static final class Path extends Node {
+        final String path;
+
+        Path(String path, int position) {
+            super(position);
+            String normalized = path.replaceAll("/{2,}", "/");
+            this.path = normalized.length() > 1 && normalized.endsWith("/")
+                    ? normalized.substring(0, normalized.length() - 1) : normalized;
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            out.append(bracket(path));
+        }
+    }
+
+    /**
+     * A literal, bind variable or CAST, already in canonical form.
+     */
+    static final class Literal extends Node {
+        final String text;
+
+        Literal(String text, int position) {
+            super(position);
+            this.text = text;
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            out.append(text);
+        }
+    }
+}
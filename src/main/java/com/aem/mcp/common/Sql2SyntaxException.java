@@ -0,0 +1,29 @@
+package com.aem.mcp.common;
+
+/**
+ * Thrown when a statement is not valid JCR-SQL2, before it is sent to AEM.
+ */
+public class Sql2SyntaxException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String statement;
+    private final int position;
+
+    public Sql2SyntaxException(String message, String statement, int position) {
+        super("Invalid JCR-SQL2 at position " + position + ": " + message);
+        this.statement = statement;
+        this.position = position;
+    }
+
+    public String getStatement() {
+        return statement;
+    }
+
+    /**
+     * Character offset in the statement where the problem was found.
+     */
+    public int getPosition() {
+        return position;
+    }
+}
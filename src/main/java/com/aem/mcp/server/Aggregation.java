@@ -0,0 +1,273 @@
+package com.aem.mcp.server;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFormatException;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Summarizes a query result on the server so only the summary crosses the wire. JCR-SQL2 has
+ * no aggregation of its own.
+ *
+ * Modes:
+ * count - number of rows.
+ * groupBy - row count per value of one property (all groups, or the top N).
+ * facets - top N values with counts for one or more properties, plus how many values fell
+ * outside the top N.
+ * range - earliest and latest value of a date property.
+ *
+ * Everything is computed in one pass over QueryResult.getRows() with long counters. Properties
+ * are named like projection columns (cq:template, jcr:content/cq:lastModified or
+ * s.[jcr:content/cq:template]); columns the statement selects are read from the row, anything
+ * else from the row's node. Every value of a multi-valued property is counted.
+ */
+public final class Aggregation {
+
+    /**
+     * Distinct values tracked per property; values first seen after that are only counted in
+     * "other" so a groupBy on a near-unique property cannot exhaust the heap.
+     */
+    private static final int MAX_DISTINCT = 10000;
+
+    public enum Mode {
+        COUNT("count"), GROUP_BY("groupBy"), FACETS("facets"), RANGE("range");
+
+        private final String label;
+
+        Mode(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+
+        public static Mode of(String value) {
+            for (Mode mode : values()) {
+                if (mode.label.equalsIgnoreCase(value.trim())) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("Unknown aggregate '" + value + "'; use count, groupBy, facets or range.");
+        }
+    }
+
+    private final Mode mode;
+    private final List<String> properties;
+    private final int top;
+
+    private Aggregation(Mode mode, List<String> properties, int top) {
+        this.mode = mode;
+        this.properties = properties;
+        this.top = top;
+    }
+
+    /**
+     * @param mode count, groupBy, facets or range.
+     * @param properties comma-separated property names; one for groupBy and range, one or more
+     *                   for facets, ignored for count.
+     * @param top number of values to return for groupBy (0 for all) and facets (default 10).
+     * @throws IllegalArgumentException for an unknown mode or missing properties.
+     */
+    public static Aggregation of(String mode, String properties, String top) {
+        Mode parsed = Mode.of(mode);
+        List<String> names = new ArrayList<>();
+        if (properties != null) {
+            for (String name : properties.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        if (parsed != Mode.COUNT && names.isEmpty()) {
+            throw new IllegalArgumentException("The " + parsed.label() + " aggregate needs a property parameter.");
+        }
+        if ((parsed == Mode.GROUP_BY || parsed == Mode.RANGE) && names.size() > 1) {
+            throw new IllegalArgumentException("The " + parsed.label() + " aggregate takes a single property.");
+        }
+        int n = top == null || top.isEmpty() ? (parsed == Mode.FACETS ? 10 : 0) : Integer.parseInt(top);
+        if (n < 0) {
+            throw new IllegalArgumentException("top must not be negative.");
+        }
+        return new Aggregation(parsed, names, n);
+    }
+
+    /**
+     * Per-property state for one pass.
+     */
+    private static final class Accumulator {
+        final String property;
+        final String column;
+        final Map<String, long[]> counts = new HashMap<>();
+        long values;
+        long missing;
+        long overflow;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        Accumulator(String property, String column) {
+            this.property = property;
+            this.column = column;
+        }
+
+        void count(String value) {
+            values++;
+            long[] counter = counts.get(value);
+            if (counter != null) {
+                counter[0]++;
+            } else if (counts.size() < MAX_DISTINCT) {
+                counts.put(value, new long[]{1});
+            } else {
+                overflow++;
+            }
+        }
+
+        void range(Value value) throws RepositoryException {
+            long millis;
+            try {
+                millis = value.getDate().getTimeInMillis();
+            } catch (ValueFormatException e) {
+                return;
+            }
+            values++;
+            min = Math.min(min, millis);
+            max = Math.max(max, millis);
+        }
+    }
+
+    /**
+     * Reads the result's rows while the budget lasts and writes the summary fields into the
+     * current JSON object.
+     *
+     * @return the number of rows read.
+     */
+    public long write(JsonGenerator json, QueryResult result, ReadBudget budget) throws IOException, RepositoryException {
+        Map<String, String> available = new HashMap<>();
+        for (String column : result.getColumnNames()) {
+            available.putIfAbsent(RowProjection.canonical(column), column);
+        }
+        List<Accumulator> accumulators = new ArrayList<>();
+        for (String property : properties) {
+            accumulators.add(new Accumulator(property, available.get(RowProjection.canonical(property))));
+        }
+
+        RowIterator rows = result.getRows();
+        long count = 0;
+        while (rows.hasNext() && budget.tryRead()) {
+            Row row = rows.nextRow();
+            count++;
+            if (mode == Mode.COUNT) {
+                continue;
+            }
+            Node node = null;
+            for (Accumulator accumulator : accumulators) {
+                Value[] values;
+                if (accumulator.column != null) {
+                    Value value = row.getValue(accumulator.column);
+                    values = value == null ? null : new Value[]{value};
+                } else {
+                    if (node == null) {
+                        node = row.getNode();
+                    }
+                    values = propertyValues(node, RowProjection.canonical(accumulator.property));
+                }
+                if (values == null || values.length == 0) {
+                    accumulator.missing++;
+                    continue;
+                }
+                for (Value value : values) {
+                    if (mode == Mode.RANGE) {
+                        accumulator.range(value);
+                    } else if (value.getType() != PropertyType.BINARY) {
+                        accumulator.count(value.getString());
+                    }
+                }
+            }
+        }
+
+        json.writeStringField("aggregate", mode.label());
+        json.writeNumberField("count", count);
+        budget.write(json);
+        switch (mode) {
+            case GROUP_BY:
+                json.writeStringField("property", properties.get(0));
+                writeCounts(json, "groups", accumulators.get(0), top);
+                break;
+            case FACETS:
+                json.writeObjectFieldStart("facets");
+                for (Accumulator accumulator : accumulators) {
+                    json.writeObjectFieldStart(accumulator.property);
+                    writeCounts(json, "top", accumulator, top);
+                    json.writeEndObject();
+                }
+                json.writeEndObject();
+                break;
+            case RANGE:
+                Accumulator accumulator = accumulators.get(0);
+                json.writeStringField("property", accumulator.property);
+                if (accumulator.values > 0) {
+                    json.writeStringField("min", Instant.ofEpochMilli(accumulator.min).toString());
+                    json.writeStringField("max", Instant.ofEpochMilli(accumulator.max).toString());
+                } else {
+                    json.writeNullField("min");
+                    json.writeNullField("max");
+                }
+                json.writeNumberField("missing", accumulator.missing);
+                break;
+            default:
+                break;
+        }
+        return count;
+    }
+
+    /**
+     * Writes [{"value", "count"}...] sorted by count (top n of them, all when n is 0) followed
+     * by "other", "distinct" and "missing".
+     */
+    private static void writeCounts(JsonGenerator json, String field, Accumulator accumulator, int n)
+            throws IOException {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(accumulator.counts.entrySet());
+        entries.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+                ? Long.compare(b.getValue()[0], a.getValue()[0])
+                : a.getKey().compareTo(b.getKey()));
+        int shown = n == 0 ? entries.size() : Math.min(n, entries.size());
+        long shownValues = 0;
+        json.writeArrayFieldStart(field);
+        for (int i = 0; i < shown; i++) {
+            Map.Entry<String, long[]> entry = entries.get(i);
+            json.writeStartObject();
+            json.writeStringField("value", entry.getKey());
+            json.writeNumberField("count", entry.getValue()[0]);
+            json.writeEndObject();
+            shownValues += entry.getValue()[0];
+        }
+        json.writeEndArray();
+        json.writeNumberField("other", accumulator.values - shownValues);
+        json.writeNumberField("distinct", accumulator.counts.size());
+        if (accumulator.overflow > 0) {
+            json.writeBooleanField("distinctCapped", true);
+        }
+        json.writeNumberField("missing", accumulator.missing);
+    }
+
+    private static Value[] propertyValues(Node node, String relPath) throws RepositoryException {
+        if (node == null || !node.hasProperty(relPath)) {
+            return null;
+        }
+        Property property = node.getProperty(relPath);
+        return property.isMultiple() ? property.getValues() : new Value[]{property.getValue()};
+    }
+}
@@ -0,0 +1,237 @@
+package com.aem.mcp.server;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.jcr.RepositoryException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the statements of a batch request to McpQueryServlet concurrently on a bounded worker
+ * pool. Each statement runs through the {@link StatementExecutor} like a single query, with
+ * its own session and read budget. Statements wait for a worker in a bounded queue; a batch
+ * that does not fit is rejected as a whole.
+ *
+ * Results are collected front-coded and written in request order once every statement has
+ * finished, so one slow statement delays the response but not the other statements. Each
+ * statement keeps at most the cache's entry size (or {@link #MAX_STATEMENT_BYTES} without a
+ * cache) and is reported as truncated with reason "maxBytes" beyond that.
+ */
+public class BatchQueryExecutor {
+
+    /**
+     * Memory one statement's paths may take when there is no result cache to size it by.
+     */
+    static final long MAX_STATEMENT_BYTES = 8L * 1024 * 1024;
+
+    private final StatementExecutor statementExecutor;
+    private final ExecutorService workers;
+    private final int maxStatements;
+
+    /**
+     * @param queueSize statements that may wait for a worker, across all batches.
+     */
+    public BatchQueryExecutor(StatementExecutor statementExecutor, int threads, int maxStatements, int queueSize) {
+        this.statementExecutor = statementExecutor;
+        this.maxStatements = maxStatements;
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+                    Thread thread = new Thread(r, "mcp-batch-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.workers = pool;
+    }
+
+    public int getMaxStatements() {
+        return maxStatements;
+    }
+
+    /**
+     * Outcome of one statement of a batch.
+     */
+    public static final class Outcome {
+        private final String statement;
+        private final long offset;
+        private final long limit;
+        private final ReadBudget budget;
+        private CompactPathList paths;
+        private boolean more;
+        private boolean cached;
+        private String rewritten;
+        private String error;
+        private String code;
+        private long nanos;
+
+        Outcome(String statement, long offset, long limit, ReadBudget budget) {
+            this.statement = statement;
+            this.offset = offset;
+            this.limit = limit;
+            this.budget = budget;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Writes the outcome as one JSON object: the statement, then either "error" (and "code"
+         * when it has one) or the "paths" and "count", plus "ms".
+         */
+        public void write(JsonGenerator json) throws IOException {
+            json.writeStartObject();
+            json.writeStringField("statement", statement);
+            if (rewritten != null) {
+                json.writeStringField("rewritten", rewritten);
+            }
+            if (error != null) {
+                json.writeStringField("error", error);
+                if (code != null) {
+                    json.writeStringField("code", code);
+                }
+            } else {
+                json.writeArrayFieldStart("paths");
+                long count = 0;
+                Iterator<String> iterator = paths.iterator();
+                while ((limit == 0 || count < limit) && iterator.hasNext()) {
+                    json.writeString(iterator.next());
+                    count++;
+                }
+                json.writeEndArray();
+                json.writeNumberField("count", count);
+                budget.write(json);
+                if (more) {
+                    json.writeStringField("next", new QueryCursor(QueryResultCache.normalize(statement),
+                            offset + count, limit).encode());
+                }
+                json.writeBooleanField("cached", cached);
+            }
+            json.writeNumberField("ms", TimeUnit.NANOSECONDS.toMillis(nanos));
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * Runs every statement (each with up to limit results from offset, all when limit is 0) and
+     * waits for them.
+     *
+     * @param startNanos request start; each statement's deadline counts from here.
+     * @throws RejectedExecutionException when the worker queue has no room for the batch; the
+     *                                    statements already queued are cancelled.
+     */
+    public List<Outcome> execute(List<String> statements, long offset, long limit, long startNanos,
+                                 long deadlineMs, long maxNodes) {
+        List<Outcome> outcomes = new ArrayList<>(statements.size());
+        List<Future<?>> futures = new ArrayList<>(statements.size());
+        for (String statement : statements) {
+            Outcome outcome = new Outcome(statement.trim(), offset, limit,
+                    new ReadBudget(startNanos, deadlineMs, maxNodes));
+            outcomes.add(outcome);
+            try {
+                futures.add(workers.submit(() -> run(outcome)));
+            } catch (RejectedExecutionException e) {
+                for (Future<?> queued : futures) {
+                    queued.cancel(false);
+                }
+                throw new RejectedExecutionException(workers.isShutdown() ? "Batch worker pool is shut down."
+                        : "Too many batch statements are waiting; try again later.", e);
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Future<?> future = futures.get(i);
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                outcomes.get(i).error = "Interrupted.";
+            } catch (ExecutionException e) {
+                outcomes.get(i).error = String.valueOf(e.getCause().getMessage());
+            }
+        }
+        return outcomes;
+    }
+
+    private void run(Outcome outcome) {
+        long start = System.nanoTime();
+        String queryString = outcome.statement;
+        try {
+            if (!queryString.toLowerCase().startsWith("select")) {
+                outcome.error = "Only JCR-SQL2 SELECT queries are allowed.";
+                return;
+            }
+            String statement = QueryResultCache.normalize(queryString);
+            String cacheKey = StatementExecutor.cacheKey(statement, outcome.offset, outcome.limit);
+            CompactPathList cached = statementExecutor.cached(cacheKey);
+            if (cached != null) {
+                outcome.paths = cached;
+                outcome.more = outcome.limit > 0 && cached.size() > outcome.limit;
+                outcome.cached = true;
+                return;
+            }
+
+            statementExecutor.execute(queryString, cacheKey, outcome.offset, outcome.limit, outcome.budget, null,
+                    execution -> read(execution, outcome));
+        } catch (TraversalGuard.TraversalRejectedException e) {
+            outcome.error = e.getMessage();
+            outcome.code = TraversalGuard.TraversalRejectedException.CODE;
+        } catch (Exception e) {
+            outcome.error = String.valueOf(e.getMessage());
+        } finally {
+            outcome.nanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Collects up to the outcome's limit paths, plus the row that tells whether there is a
+     * next page, and caches them unless the budget ran out.
+     *
+     * @return the number of paths read.
+     */
+    private static long read(StatementExecutor.Execution execution, Outcome outcome) throws RepositoryException {
+        long limit = outcome.limit;
+        TraversalGuard.Decision decision = execution.getDecision();
+        if (decision.isRewritten()) {
+            outcome.rewritten = decision.getStatement();
+        }
+        ResultPaths result = execution.paths();
+        CompactPathList.Builder paths = execution.cacheBuilder();
+        if (paths == null) {
+            paths = CompactPathList.builder(MAX_STATEMENT_BYTES);
+        }
+        long count = 0;
+        while ((limit == 0 || count < limit) && result.hasNext() && outcome.budget.tryRead()) {
+            if (!paths.tryAdd(result.next())) {
+                outcome.budget.exhaust(ReadBudget.Reason.MAX_BYTES);
+                break;
+            }
+            count++;
+        }
+        outcome.more = limit > 0 && result.hasNext();
+        // The extra row lets a cached page tell whether there is a next page.
+        if (outcome.more && !outcome.budget.isExhausted() && !paths.tryAdd(result.next())) {
+            outcome.budget.exhaust(ReadBudget.Reason.MAX_BYTES);
+        }
+        outcome.paths = paths.build();
+        if (!outcome.budget.isExhausted()) {
+            execution.commit(outcome.paths);
+        }
+        return count;
+    }
+
+    public void close() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,141 @@
+package com.aem.mcp.server;
+
+import com.aem.mcp.common.PathWireFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable list of repository paths stored front-coded in a single byte array.
+ *
+ * Query results are mostly siblings and cousins under the same site root, so each path is
+ * stored as the length of the prefix it shares with the previous path followed by the
+ * remaining UTF-8 bytes: the path records of {@link PathWireFormat}. A page of results
+ * typically takes a fraction of the memory of the equivalent List&lt;String&gt;.
+ */
+public final class CompactPathList implements Iterable<String> {
+
+    private final byte[] data;
+    private final int size;
+
+    private CompactPathList(byte[] data, int size) {
+        this.data = data;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Approximate heap footprint, used for the cache's memory bound.
+     */
+    public long byteSize() {
+        return data.length + 32L;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        PathWireFormat.Reader reader = PathWireFormat.Reader.records(data);
+        return new Iterator<String>() {
+            private int remaining = size;
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public String next() {
+                if (remaining == 0) {
+                    throw new NoSuchElementException();
+                }
+                remaining--;
+                try {
+                    return reader.next();
+                } catch (IOException e) {
+                    // Only a list this class built is ever read.
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    public static Builder builder() {
+        return new Builder(Long.MAX_VALUE);
+    }
+
+    /**
+     * Builder that stops collecting once it passes maxBytes, so callers streaming a large
+     * result do not hold a copy of it just to find out it is too big to cache.
+     */
+    public static Builder builder(long maxBytes) {
+        return new Builder(maxBytes);
+    }
+
+    public static final class Builder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final PathWireFormat.Encoder encoder = new PathWireFormat.Encoder();
+        private final long maxBytes;
+        private int size;
+        private boolean overflowed;
+
+        private Builder(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public Builder add(String path) {
+            if (overflowed) {
+                return this;
+            }
+            encoder.encode(path);
+            write();
+            if (byteSize() > maxBytes) {
+                overflowed = true;
+                out.reset();
+            }
+            return this;
+        }
+
+        /**
+         * Adds the path unless that would take the list past maxBytes, for callers that keep
+         * what fits rather than giving up on the whole list.
+         *
+         * @return false, leaving the list as it was, when the path does not fit.
+         */
+        public boolean tryAdd(String path) {
+            if (overflowed || byteSize() + encoder.encode(path) > maxBytes) {
+                return false;
+            }
+            write();
+            return true;
+        }
+
+        private void write() {
+            try {
+                encoder.write(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            size++;
+        }
+
+        public long byteSize() {
+            return out.size() + 32L;
+        }
+
+        public boolean isOverflowed() {
+            return overflowed;
+        }
+
+        public CompactPathList build() {
+            if (overflowed) {
+                throw new IllegalStateException("Path list exceeded " + maxBytes + " bytes.");
+            }
+            return new CompactPathList(out.toByteArray(), size);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.invest.saudi.core.servlets;
 
 
 
+import com.aem.mcp.server.ServerTiming;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
@@ -28,6 +29,10 @@ import java.util.Base64;
  *
  * How to access:
  * http://localhost:4502/bin/report?componentPath=/apps/mysite/components/mycomponent
+ *
+ * The response carries a Server-Timing header with the phases fetch (loading the dialog JSON),
+ * iterate (walking its fields) and serialize. A traceparent header is passed on to the dialog
+ * request.
  */
 @Component(service = { Servlet.class }, scope = ServiceScope.PROTOTYPE)
 @SlingServletPaths(
@@ -39,6 +44,12 @@ public class DialogFieldReportServlet extends SlingSafeMethodsServlet {
 
     @Override
     protected void doGet(final SlingHttpServletRequest req, final SlingHttpServletResponse resp) throws ServletException, IOException {
+        try (ServerTiming timing = ServerTiming.start(req)) {
+            report(req, resp, timing);
+        }
+    }
+
+    private void report(final SlingHttpServletRequest req, final SlingHttpServletResponse resp, final ServerTiming timing) throws IOException {
         // Set the response content type to JSON
         resp.setContentType("application/json");
         resp.setCharacterEncoding("UTF-8");
@@ -68,10 +79,14 @@ public class DialogFieldReportServlet extends SlingSafeMethodsServlet {
             String password = "admin";
             String encodedAuth = Base64.getEncoder().encodeToString((username + ":" + password).getBytes("UTF-8"));
             conn.setRequestProperty("Authorization", "Basic " + encodedAuth);
+            if (req.getHeader(ServerTiming.TRACE_HEADER) != null) {
+                conn.setRequestProperty(ServerTiming.TRACE_HEADER, req.getHeader(ServerTiming.TRACE_HEADER));
+            }
 
             if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
                 InputStream is = conn.getInputStream();
                 JSONObject dialogJson = new JSONObject(new JSONTokener(is));
+                timing.lap("fetch");
 
                 // Standard path for dialogs with tabs
                 JSONObject tabs = dialogJson.optJSONObject("content")
@@ -93,6 +108,7 @@ public class DialogFieldReportServlet extends SlingSafeMethodsServlet {
                 } else {
                     finalJson.put("error", "Could not find a standard tab structure in the dialog JSON.");
                 }
+                timing.lap("iterate");
 
             } else {
                 resp.setStatus(conn.getResponseCode());
@@ -109,7 +125,10 @@ public class DialogFieldReportServlet extends SlingSafeMethodsServlet {
         }
 
         // Write the final JSON object to the response
-        resp.getWriter().write(finalJson.toString(2));
+        String body = finalJson.toString(2);
+        timing.lap("serialize");
+        timing.apply(resp);
+        resp.getWriter().write(body);
     }
 
     /**
@@ -0,0 +1,137 @@
+package com.aem.mcp.server;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Response wrapper that gzips everything written to it, for clients that send
+ * Accept-Encoding: gzip. Flushes are passed through as gzip sync flushes, so streamed results
+ * still reach the client in pieces. {@link #finish()} must be called once the response is
+ * complete.
+ */
+public class GzipResponse extends SlingHttpServletResponseWrapper {
+
+    private GZIPOutputStream gzip;
+    private ServletOutputStream stream;
+    private PrintWriter writer;
+
+    public GzipResponse(SlingHttpServletResponse response) {
+        super(response);
+        response.setHeader("Content-Encoding", "gzip");
+        response.addHeader("Vary", "Accept-Encoding");
+    }
+
+    /**
+     * True when an Accept-Encoding header allows gzip.
+     */
+    public static boolean accepted(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length < 2 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private GZIPOutputStream gzip() throws IOException {
+        if (gzip == null) {
+            gzip = new GZIPOutputStream(getResponse().getOutputStream(), 8192, true);
+        }
+        return gzip;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called.");
+        }
+        if (stream == null) {
+            GZIPOutputStream out = gzip();
+            stream = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (stream != null) {
+            throw new IllegalStateException("getOutputStream() has already been called.");
+        }
+        if (writer == null) {
+            String encoding = getCharacterEncoding();
+            Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+            writer = new PrintWriter(new OutputStreamWriter(gzip(), charset));
+        }
+        return writer;
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        // The compressed length is not known up front.
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        // The compressed length is not known up front.
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (gzip != null) {
+            gzip.flush();
+        }
+        super.flushBuffer();
+    }
+
+    /**
+     * Writes the gzip trailer. Nothing may be written afterwards.
+     */
+    public void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        gzip().finish();
+        getResponse().flushBuffer();
+    }
+}
@@ -0,0 +1,309 @@
+package com.aem.mcp.server;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.QueryManager;
+import javax.servlet.Servlet;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Proposes Oak index definitions for the statement shapes McpQueryServlet spends the most time
+ * on.
+ *
+ * GET - the top shapes by total execution time, each with its count, mean / max time, mean
+ * rows, latest plan and an {@link IndexProposal} (or "proposal": null when nothing in the
+ * statement could be indexed). Parameters: top (default 10) and minCount (default 2).
+ *
+ * POST with shape=&lt;id&gt; and dryRun=true - creates the proposal as a synchronous index
+ * under the configured dry-run root, waits for Oak to offer it to the planner, explains the
+ * shape's latest statement again and removes the definition. The response carries the plan
+ * before and after. Dry runs reindex the covered content inside the request, so they are
+ * disabled unless configured and meant for non-production instances. The default root is a
+ * scratch subtree (/var/mcp/scratch/oak:index, created on first use), which only indexes that
+ * subtree, and a proposal without includedPaths is refused: a synchronous reindex of the whole
+ * repository inside a request is never what a dry run should cost.
+ *
+ * POST with clear=true - forgets all recorded shapes.
+ */
+@Component(service = Servlet.class,
+        property = {
+                "sling.servlet.methods=GET",
+                "sling.servlet.methods=POST",
+                "sling.servlet.paths=/bin/mcp/index-advisor"
+        })
+@Designate(ocd = IndexAdvisorServlet.Config.class)
+public class IndexAdvisorServlet extends SlingAllMethodsServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final long DRY_RUN_POLL_MS = 250;
+
+    @ObjectClassDefinition(name = "MCP Index Advisor")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Service user sub-service",
+                description = "Sub-service name mapped to the service user that explains statements and, for dry"
+                        + " runs, writes temporary index definitions.")
+        String service_subservice() default "mcp-index-advisor";
+
+        @AttributeDefinition(name = "Enable dry runs",
+                description = "Allow POST dryRun=true to create a temporary index and re-measure the plan.")
+        boolean dry_run_enabled() default false;
+
+        @AttributeDefinition(name = "Dry-run index root",
+                description = "Node the temporary oak:QueryIndexDefinition is created under; it is created when"
+                        + " missing. An oak:index node below a content path (for example /content/site/oak:index)"
+                        + " limits the index, and its reindex, to that subtree.")
+        String dry_run_root() default "/var/mcp/scratch/oak:index";
+
+        @AttributeDefinition(name = "Dry-run wait (ms)",
+                description = "How long a dry run waits for Oak to pick up the temporary index.")
+        long dry_run_wait_ms() default 5000;
+    }
+
+    @Reference
+    private SlingRepository repository;
+
+    @Reference
+    private QueryShapeStats shapeStats;
+
+    private String subservice;
+    private boolean dryRunEnabled;
+    private String dryRunRoot;
+    private long dryRunWaitMs;
+
+    @Activate
+    protected void activate(Config config) {
+        subservice = config.service_subservice();
+        dryRunEnabled = config.dry_run_enabled();
+        dryRunRoot = config.dry_run_root();
+        dryRunWaitMs = config.dry_run_wait_ms();
+    }
+
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        int top;
+        long minCount;
+        try {
+            top = (int) longParameter(request, "top", 10);
+            minCount = longParameter(request, "minCount", 2);
+        } catch (IllegalArgumentException e) {
+            writeError(response, 400, e.getMessage());
+            return;
+        }
+        List<QueryShapeStats.Shape> shapes = shapeStats.top(top, minCount);
+        JsonGenerator json = JSON_FACTORY.createGenerator(response.getWriter());
+        json.writeStartObject();
+        json.writeArrayFieldStart("shapes");
+        for (QueryShapeStats.Shape shape : shapes) {
+            json.writeStartObject();
+            writeShape(json, shape);
+            IndexProposal proposal = IndexProposal.of(shape.getStatement());
+            if (proposal != null) {
+                json.writeObjectFieldStart("proposal");
+                json.writeStringField("name", proposal.indexName(shape.getId()));
+                json.writeFieldName("definition");
+                proposal.write(json, true);
+                json.writeEndObject();
+            } else {
+                json.writeNullField("proposal");
+            }
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+        json.writeObjectFieldStart("stats");
+        for (Map.Entry<String, Object> stat : shapeStats.getStats().entrySet()) {
+            json.writeNumberField(stat.getKey(), ((Number) stat.getValue()).longValue());
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+        json.flush();
+    }
+
+    @Override
+    protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        if (Boolean.parseBoolean(request.getParameter("clear"))) {
+            shapeStats.clear();
+            response.getWriter().write("{\"cleared\":true}");
+            return;
+        }
+        if (!Boolean.parseBoolean(request.getParameter("dryRun"))) {
+            writeError(response, 400, "Send dryRun=true with a shape id, or clear=true.");
+            return;
+        }
+        if (!dryRunEnabled) {
+            writeError(response, 403, "Dry runs are disabled in the MCP Index Advisor configuration.");
+            return;
+        }
+        String id = request.getParameter("shape");
+        QueryShapeStats.Shape shape = id == null ? null : shapeStats.get(id);
+        if (shape == null) {
+            writeError(response, 404, "Unknown shape '" + id + "'.");
+            return;
+        }
+        IndexProposal proposal = IndexProposal.of(shape.getStatement());
+        if (proposal == null) {
+            writeError(response, 422, "The shape has nothing an index could serve.");
+            return;
+        }
+        if (proposal.getIncludedPaths().isEmpty()) {
+            writeError(response, 422, "The proposal has no includedPaths, so a dry run would reindex the whole"
+                    + " repository. Constrain the statement with ISDESCENDANTNODE first.");
+            return;
+        }
+
+        String name = "dryrun-" + proposal.indexName(shape.getId());
+        Session session = null;
+        Node index = null;
+        try {
+            session = repository.loginService(subservice, null);
+            QueryManager qm = session.getWorkspace().getQueryManager();
+            QueryPlan before = QueryPlan.explain(qm, shape.getStatement());
+            if (session.nodeExists(dryRunRoot + "/" + name)) {
+                session.getNode(dryRunRoot + "/" + name).remove();
+            }
+            ensureNode(session, dryRunRoot);
+            index = proposal.create(session, dryRunRoot, name, false);
+            session.save();
+            QueryPlan after = awaitPlan(qm, shape.getStatement(), name);
+
+            JsonGenerator json = JSON_FACTORY.createGenerator(response.getWriter());
+            json.writeStartObject();
+            writeShape(json, shape);
+            json.writeStringField("index", index.getPath());
+            json.writeFieldName("definition");
+            proposal.write(json, false);
+            json.writeObjectFieldStart("before");
+            before.write(json);
+            json.writeEndObject();
+            json.writeObjectFieldStart("after");
+            after.write(json);
+            json.writeEndObject();
+            json.writeBooleanField("used", after.getPlan().contains(name));
+            json.writeEndObject();
+            json.flush();
+
+        } catch (RepositoryException e) {
+            writeError(response, 500, e.getMessage());
+        } finally {
+            if (session != null) {
+                try {
+                    if (index != null) {
+                        session.refresh(false);
+                        if (session.nodeExists(dryRunRoot + "/" + name)) {
+                            session.getNode(dryRunRoot + "/" + name).remove();
+                            session.save();
+                        }
+                    }
+                } catch (RepositoryException e) {
+                    // Left for the next dry run of this shape, which replaces it.
+                } finally {
+                    session.logout();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates path and any missing ancestors as nt:unstructured nodes. The caller saves.
+     */
+    private static void ensureNode(Session session, String path) throws RepositoryException {
+        if (session.nodeExists(path)) {
+            return;
+        }
+        Node node = session.getRootNode();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            node = node.hasNode(segment) ? node.getNode(segment) : node.addNode(segment, "nt:unstructured");
+        }
+    }
+
+    /**
+     * Explains the statement until the plan names the index or the wait is over. Oak offers a
+     * new index to the planner only after its index tracker has seen the commit.
+     */
+    private QueryPlan awaitPlan(QueryManager qm, String statement, String index) throws RepositoryException {
+        long deadline = System.currentTimeMillis() + dryRunWaitMs;
+        QueryPlan plan = QueryPlan.explain(qm, statement);
+        while (!plan.getPlan().contains(index) && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(DRY_RUN_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            plan = QueryPlan.explain(qm, statement);
+        }
+        return plan;
+    }
+
+    private static void writeShape(JsonGenerator json, QueryShapeStats.Shape shape) throws IOException {
+        json.writeStringField("id", shape.getId());
+        json.writeStringField("shape", shape.getShape());
+        json.writeStringField("statement", shape.getStatement());
+        json.writeNumberField("count", shape.getCount());
+        json.writeNumberField("totalMs", shape.getTotalMs());
+        json.writeNumberField("meanMs", Math.round(shape.getMeanMs() * 10) / 10.0);
+        json.writeNumberField("maxMs", shape.getMaxMs());
+        json.writeNumberField("meanRows", Math.round(shape.getMeanRows() * 10) / 10.0);
+        json.writeNumberField("traversals", shape.getTraversals());
+        json.writeArrayFieldStart("indexes");
+        for (String index : shape.getIndexes()) {
+            json.writeString(index);
+        }
+        json.writeEndArray();
+        if (shape.getCost() >= 0) {
+            json.writeNumberField("cost", shape.getCost());
+        } else {
+            json.writeNullField("cost");
+        }
+    }
+
+    private static long longParameter(SlingHttpServletRequest request, String name, long defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed < 0) {
+                throw new IllegalArgumentException(name + " must not be negative.");
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number.");
+        }
+    }
+
+    private static void writeError(SlingHttpServletResponse response, int status, String message) throws IOException {
+        response.setStatus(status);
+        JsonGenerator json = JSON_FACTORY.createGenerator(response.getWriter());
+        json.writeStartObject();
+        json.writeStringField("error", String.valueOf(message));
+        json.writeEndObject();
+        json.flush();
+    }
+}
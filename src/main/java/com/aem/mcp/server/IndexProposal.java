@@ -0,0 +1,344 @@
+package com.aem.mcp.server;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An oak:QueryIndexDefinition (Lucene, compatVersion 2) covering what one statement filters
+ * and sorts on.
+ *
+ * The statement is read for its node type and for the properties it restricts:
+ * = <> IN LIKE - propertyIndex
+ * < <= > >= and ORDER BY - propertyIndex and ordered
+ * IS NULL / IS NOT NULL - nullCheckEnabled / notNullCheckEnabled
+ * CONTAINS on a property - analyzed; CONTAINS on * - a regexp rule for all properties with
+ * nodeScopeIndex
+ * LOWER / UPPER - a function property (function = lower([name]))
+ * Relative properties such as jcr:content/cq:lastModifiedBy are supported by Lucene rules as
+ * they are. ISDESCENDANTNODE paths become includedPaths and queryPaths, so the index stays
+ * small and is only offered to queries below them.
+ *
+ * Joins and unions are not analysed.
+ */
+public final class IndexProposal {
+
+    private static final Pattern UNSUPPORTED = Pattern.compile("(?i)\\bJOIN\\b|\\bUNION\\b");
+    private static final Pattern FROM = Pattern.compile("(?i)\\bFROM\\s+(?:\\[([^\\]]+)\\]|([A-Za-z_][\\w:]*))");
+    private static final String NAME = "(?:\\b[A-Za-z_]\\w*\\.)?(?:\\[([^\\]]+)\\]|\\b([A-Za-z_][\\w:]*))";
+    private static final Pattern RESTRICTION = Pattern.compile("(?i)" + NAME
+            + "\\s*(<>|!=|<=|>=|=|<|>|\\bNOT\\s+LIKE\\b|\\bLIKE\\b|\\bNOT\\s+IN\\b|\\bIN\\b|\\bIS\\s+NOT\\s+NULL\\b|\\bIS\\s+NULL\\b)");
+    private static final Pattern FUNCTION = Pattern.compile("(?i)\\b(LOWER|UPPER)\\s*\\(\\s*" + NAME + "\\s*\\)");
+    private static final Pattern CONTAINS = Pattern.compile("(?i)\\bCONTAINS\\s*\\(\\s*(?:\\b[A-Za-z_]\\w*\\.)?(?:\\*|\\[([^\\]]+)\\]|([A-Za-z_][\\w:]*))\\s*,");
+    private static final Pattern WHERE = Pattern.compile("(?i)\\bWHERE\\b");
+    private static final Pattern ORDER_BY = Pattern.compile("(?i)\\bORDER\\s+BY\\b");
+    private static final Pattern TAIL = Pattern.compile("(?i)\\bOPTION\\s*\\(");
+    private static final Set<String> KEYWORDS = Set.of("AND", "OR", "NOT", "WHERE", "IS", "NULL", "ASC", "DESC");
+
+    /**
+     * What the index must support for one property.
+     */
+    static final class Rule {
+        final String name;
+        boolean ordered;
+        boolean analyzed;
+        boolean nullCheck;
+        boolean notNullCheck;
+        String function;
+
+        Rule(String name) {
+            this.name = name;
+        }
+    }
+
+    private final String nodeType;
+    private final Map<String, Rule> rules;
+    private final boolean fulltext;
+    private final List<String> paths;
+
+    private IndexProposal(String nodeType, Map<String, Rule> rules, boolean fulltext, List<String> paths) {
+        this.nodeType = nodeType;
+        this.rules = rules;
+        this.fulltext = fulltext;
+        this.paths = paths;
+    }
+
+    /**
+     * @return the proposal for a statement, or null when it has nothing an index could serve
+     * (a join or union, or no property restrictions).
+     */
+    public static IndexProposal of(String statement) {
+        String masked = TraversalGuard.maskLiterals(statement);
+        if (UNSUPPORTED.matcher(masked).find()) {
+            return null;
+        }
+        Matcher from = FROM.matcher(masked);
+        if (!from.find()) {
+            return null;
+        }
+        String nodeType = from.group(1) != null ? from.group(1) : from.group(2);
+
+        Matcher tail = TAIL.matcher(masked);
+        int end = tail.find(from.end()) ? tail.start() : masked.length();
+        Matcher orderBy = ORDER_BY.matcher(masked);
+        boolean sorted = orderBy.find(from.end()) && orderBy.start() < end;
+        int orderStart = sorted ? orderBy.start() : end;
+        Matcher where = WHERE.matcher(masked);
+        String condition = where.find(from.end()) && where.start() < orderStart
+                ? masked.substring(where.end(), orderStart) : "";
+        String ordering = sorted ? masked.substring(orderBy.end(), end) : "";
+
+        Map<String, Rule> rules = new LinkedHashMap<>();
+        boolean fulltext = false;
+        Matcher contains = CONTAINS.matcher(condition);
+        while (contains.find()) {
+            String name = name(contains);
+            if (name == null) {
+                fulltext = true;
+            } else {
+                rule(rules, name).analyzed = true;
+            }
+        }
+        Matcher function = FUNCTION.matcher(condition);
+        while (function.find()) {
+            String name = function.group(2) != null ? function.group(2) : function.group(3);
+            String fn = function.group(1).toLowerCase(Locale.ROOT);
+            Rule rule = rule(rules, fn + ":" + name);
+            rule.function = fn + "([" + name + "])";
+        }
+        Matcher restriction = RESTRICTION.matcher(condition);
+        while (restriction.find()) {
+            String name = name(restriction);
+            if (name == null || isFunctionArgument(condition, restriction.start())) {
+                continue;
+            }
+            String operator = restriction.group(3).toUpperCase(Locale.ROOT).replaceAll("\\s+", " ");
+            Rule rule = rule(rules, name);
+            if (operator.equals("<") || operator.equals("<=") || operator.equals(">") || operator.equals(">=")) {
+                rule.ordered = true;
+            } else if (operator.equals("IS NULL")) {
+                rule.nullCheck = true;
+            } else if (operator.equals("IS NOT NULL")) {
+                rule.notNullCheck = true;
+            }
+        }
+        Matcher sort = Pattern.compile(NAME).matcher(ordering);
+        while (sort.find()) {
+            String name = name(sort);
+            if (name != null && !name.equals("jcr:score")) {
+                rule(rules, name).ordered = true;
+            }
+        }
+        if (rules.isEmpty() && !fulltext) {
+            return null;
+        }
+        List<String> paths = new ArrayList<>(QueryResultCache.scopesOf(statement));
+        paths.remove("/");
+        return new IndexProposal(nodeType, rules, fulltext, paths);
+    }
+
+    private static String name(Matcher matcher) {
+        String name = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+        if (name == null || KEYWORDS.contains(name.toUpperCase(Locale.ROOT))) {
+            return null;
+        }
+        return name;
+    }
+
+    /**
+     * True when the restriction at position is the argument of LOWER( or UPPER(, which
+     * {@link #FUNCTION} has already handled.
+     */
+    private static boolean isFunctionArgument(String condition, int position) {
+        int i = position - 1;
+        while (i >= 0 && Character.isWhitespace(condition.charAt(i))) {
+            i--;
+        }
+        if (i < 0 || condition.charAt(i) != '(') {
+            return false;
+        }
+        String before = condition.substring(Math.max(0, i - 5), i).trim().toUpperCase(Locale.ROOT);
+        return before.endsWith("LOWER") || before.endsWith("UPPER");
+    }
+
+    private static Rule rule(Map<String, Rule> rules, String name) {
+        return rules.computeIfAbsent(name, Rule::new);
+    }
+
+    public String getNodeType() {
+        return nodeType;
+    }
+
+    /**
+     * The paths the statement is limited to, which become includedPaths and queryPaths; empty
+     * when the definition would cover the whole repository.
+     */
+    public List<String> getIncludedPaths() {
+        return Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * Node name for the definition, e.g. mcpCqPageA1b2c3d4 for a shape id starting a1b2c3d4.
+     */
+    public String indexName(String shapeId) {
+        StringBuilder name = new StringBuilder("mcp");
+        boolean upper = true;
+        for (char c : nodeType.toCharArray()) {
+            if (Character.isLetterOrDigit(c)) {
+                name.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            } else {
+                upper = true;
+            }
+        }
+        String suffix = shapeId.length() > 8 ? shapeId.substring(0, 8) : shapeId;
+        return name.append(Character.toUpperCase(suffix.charAt(0))).append(suffix.substring(1)).toString();
+    }
+
+    /**
+     * Writes the definition as a JSON object in the layout Sling's JSON import accepts, so it can
+     * be reviewed and then created under /oak:index as is.
+     *
+     * @param async false for a synchronous definition (used by dry runs); production indexes
+     *              should be async.
+     */
+    public void write(JsonGenerator json, boolean async) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("jcr:primaryType", "oak:QueryIndexDefinition");
+        json.writeStringField("type", "lucene");
+        json.writeNumberField("compatVersion", 2);
+        if (async) {
+            json.writeArrayFieldStart("async");
+            json.writeString("async");
+            json.writeString("nrt");
+            json.writeEndArray();
+        }
+        json.writeBooleanField("evaluatePathRestrictions", true);
+        if (!paths.isEmpty()) {
+            writeStrings(json, "includedPaths", paths);
+            writeStrings(json, "queryPaths", paths);
+        }
+        writeStrings(json, "tags", List.of("mcp"));
+        json.writeObjectFieldStart("indexRules");
+        json.writeStringField("jcr:primaryType", "nt:unstructured");
+        json.writeObjectFieldStart(nodeType);
+        json.writeStringField("jcr:primaryType", "nt:unstructured");
+        json.writeObjectFieldStart("properties");
+        json.writeStringField("jcr:primaryType", "nt:unstructured");
+        for (Map.Entry<String, Map<String, Object>> property : properties().entrySet()) {
+            json.writeObjectFieldStart(property.getKey());
+            json.writeStringField("jcr:primaryType", "nt:unstructured");
+            for (Map.Entry<String, Object> value : property.getValue().entrySet()) {
+                json.writeObjectField(value.getKey(), value.getValue());
+            }
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    /**
+     * Creates the definition as parent/name with reindex=true. The caller saves the session.
+     */
+    public Node create(Session session, String parent, String name, boolean async) throws RepositoryException {
+        Node index = session.getNode(parent).addNode(name, "oak:QueryIndexDefinition");
+        index.setProperty("type", "lucene");
+        index.setProperty("compatVersion", 2L);
+        if (async) {
+            index.setProperty("async", new String[]{"async", "nrt"});
+        }
+        index.setProperty("evaluatePathRestrictions", true);
+        if (!paths.isEmpty()) {
+            index.setProperty("includedPaths", paths.toArray(new String[0]));
+            index.setProperty("queryPaths", paths.toArray(new String[0]));
+        }
+        index.setProperty("tags", new String[]{"mcp"});
+        index.setProperty("reindex", true);
+        Node properties = index.addNode("indexRules", "nt:unstructured")
+                .addNode(nodeType, "nt:unstructured")
+                .addNode("properties", "nt:unstructured");
+        for (Map.Entry<String, Map<String, Object>> property : properties().entrySet()) {
+            Node node = properties.addNode(property.getKey(), "nt:unstructured");
+            for (Map.Entry<String, Object> value : property.getValue().entrySet()) {
+                if (value.getValue() instanceof Boolean) {
+                    node.setProperty(value.getKey(), (Boolean) value.getValue());
+                } else {
+                    node.setProperty(value.getKey(), String.valueOf(value.getValue()));
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Property definition nodes by node name.
+     */
+    private Map<String, Map<String, Object>> properties() {
+        Map<String, Map<String, Object>> properties = new LinkedHashMap<>();
+        for (Rule rule : rules.values()) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            if (rule.function != null) {
+                values.put("function", rule.function);
+            } else {
+                values.put("name", rule.name);
+            }
+            values.put("propertyIndex", true);
+            if (rule.ordered) {
+                values.put("ordered", true);
+            }
+            if (rule.analyzed) {
+                values.put("analyzed", true);
+            }
+            if (rule.nullCheck) {
+                values.put("nullCheckEnabled", true);
+            }
+            if (rule.notNullCheck) {
+                values.put("notNullCheckEnabled", true);
+            }
+            properties.put(nodeName(rule.name, properties), values);
+        }
+        if (fulltext) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("name", ".*");
+            values.put("isRegexp", true);
+            values.put("nodeScopeIndex", true);
+            values.put("analyzed", true);
+            properties.put(nodeName("allProperties", properties), values);
+        }
+        return properties;
+    }
+
+    private static String nodeName(String property, Map<String, ?> taken) {
+        String base = property.replaceAll("[^A-Za-z0-9]+", "_").replaceAll("^_+|_+$", "");
+        if (base.isEmpty()) {
+            base = "property";
+        }
+        String name = base;
+        for (int i = 2; taken.containsKey(name); i++) {
+            name = base + i;
+        }
+        return name;
+    }
+
+    private static void writeStrings(JsonGenerator json, String field, List<String> values) throws IOException {
+        json.writeArrayFieldStart(field);
+        for (String value : values) {
+            json.writeString(value);
+        }
+        json.writeEndArray();
+    }
+}
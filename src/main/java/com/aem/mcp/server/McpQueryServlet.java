@@ -1,63 +1,773 @@
 package com.aem.mcp.server;
 
+import com.aem.mcp.common.PathWireFormat;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
-import javax.jcr.NodeIterator;
-import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.SimpleCredentials;
+import javax.jcr.query.InvalidQueryException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
 import javax.servlet.Servlet;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 @Component(service = Servlet.class,
         property = {
+                "sling.servlet.methods=GET",
                 "sling.servlet.methods=POST",
                 "sling.servlet.paths=/bin/mcp/query"
         })
+@Designate(ocd = McpQueryServlet.Config.class)
 public class McpQueryServlet extends SlingAllMethodsServlet {
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int FLUSH_INTERVAL = 500;
+
+    @ObjectClassDefinition(name = "MCP Query Servlet")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Result cache size (bytes)",
+                description = "Memory bound for cached query results. 0 disables the cache.")
+        long cache_max_bytes() default 32L * 1024 * 1024;
+
+        @AttributeDefinition(name = "Service user sub-service",
+                description = "Sub-service name mapped to the read-only query service user.")
+        String service_subservice() default "mcp-query";
+
+        @AttributeDefinition(name = "Session pool size",
+                description = "Maximum number of concurrent query sessions.")
+        int session_pool_size() default 8;
+
+        @AttributeDefinition(name = "Session borrow timeout (ms)",
+                description = "How long a request waits for a free session before failing with 503.")
+        long session_borrow_timeout_ms() default 5000;
+
+        @AttributeDefinition(name = "Traversal policy",
+                description = "What to do with statements whose plan traverses the repository: off, reject or"
+                        + " rewrite (scope unscoped statements to the rewrite root, reject if they still traverse)."
+                        + " Reject and rewrite cost an EXPLAIN per statement that is not served from the cache.")
+        String traversal_policy() default "off";
+
+        @AttributeDefinition(name = "Traversal rewrite root",
+                description = "Path that unscoped statements are limited to under the rewrite policy.")
+        String traversal_rewrite_root() default "/content";
+
+        @AttributeDefinition(name = "Query deadline (ms)",
+                description = "Default time a request may spend before returning what it has read so far."
+                        + " 0 disables it. Callers can override it with the deadlineMs parameter.")
+        long query_deadline_ms() default 10000;
+
+        @AttributeDefinition(name = "Maximum nodes read",
+                description = "Default number of result nodes a request may read before returning what it has."
+                        + " 0 disables it. Callers can override it with the maxNodes parameter.")
+        long query_max_nodes() default 100000;
+
+        @AttributeDefinition(name = "Batch worker threads",
+                description = "Statements of a batch request that run at the same time, across all requests.")
+        int batch_threads() default 4;
+
+        @AttributeDefinition(name = "Batch size limit",
+                description = "Maximum number of statements in one batch request.")
+        int batch_max_statements() default 50;
+
+        @AttributeDefinition(name = "Batch queue size",
+                description = "Batch statements that may wait for a worker, across all requests. A batch that"
+                        + " does not fit is rejected with 503.")
+        int batch_queue_size() default 200;
+
+        @AttributeDefinition(name = "Scatter worker threads",
+                description = "Partitions of scattered queries that run at the same time, across all requests."
+                        + " 0 uses one per available processor. Each holds a pooled session, so this is capped"
+                        + " at half the session pool size.")
+        int scatter_threads() default 0;
+
+        @AttributeDefinition(name = "Scatter partition limit",
+                description = "Scattering is skipped for roots with more children than this.")
+        int scatter_max_partitions() default 64;
+    }
+
+    @Reference
+    private SlingRepository repository;
+
     @Reference
-    private Repository repository;
+    private QueryShapeStats shapeStats;
+
+    private Session observationSession;
+    private QueryResultCache resultCache;
+    private SessionPool sessionPool;
+    private TraversalGuard traversalGuard;
+    private StatementExecutor statementExecutor;
+    private long deadlineMs;
+    private long maxNodes;
+    private BatchQueryExecutor batchExecutor;
+    private ScatterGatherExecutor scatterExecutor;
+
+    @Activate
+    protected void activate(Config config) throws RepositoryException {
+        String subservice = config.service_subservice();
+        sessionPool = new SessionPool(() -> repository.loginService(subservice, null),
+                config.session_pool_size(), config.session_borrow_timeout_ms());
+        traversalGuard = new TraversalGuard(TraversalGuard.Policy.of(config.traversal_policy()),
+                config.traversal_rewrite_root());
+        deadlineMs = config.query_deadline_ms();
+        maxNodes = config.query_max_nodes();
+        if (config.cache_max_bytes() > 0) {
+            observationSession = repository.loginService(subservice, null);
+            resultCache = new QueryResultCache(config.cache_max_bytes(),
+                    observationSession.getWorkspace().getObservationManager());
+        }
+        statementExecutor = new StatementExecutor(sessionPool, traversalGuard, resultCache, shapeStats);
+        batchExecutor = new BatchQueryExecutor(statementExecutor, config.batch_threads(),
+                config.batch_max_statements(), config.batch_queue_size());
+        int scatterThreads = config.scatter_threads() > 0 ? config.scatter_threads()
+                : Runtime.getRuntime().availableProcessors();
+        // Leave at least half of the sessions to ordinary requests.
+        scatterThreads = Math.max(1, Math.min(scatterThreads, config.session_pool_size() / 2));
+        scatterExecutor = new ScatterGatherExecutor(sessionPool, scatterThreads, config.scatter_max_partitions());
+    }
 
+    @Deactivate
+    protected void deactivate() {
+        if (batchExecutor != null) {
+            batchExecutor.close();
+            batchExecutor = null;
+        }
+        if (scatterExecutor != null) {
+            scatterExecutor.close();
+            scatterExecutor = null;
+        }
+        if (resultCache != null) {
+            resultCache.close();
+            resultCache = null;
+        }
+        if (observationSession != null) {
+            observationSession.logout();
+            observationSession = null;
+        }
+        if (sessionPool != null) {
+            sessionPool.close();
+            sessionPool = null;
+        }
+    }
+
+    /**
+     * Reports cache, session pool and statement shape statistics. The shapes themselves are
+     * served by IndexAdvisorServlet.
+     */
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        Map<String, Object> stats = new LinkedHashMap<>();
+        if (resultCache != null) {
+            stats.put("resultCache", resultCache.getStats());
+        }
+        if (sessionPool != null) {
+            stats.put("sessionPool", sessionPool.getStats());
+        }
+        stats.put("queryShapes", shapeStats.getStats());
+        response.getWriter().write(new ObjectMapper().writeValueAsString(stats));
+    }
+
+    /**
+     * Runs a JCR-SQL2 SELECT sent as the request body and streams the matching paths back as
+     * {"paths": [...], "count": n}.
+     *
+     * Optional request parameters:
+     * limit / offset - return one page of the result; the response then also carries
+     * "offset", "limit", "next" (a cursor for the following page, when there is one) and, on
+     * a first page that holds the whole result, "total".
+     * total - true to also get "total" on a first page with more results. Oak's estimate of it
+     * comes from running the statement again without limit, so it is off by default.
+     * cursor - continue from a previous response's "next"; the body may then be empty.
+     * columns - comma-separated columns to project, e.g. s.[jcr:content/jcr:title],cq:lastModifiedBy.
+     * The response then carries "columns" and "rows" (tuples starting with the path) instead of
+     * "paths".
+     * explain - return Oak's plan for the statement (index used, cost estimate, whether it
+     * traverses) and what the traversal guard would do with it, without executing it.
+     *
+     * Statements whose plan traverses the repository are handled according to the configured
+     * traversal policy. A rejected statement gets a 422 response with "code": "TRAVERSAL_REJECTED"
+     * and the plan; a rewritten one carries the executed statement in "rewritten".
+     *
+     * deadlineMs / maxNodes - override the configured time deadline and node-read budget (0
+     * disables either). Reading stops when one of them is reached and the response carries what
+     * was read so far with "truncated": true and "truncatedReason" ("deadline" or "maxNodes").
+     * The deadline is checked between result rows; inside Oak a statement is bounded by maxNodes,
+     * which caps the query's row limit.
+     *
+     * batch - the body is a JSON array of SELECT statements, run concurrently. The response is
+     * {"results": [...], "count": n, "ms": t} with one entry per statement in request order,
+     * each carrying its own "paths" and "count" (or "error"), "ms" and the fields above. limit,
+     * offset, deadlineMs and maxNodes apply to every statement; "next" continues one statement
+     * on its own. A statement whose paths outgrow the result cache's entry size is truncated
+     * with "truncatedReason": "maxBytes". A batch that does not fit the worker queue gets 503.
+     *
+     * aggregate - count, groupBy, facets or range (with property and, for groupBy/facets, top):
+     * return only a summary of the result, computed in one pass over its rows. See
+     * {@link Aggregation}. limit, offset, deadlineMs and maxNodes bound the rows it reads.
+     *
+     * scatter - for a statement constrained by ISDESCENDANTNODE, run one query per child subtree
+     * in parallel and stream the merged paths (see {@link ScatterGatherExecutor}); the response
+     * then carries "partitions". Statements that cannot be split and projections run as usual.
+     * Partitions come back in subtree order, which a plain query's next page would not continue,
+     * so scatter cannot be combined with limit, offset or cursor.
+     *
+     * Clients sending Accept: application/x-mcp-paths get plain path results in
+     * {@link PathWireFormat} instead of JSON (the Content-Type says which one was used), and
+     * Accept-Encoding: gzip compresses any response.
+     *
+     * Responses carry a Server-Timing header with the phases parse (reading the request), login
+     * (borrowing a session), query (planning and executing), iterate (reading result nodes) and
+     * serialize (writing the response), as far as they are known before the body is committed;
+     * successful responses also end with the complete phases in "timing". See
+     * {@link ServerTiming}.
+     */
     @Override
     protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        try (ServerTiming timing = ServerTiming.start(request)) {
+            if (GzipResponse.accepted(request.getHeader("Accept-Encoding"))) {
+                GzipResponse gzip = new GzipResponse(response);
+                try {
+                    handlePost(request, gzip, timing);
+                } finally {
+                    gzip.finish();
+                }
+            } else {
+                handlePost(request, response, timing);
+            }
+        }
+    }
+
+    private void handlePost(SlingHttpServletRequest request, SlingHttpServletResponse response, ServerTiming timing)
+            throws IOException {
+        long start = System.nanoTime();
         response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
 
         String queryString = IOUtils.toString(request.getInputStream(), StandardCharsets.UTF_8).trim();
+        long offset;
+        long limit;
+        long requestDeadlineMs;
+        long requestMaxNodes;
+        ReadBudget budget;
+        Aggregation aggregation = null;
+        List<String> columns = columnsParameter(request);
+        boolean countTotal = Boolean.parseBoolean(request.getParameter("total"));
+        boolean scatter = Boolean.parseBoolean(request.getParameter("scatter"));
+        try {
+            offset = longParameter(request, "offset");
+            limit = longParameter(request, "limit");
+            requestDeadlineMs = longParameter(request, "deadlineMs", deadlineMs);
+            requestMaxNodes = longParameter(request, "maxNodes", maxNodes);
+            if (requestDeadlineMs < 0 || requestMaxNodes < 0) {
+                throw new IllegalArgumentException("deadlineMs and maxNodes must not be negative.");
+            }
+            budget = new ReadBudget(start, requestDeadlineMs, requestMaxNodes);
+            String token = request.getParameter("cursor");
+            if (token != null && !token.isEmpty()) {
+                QueryCursor cursor = QueryCursor.decode(token);
+                if (queryString.isEmpty()) {
+                    queryString = cursor.getStatement();
+                } else if (!QueryResultCache.normalize(queryString).equals(cursor.getStatement())) {
+                    throw new IllegalArgumentException("The cursor belongs to a different query.");
+                }
+                offset = cursor.getOffset();
+                limit = cursor.getLimit();
+            }
+            if (offset < 0 || limit < 0) {
+                throw new IllegalArgumentException("limit and offset must not be negative.");
+            }
+            if (scatter && (offset > 0 || limit > 0)) {
+                // Partitions come back in subtree order, which a plain query's next page would not continue.
+                throw new IllegalArgumentException("scatter cannot be combined with limit, offset or cursor.");
+            }
+            String aggregate = request.getParameter("aggregate");
+            if (aggregate != null && !aggregate.trim().isEmpty()) {
+                aggregation = Aggregation.of(aggregate, request.getParameter("property"), request.getParameter("top"));
+            }
+        } catch (IllegalArgumentException e) {
+            writeError(response, 400, e.getMessage());
+            return;
+        }
+        timing.lap("parse");
+
+        if (Boolean.parseBoolean(request.getParameter("batch"))) {
+            batch(response, queryString, offset, limit, start, requestDeadlineMs, requestMaxNodes, timing);
+            return;
+        }
+
         if (!queryString.toLowerCase().startsWith("select")) {
-            response.setStatus(400);
-            response.getWriter().write("{\"error\":\"Only JCR-SQL2 SELECT queries are allowed.\"}");
+            writeError(response, 400, "Only JCR-SQL2 SELECT queries are allowed.");
             return;
         }
 
-        try  {Session session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
-            QueryManager qm = session.getWorkspace().getQueryManager();
-            Query query = qm.createQuery(queryString, Query.JCR_SQL2);
+        if (Boolean.parseBoolean(request.getParameter("explain"))) {
+            explain(response, queryString, timing);
+            return;
+        }
+
+        if (aggregation != null) {
+            aggregate(response, queryString, aggregation, offset, limit, budget, timing);
+            return;
+        }
+
+        String statement = QueryResultCache.normalize(queryString);
+        // Projections are not cached.
+        String cacheKey = columns == null ? StatementExecutor.cacheKey(statement, offset, limit) : null;
+        CompactPathList cached = cacheKey != null ? statementExecutor.cached(cacheKey) : null;
+        if (cached != null) {
+            timing.lap("cache");
+            PathOutput paths = openPaths(request, response);
+            long count = writePaths(paths, cached.iterator(), limit, null, null);
+            JsonGenerator json = paths.endPaths();
+            writePage(json, statement, offset, limit, count, cached.size() > count, -1);
+            finish(json, response, timing);
+            return;
+        }
+        if (scatter && columns == null && ScatterGatherExecutor.split(queryString) != null
+                && scatter(request, response, queryString, cacheKey, budget, timing)) {
+            return;
+        }
+        query(request, response, queryString, statement, cacheKey, columns, offset, limit, countTotal, budget, timing);
+    }
+
+    /**
+     * Runs the statement and streams its paths, or its projected rows when columns are given.
+     */
+    private void query(SlingHttpServletRequest request, SlingHttpServletResponse response, String queryString,
+                       String statement, String cacheKey, List<String> columns, long offset, long limit,
+                       boolean countTotal, ReadBudget budget, ServerTiming timing) throws IOException {
+        Output output = new Output();
+        try {
+            statementExecutor.execute(queryString, cacheKey, offset, limit, budget, timing, execution -> {
+                timing.apply(response);
+                QueryResult result = execution.getResult();
+                String executed = execution.getDecision().getStatement();
+                long count;
+                boolean more;
+                if (columns != null) {
+                    RowIterator rows = result.getRows();
+                    output.json = JSON_FACTORY.createGenerator(response.getWriter());
+                    output.json.writeStartObject();
+                    count = new RowProjection(columns, result.getColumnNames())
+                            .write(output.json, rows, limit, budget, FLUSH_INTERVAL);
+                    timing.lap("iterate");
+                    output.json.writeNumberField("count", count);
+                    more = limit > 0 && rows.hasNext();
+                } else {
+                    // Paths go to the client as the iterator advances, so memory use does not
+                    // grow with the size of the result.
+                    ResultPaths iterator = execution.paths();
+                    output.paths = openPaths(request, response);
+                    CompactPathList.Builder compact = execution.cacheBuilder();
+                    count = writePaths(output.paths, iterator, limit, budget, compact);
+                    timing.lap("iterate", iterator.getNanos(), "serialize");
+                    output.json = output.paths.endPaths();
+                    more = limit > 0 && iterator.hasNext();
+                    if (compact != null && !budget.isExhausted()) {
+                        if (more) {
+                            compact.add(iterator.next());
+                        }
+                        if (!compact.isOverflowed()) {
+                            execution.commit(compact.build());
+                        }
+                    }
+                }
+                JsonGenerator json = output.json;
+                budget.write(json);
+                long total = firstPageTotal(execution.getQueryManager(), executed, offset, limit, count, more,
+                        countTotal, budget);
+                timing.lap("query");
+                writePage(json, statement, offset, limit, count, more, total);
+                writeRewritten(json, execution.getDecision());
+                finish(json, response, timing);
+                return count;
+            });
+        } catch (SessionPool.PoolExhaustedException e) {
+            writeError(response, 503, e.getMessage());
+        } catch (TraversalGuard.TraversalRejectedException e) {
+            writeRejection(response, e);
+        } catch (Exception e) {
+            String message = String.valueOf(e.getMessage());
+            JsonGenerator json = output.json;
+            if (json == null && output.paths != null) {
+                json = output.paths.endPaths();
+            }
+            if (json == null) {
+                writeError(response, 500, message);
+            } else {
+                // The status is already committed; close the envelope with the error instead.
+                if (json.getOutputContext().inArray()) {
+                    json.writeEndArray();
+                }
+                json.writeStringField("error", message);
+                json.writeEndObject();
+                json.flush();
+            }
+        }
+    }
+
+    private void batch(SlingHttpServletResponse response, String body, long offset, long limit, long start,
+                       long requestDeadlineMs, long requestMaxNodes, ServerTiming timing) throws IOException {
+        List<String> statements = new ArrayList<>();
+        try {
+            JsonNode array = new ObjectMapper().readTree(body);
+            if (array == null || !array.isArray()) {
+                throw new IllegalArgumentException("A batch must be a JSON array of statements.");
+            }
+            for (JsonNode statement : array) {
+                if (!statement.isTextual()) {
+                    throw new IllegalArgumentException("A batch must be a JSON array of statements.");
+                }
+                statements.add(statement.asText());
+            }
+        } catch (JsonProcessingException e) {
+            writeError(response, 400, "A batch must be a JSON array of statements.");
+            return;
+        } catch (IllegalArgumentException e) {
+            writeError(response, 400, e.getMessage());
+            return;
+        }
+        if (statements.isEmpty() || statements.size() > batchExecutor.getMaxStatements()) {
+            writeError(response, 400, "A batch must hold between 1 and " + batchExecutor.getMaxStatements()
+                    + " statements.");
+            return;
+        }
+
+        List<BatchQueryExecutor.Outcome> outcomes;
+        try {
+            outcomes = batchExecutor.execute(statements, offset, limit, start, requestDeadlineMs, requestMaxNodes);
+        } catch (RejectedExecutionException e) {
+            writeError(response, 503, e.getMessage());
+            return;
+        }
+        timing.lap("query");
+        JsonGenerator json = JSON_FACTORY.createGenerator(response.getWriter());
+        json.writeStartObject();
+        json.writeArrayFieldStart("results");
+        for (BatchQueryExecutor.Outcome outcome : outcomes) {
+            outcome.write(json);
+        }
+        json.writeEndArray();
+        json.writeNumberField("count", outcomes.size());
+        json.writeNumberField("ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        finish(json, response, timing);
+    }
+
+    /**
+     * Streams the statement's paths from parallel per-subtree partitions and caches them like a
+     * plain query's.
+     *
+     * @return false, having written nothing, when the statement the traversal guard lets run
+     * cannot be split or its root has too many children to scatter.
+     */
+    private boolean scatter(SlingHttpServletRequest request, SlingHttpServletResponse response, String queryString,
+                            String cacheKey, ReadBudget budget, ServerTiming timing) throws IOException {
+        long start = System.nanoTime();
+        Output output = new Output();
+        // Opened before any partition's session is refreshed; see StatementExecutor.
+        try (QueryResultCache.Ticket ticket = resultCache != null ? resultCache.open(cacheKey, queryString) : null) {
+            TraversalGuard.Decision decision;
+            try (SessionPool.Lease lease = sessionPool.borrow()) {
+                timing.lap("login");
+                decision = traversalGuard.check(lease.getSession().getWorkspace().getQueryManager(), queryString);
+            }
+            ScatterGatherExecutor.Split split = ScatterGatherExecutor.split(decision.getStatement());
+            List<String> partitions = split != null ? scatterExecutor.partitions(split) : null;
+            if (partitions == null) {
+                return false;
+            }
+            timing.lap("query");
+            timing.apply(response);
+            output.paths = openPaths(request, response);
+            CompactPathList.Builder compact = ticket != null
+                    ? CompactPathList.builder(resultCache.maxEntryBytes()) : null;
+            // Partitions query and read in parallel; their combined time counts as iterate.
+            long count = scatterExecutor.execute(partitions, budget, output.paths, FLUSH_INTERVAL, compact);
+            timing.lap("iterate");
+            if (compact != null && !budget.isExhausted() && !compact.isOverflowed()) {
+                ticket.commit(compact.build());
+            }
+            JsonGenerator json = output.json = output.paths.endPaths();
+            json.writeNumberField("count", count);
+            budget.write(json);
+            json.writeNumberField("partitions", partitions.size());
+            writeRewritten(json, decision);
+            finish(json, response, timing);
+            shapeStats.record(decision.getStatement(), System.nanoTime() - start, count, decision.getPlan());
+        } catch (SessionPool.PoolExhaustedException e) {
+            writeError(response, 503, e.getMessage());
+        } catch (TraversalGuard.TraversalRejectedException e) {
+            writeRejection(response, e);
+        } catch (InvalidQueryException e) {
+            writeError(response, 400, e.getMessage());
+        } catch (RepositoryException | RuntimeException e) {
+            JsonGenerator json = output.json;
+            if (json == null && output.paths != null) {
+                json = output.paths.endPaths();
+            }
+            if (json == null) {
+                writeError(response, 500, e.getMessage());
+            } else {
+                json.writeStringField("error", String.valueOf(e.getMessage()));
+                json.writeEndObject();
+                json.flush();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the statement and writes only the aggregation's summary. Results are not cached.
+     */
+    private void aggregate(SlingHttpServletResponse response, String queryString, Aggregation aggregation,
+                           long offset, long limit, ReadBudget budget, ServerTiming timing) throws IOException {
+        JsonGenerator json = null;
+        try (SessionPool.Lease lease = sessionPool.borrow()) {
+            timing.lap("login");
+            QueryManager qm = lease.getSession().getWorkspace().getQueryManager();
+            TraversalGuard.Decision decision = traversalGuard.check(qm, queryString);
+            Query query = qm.createQuery(decision.getStatement(), Query.JCR_SQL2);
+            long queryLimit = budget.queryLimit(limit);
+            if (queryLimit > 0) {
+                query.setLimit(queryLimit);
+            }
+            if (offset > 0) {
+                query.setOffset(offset);
+            }
             QueryResult result = query.execute();
+            timing.lap("query");
+            json = JSON_FACTORY.createGenerator(response.getWriter());
+            json.writeStartObject();
+            aggregation.write(json, result, budget);
+            timing.lap("iterate");
+            writeRewritten(json, decision);
+            finish(json, response, timing);
+        } catch (SessionPool.PoolExhaustedException e) {
+            writeError(response, 503, e.getMessage());
+        } catch (TraversalGuard.TraversalRejectedException e) {
+            writeRejection(response, e);
+        } catch (InvalidQueryException e) {
+            writeError(response, 400, e.getMessage());
+        } catch (RepositoryException | RuntimeException e) {
+            String message = String.valueOf(e.getMessage());
+            if (json == null) {
+                writeError(response, 500, message);
+            } else {
+                json.writeStringField("error", message);
+                json.writeEndObject();
+                json.flush();
+            }
+        }
+    }
+
+    /**
+     * Writes Oak's plan for the statement and the traversal guard's verdict without running it.
+     */
+    private void explain(SlingHttpServletResponse response, String queryString, ServerTiming timing)
+            throws IOException {
+        try (SessionPool.Lease lease = sessionPool.borrow()) {
+            timing.lap("login");
+            QueryManager qm = lease.getSession().getWorkspace().getQueryManager();
+            QueryPlan plan = QueryPlan.explain(qm, queryString);
+            String action;
+            String rewritten = null;
+            try {
+                TraversalGuard.Decision decision = traversalGuard.check(qm, queryString);
+                action = decision.isRewritten() ? "rewrite" : "run";
+                if (decision.isRewritten()) {
+                    rewritten = decision.getStatement();
+                }
+            } catch (TraversalGuard.TraversalRejectedException e) {
+                action = "reject";
+            }
+            timing.lap("query");
 
-            NodeIterator nodes = result.getNodes();
-            List<String> paths = new ArrayList<>();
-            while (nodes.hasNext()) {
-                paths.add(nodes.nextNode().getPath());
+            JsonGenerator json = JSON_FACTORY.createGenerator(response.getWriter());
+            json.writeStartObject();
+            json.writeStringField("statement", queryString);
+            plan.write(json);
+            json.writeStringField("policy", traversalGuard.getPolicy().name().toLowerCase());
+            json.writeStringField("action", action);
+            if (rewritten != null) {
+                json.writeStringField("rewritten", rewritten);
             }
+            finish(json, response, timing);
+        } catch (SessionPool.PoolExhaustedException e) {
+            writeError(response, 503, e.getMessage());
+        } catch (InvalidQueryException e) {
+            writeError(response, 400, e.getMessage());
+        } catch (RepositoryException e) {
+            writeError(response, 500, e.getMessage());
+        }
+    }
 
-            response.getWriter().write(new ObjectMapper().writeValueAsString(paths));
+    /**
+     * Ends a successful response: the remaining time counts as serialize, and the timings go
+     * into "timing" and, while the response is still uncommitted, the Server-Timing header.
+     */
+    private static void finish(JsonGenerator json, SlingHttpServletResponse response, ServerTiming timing)
+            throws IOException {
+        timing.lap("serialize");
+        timing.write(json);
+        json.writeEndObject();
+        timing.apply(response);
+        json.flush();
+    }
 
-        } catch (Exception e) {
-            response.setStatus(500);
-            response.getWriter().write("{\"error\":\"" + e.getMessage().replace("\"", "'") + "\"}");
+    private static void writeRewritten(JsonGenerator json, TraversalGuard.Decision decision) throws IOException {
+        if (decision.isRewritten()) {
+            json.writeStringField("rewritten", decision.getStatement());
         }
     }
+
+    private static void writeRejection(SlingHttpServletResponse response, TraversalGuard.TraversalRejectedException e)
+            throws IOException {
+        response.setStatus(422);
+        JsonGenerator json = JSON_FACTORY.createGenerator(response.getWriter());
+        json.writeStartObject();
+        json.writeStringField("error", e.getMessage());
+        json.writeStringField("code", TraversalGuard.TraversalRejectedException.CODE);
+        e.getPlan().write(json);
+        json.writeEndObject();
+        json.flush();
+    }
+
+    private static void writeError(SlingHttpServletResponse response, int status, String message) throws IOException {
+        response.setStatus(status);
+        JsonGenerator json = JSON_FACTORY.createGenerator(response.getWriter());
+        json.writeStartObject();
+        json.writeStringField("error", String.valueOf(message));
+        json.writeEndObject();
+        json.flush();
+    }
+
+    /**
+     * Starts a path result in the format the client asked for.
+     */
+    private static PathOutput openPaths(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws IOException {
+        if (PathWireFormat.accepts(request.getHeader("Accept"))) {
+            response.setContentType(PathWireFormat.MEDIA_TYPE);
+            return PathOutput.compact(response.getOutputStream(), JSON_FACTORY);
+        }
+        return PathOutput.json(JSON_FACTORY.createGenerator(response.getWriter()));
+    }
+
+    /**
+     * Writes up to limit paths (all when limit is 0), flushing periodically, until the budget
+     * (if any) runs out, then closes the list and writes "count". Paths are also added to the
+     * compact builder when one is given.
+     *
+     * @return the number of paths written.
+     */
+    private static long writePaths(PathOutput output, Iterator<String> paths, long limit, ReadBudget budget,
+                                   CompactPathList.Builder compact) throws IOException {
+        long count = 0;
+        while ((limit == 0 || count < limit) && paths.hasNext() && (budget == null || budget.tryRead())) {
+            String path = paths.next();
+            output.path(path);
+            if (++count % FLUSH_INTERVAL == 0) {
+                output.flush();
+            }
+            if (compact != null) {
+                compact.add(path);
+            }
+        }
+        output.endPaths().writeNumberField("count", count);
+        return count;
+    }
+
+    private static void writePage(JsonGenerator json, String statement, long offset, long limit, long count,
+                                  boolean more, long total) throws IOException {
+        if (limit == 0 && offset == 0) {
+            return;
+        }
+        json.writeNumberField("offset", offset);
+        json.writeNumberField("limit", limit);
+        if (more) {
+            json.writeStringField("next", new QueryCursor(statement, offset + count, limit).encode());
+        }
+        if (total >= 0) {
+            json.writeNumberField("total", total);
+        }
+    }
+
+    /**
+     * Total-count hint for the first page of a paged query: exact when everything fit on the
+     * page. Otherwise -1, or with countTotal Oak's estimate (-1 when it has none), which costs a
+     * second, unlimited execution of the statement and is skipped once the budget is spent.
+     */
+    private static long firstPageTotal(QueryManager qm, String queryString, long offset, long limit, long count,
+                                       boolean more, boolean countTotal, ReadBudget budget)
+            throws RepositoryException {
+        if (limit == 0 || offset > 0) {
+            return -1;
+        }
+        if (!more) {
+            return count;
+        }
+        // Rows rather than nodes, which Oak refuses for a join.
+        return countTotal && !budget.isExhausted()
+                ? qm.createQuery(queryString, Query.JCR_SQL2).execute().getRows().getSize() : -1;
+    }
+
+    private static List<String> columnsParameter(SlingHttpServletRequest request) {
+        String value = request.getParameter("columns");
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        List<String> columns = new ArrayList<>();
+        for (String column : value.split(",")) {
+            if (!column.trim().isEmpty()) {
+                columns.add(column.trim());
+            }
+        }
+        return columns;
+    }
+
+    private static long longParameter(SlingHttpServletRequest request, String name) {
+        return longParameter(request, name, 0);
+    }
+
+    private static long longParameter(SlingHttpServletRequest request, String name, long defaultValue) {
+        String value = request.getParameter(name);
+        return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * What a response has opened so far, so an error after the status is committed can close
+     * the envelope instead.
+     */
+    private static final class Output {
+        PathOutput paths;
+        JsonGenerator json;
+    }
 }
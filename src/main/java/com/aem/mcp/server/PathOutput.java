@@ -0,0 +1,80 @@
+package com.aem.mcp.server;
+
+import com.aem.mcp.common.PathWireFormat;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The "paths" list of a McpQueryServlet response, written as a JSON array or, when the client
+ * accepts it, in {@link PathWireFormat}. Either way {@link #endPaths()} hands back a
+ * JsonGenerator positioned inside the envelope object for the fields that follow.
+ */
+public final class PathOutput {
+
+    private final JsonGenerator json;
+    private final PathWireFormat.Writer compact;
+    private final OutputStream out;
+    private final JsonFactory factory;
+    private JsonGenerator trailer;
+
+    private PathOutput(JsonGenerator json, PathWireFormat.Writer compact, OutputStream out, JsonFactory factory) {
+        this.json = json;
+        this.compact = compact;
+        this.out = out;
+        this.factory = factory;
+    }
+
+    /**
+     * Opens {"paths": [ on the generator.
+     */
+    public static PathOutput json(JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        json.writeArrayFieldStart("paths");
+        return new PathOutput(json, null, null, null);
+    }
+
+    /**
+     * Writes the PathWireFormat header to the stream; the trailing fields are written as JSON
+     * with the given factory.
+     */
+    public static PathOutput compact(OutputStream out, JsonFactory factory) throws IOException {
+        return new PathOutput(null, new PathWireFormat.Writer(out), out, factory);
+    }
+
+    public void path(String path) throws IOException {
+        if (compact != null) {
+            compact.path(path);
+        } else {
+            json.writeString(path);
+        }
+    }
+
+    public void flush() throws IOException {
+        if (compact != null) {
+            compact.flush();
+        } else {
+            json.flush();
+        }
+    }
+
+    /**
+     * Closes the path list (once) and returns the generator for the remaining envelope fields.
+     */
+    public JsonGenerator endPaths() throws IOException {
+        if (compact == null) {
+            if (json.getOutputContext().inArray()) {
+                json.writeEndArray();
+            }
+            return json;
+        }
+        if (trailer == null) {
+            compact.end();
+            trailer = factory.createGenerator(out);
+            trailer.writeStartObject();
+        }
+        return trailer;
+    }
+}
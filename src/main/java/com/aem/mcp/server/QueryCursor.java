@@ -0,0 +1,67 @@
+package com.aem.mcp.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque continuation token for paged /bin/mcp/query results. It carries the statement and
+ * the position of the next page so a client can continue without resending the query.
+ */
+public final class QueryCursor {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String statement;
+    private final long offset;
+    private final long limit;
+
+    public QueryCursor(String statement, long offset, long limit) {
+        this.statement = statement;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    public String getStatement() {
+        return statement;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public String encode() {
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put("q", statement);
+        node.put("o", offset);
+        node.put("l", limit);
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MAPPER.writeValueAsBytes(node));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException when the token was not produced by {@link #encode()}.
+     */
+    public static QueryCursor decode(String token) {
+        try {
+            JsonNode node = MAPPER.readTree(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+            if (!node.path("q").isTextual() || !node.path("o").canConvertToLong() || !node.path("l").canConvertToLong()) {
+                throw new IllegalArgumentException("Malformed cursor.");
+            }
+            return new QueryCursor(node.get("q").asText(), node.get("o").asLong(), node.get("l").asLong());
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor.", e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.aem.mcp.server;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.RowIterator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Oak's execution plan for a JCR-SQL2 statement, obtained by running it with the "explain"
+ * prefix. Nothing is read from the repository besides the plan itself.
+ *
+ * A plan has one comment per selector naming the index that serves it, e.g.
+ * [cq:Page] as [s] /* lucene:cqPageLucene(/oak:index/cqPageLucene) ... *&#47; or
+ * [nt:base] as [s] /* traverse "*" ... *&#47; when no index applies.
+ */
+public final class QueryPlan {
+
+    private static final Pattern INDEX = Pattern.compile("/\\*\\s*(\\S+)(?:\\s+(\\S+))?");
+    private static final Pattern COST = Pattern.compile("(?i)cost[:=]\\s*(?:\\{\\s*)?(?:\"[^\"]*\"\\s*:\\s*)?([0-9][0-9.Ee+-]*)");
+
+    private final String plan;
+    private final List<String> indexes = new ArrayList<>();
+    private final boolean traversal;
+    private final double cost;
+
+    QueryPlan(String plan) {
+        this.plan = plan;
+        boolean traverses = false;
+        Matcher index = INDEX.matcher(plan);
+        while (index.find()) {
+            String type = index.group(1);
+            if (type.equals("traverse")) {
+                traverses = true;
+                indexes.add(type);
+            } else if (type.equals("property") && index.group(2) != null) {
+                indexes.add(type + " " + index.group(2));
+            } else {
+                indexes.add(type);
+            }
+        }
+        this.traversal = traverses;
+
+        double total = -1;
+        Matcher costs = COST.matcher(plan);
+        while (costs.find()) {
+            try {
+                total = Math.max(total, 0) + Double.parseDouble(costs.group(1));
+            } catch (NumberFormatException e) {
+                // Not a number after all; leave the estimate as it is.
+            }
+        }
+        this.cost = total;
+    }
+
+    public static QueryPlan explain(QueryManager qm, String statement) throws RepositoryException {
+        Query query = qm.createQuery("explain " + statement, Query.JCR_SQL2);
+        RowIterator rows = query.execute().getRows();
+        if (!rows.hasNext()) {
+            return new QueryPlan("");
+        }
+        Value value = rows.nextRow().getValue("plan");
+        return new QueryPlan(value == null ? "" : value.getString());
+    }
+
+    public String getPlan() {
+        return plan;
+    }
+
+    /**
+     * Index used per selector in plan order, e.g. "lucene:cqPageLucene(/oak:index/cqPageLucene)",
+     * "property cq:template" or "traverse".
+     */
+    public List<String> getIndexes() {
+        return Collections.unmodifiableList(indexes);
+    }
+
+    /**
+     * True when at least one selector is evaluated by walking the repository.
+     */
+    public boolean isTraversal() {
+        return traversal;
+    }
+
+    /**
+     * Oak's cost estimate, or -1 when the plan does not carry one (older Oak versions).
+     */
+    public double getCost() {
+        return cost;
+    }
+
+    /**
+     * Writes "plan", "indexes", "traversal" and "cost" fields into the current JSON object.
+     */
+    public void write(JsonGenerator json) throws IOException {
+        json.writeStringField("plan", plan);
+        json.writeArrayFieldStart("indexes");
+        for (String index : indexes) {
+            json.writeString(index);
+        }
+        json.writeEndArray();
+        json.writeBooleanField("traversal", traversal);
+        if (cost >= 0) {
+            json.writeNumberField("cost", cost);
+        } else {
+            json.writeNullField("cost");
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.aem.mcp.server;
+
+import com.aem.mcp.common.Sql2Statement;
+import com.aem.mcp.common.Sql2SyntaxException;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-process cache of query results for McpQueryServlet, keyed by the normalized statement.
+ *
+ * Entries are evicted least-recently-used once their combined size passes the memory bound.
+ * Each cached statement is tied to the paths its parsed form restricts every selector to (see
+ * {@link Sql2Statement#pathScopes}), or to the whole repository when it does not, e.g. for an
+ * OR with other predicates, a NOT, or a join with an unrestricted selector. A JCR observation
+ * listener is registered per path while at least one entry depends on it, and any change below
+ * that path drops the dependent entries.
+ *
+ * Observation in Oak is asynchronous, so a change becomes visible here shortly after it is
+ * committed rather than instantly.
+ */
+public class QueryResultCache {
+
+    private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED
+            | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+    private final long maxBytes;
+    private final ObservationManager observationManager;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, ScopeListener> listeners = new HashMap<>();
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public QueryResultCache(long maxBytes, ObservationManager observationManager) {
+        this.maxBytes = maxBytes;
+        this.observationManager = observationManager;
+    }
+
+    private static final class Entry {
+        final CompactPathList paths;
+        final Set<String> scopes;
+        final long size;
+
+        Entry(String key, CompactPathList paths, Set<String> scopes) {
+            this.paths = paths;
+            this.scopes = scopes;
+            this.size = paths.byteSize() + key.length() * 2L + 64;
+        }
+    }
+
+    /**
+     * Observation listener for one scope path, shared by every entry and open ticket that
+     * depends on it.
+     */
+    private final class ScopeListener implements EventListener {
+        final String scope;
+        int references;
+        long changes;
+
+        ScopeListener(String scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        public void onEvent(EventIterator events) {
+            List<String> changed = new ArrayList<>();
+            while (events.hasNext()) {
+                try {
+                    changed.add(events.nextEvent().getPath());
+                } catch (RepositoryException e) {
+                    changed.add(scope);
+                }
+            }
+            invalidate(this, changed);
+        }
+    }
+
+    /**
+     * Reservation for a statement that is about to run. Its listeners are registered before
+     * the session that runs it is refreshed, so a change committed after the snapshot the query
+     * reads prevents the result from being cached.
+     */
+    public final class Ticket implements AutoCloseable {
+        private final String key;
+        private final Set<String> scopes;
+        private final Map<String, Long> changesAtOpen = new HashMap<>();
+        private boolean closed;
+
+        private Ticket(String key, Set<String> scopes) {
+            this.key = key;
+            this.scopes = scopes;
+        }
+
+        public void commit(CompactPathList paths) {
+            put(this, paths);
+        }
+
+        @Override
+        public void close() {
+            synchronized (QueryResultCache.this) {
+                if (!closed) {
+                    closed = true;
+                    release(scopes);
+                }
+            }
+        }
+    }
+
+    public synchronized CompactPathList get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.paths;
+    }
+
+    public synchronized Ticket open(String key, String statement) throws RepositoryException {
+        Ticket ticket = new Ticket(key, scopesOf(statement));
+        for (String scope : ticket.scopes) {
+            ScopeListener listener = acquire(scope);
+            ticket.changesAtOpen.put(scope, listener.changes);
+        }
+        return ticket;
+    }
+
+    /**
+     * Largest entry worth collecting; anything bigger would evict most of the cache.
+     */
+    public long maxEntryBytes() {
+        return maxBytes / 4;
+    }
+
+    private synchronized void put(Ticket ticket, CompactPathList paths) {
+        if (ticket.closed) {
+            return;
+        }
+        for (String scope : ticket.scopes) {
+            ScopeListener listener = listeners.get(scope);
+            if (listener == null || listener.changes != ticket.changesAtOpen.get(scope)) {
+                return;
+            }
+        }
+        Entry entry = new Entry(ticket.key, paths, ticket.scopes);
+        if (entry.size > maxEntryBytes()) {
+            return;
+        }
+        Entry previous = entries.put(ticket.key, entry);
+        if (previous != null) {
+            remove(previous);
+        }
+        for (String scope : entry.scopes) {
+            listeners.get(scope).references++;
+        }
+        bytes += entry.size;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            remove(evicted);
+            evictions++;
+        }
+    }
+
+    private synchronized void invalidate(ScopeListener listener, List<String> changedPaths) {
+        listener.changes++;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.scopes.contains(listener.scope) && affects(changedPaths, entry.scopes)) {
+                it.remove();
+                remove(entry);
+                invalidations++;
+            }
+        }
+    }
+
+    private static boolean affects(List<String> changedPaths, Set<String> scopes) {
+        for (String changed : changedPaths) {
+            for (String scope : scopes) {
+                if (isAncestorOrSelf(scope, changed) || isAncestorOrSelf(changed, scope)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAncestorOrSelf(String ancestor, String path) {
+        return ancestor.equals("/") || path.equals(ancestor) || path.startsWith(ancestor + "/");
+    }
+
+    private void remove(Entry entry) {
+        bytes -= entry.size;
+        release(entry.scopes);
+    }
+
+    private ScopeListener acquire(String scope) throws RepositoryException {
+        ScopeListener listener = listeners.get(scope);
+        if (listener == null) {
+            listener = new ScopeListener(scope);
+            observationManager.addEventListener(listener, EVENT_TYPES, scope, true, null, null, false);
+            listeners.put(scope, listener);
+        }
+        listener.references++;
+        return listener;
+    }
+
+    private void release(Set<String> scopes) {
+        for (String scope : scopes) {
+            ScopeListener listener = listeners.get(scope);
+            if (listener != null && --listener.references <= 0) {
+                listeners.remove(scope);
+                try {
+                    observationManager.removeEventListener(listener);
+                } catch (RepositoryException e) {
+                    // The observation session is going away; nothing left to unregister.
+                }
+            }
+        }
+    }
+
+    public synchronized void close() {
+        for (ScopeListener listener : listeners.values()) {
+            try {
+                observationManager.removeEventListener(listener);
+            } catch (RepositoryException e) {
+                // Ignore, the session is closed right after this.
+            }
+        }
+        listeners.clear();
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Cache key for a statement: its canonical form (see {@link Sql2Statement}), so spelling,
+     * spacing and quoting do not matter. A statement the parser does not accept is keyed by its
+     * text with whitespace outside literals and names collapsed and a trailing semicolon
+     * dropped; Oak will report what is wrong with it.
+     */
+    public static String normalize(String statement) {
+        Sql2Statement parsed = parse(statement);
+        return parsed != null ? parsed.toString() : collapse(statement);
+    }
+
+    private static String collapse(String statement) {
+        StringBuilder key = new StringBuilder(statement.length());
+        char close = 0;
+        boolean pendingSpace = false;
+        for (int i = 0; i < statement.length(); i++) {
+            char c = statement.charAt(i);
+            if (close == 0 && Character.isWhitespace(c)) {
+                pendingSpace = key.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                key.append(' ');
+                pendingSpace = false;
+            }
+            if (close == 0 && (c == '\'' || c == '"' || c == '[')) {
+                close = c == '[' ? ']' : c;
+            } else if (c == close) {
+                close = 0;
+            }
+            key.append(c);
+        }
+        int end = key.length();
+        while (end > 0 && (key.charAt(end - 1) == ';' || key.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        return key.substring(0, end);
+    }
+
+    /**
+     * The parsed statement, ignoring trailing semicolons, or null when the parser does not
+     * accept it.
+     */
+    static Sql2Statement parse(String statement) {
+        String text = statement.trim();
+        while (text.endsWith(";")) {
+            text = text.substring(0, text.length() - 1).trim();
+        }
+        try {
+            return Sql2Statement.parse(text);
+        } catch (Sql2SyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Paths a statement's results depend on; the whole repository ("/") unless every selector
+     * is restricted to a path by a top-level AND.
+     */
+    static Set<String> scopesOf(String statement) {
+        Sql2Statement parsed = parse(statement);
+        Set<String> scopes = parsed != null ? new LinkedHashSet<>(parsed.pathScopes()) : new LinkedHashSet<>();
+        if (scopes.isEmpty() || scopes.contains("/")) {
+            return Collections.singleton("/");
+        }
+        return scopes;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("bytes", bytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("listeners", listeners.size());
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("invalidations", invalidations);
+        return stats;
+    }
+}
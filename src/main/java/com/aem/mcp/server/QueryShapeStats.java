@@ -0,0 +1,264 @@
+package com.aem.mcp.server;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Execution statistics per statement shape, shared by McpQueryServlet (which records) and
+ * IndexAdvisorServlet (which reads).
+ *
+ * A shape is the normalized statement with string and number literals replaced by ?, so
+ * "pages modified by alice" and "pages modified by bob" count as one. Bracketed names and
+ * paths are kept since they decide which index applies. Shapes are evicted least recently
+ * seen first once the configured number is tracked.
+ */
+@Component(service = QueryShapeStats.class)
+@Designate(ocd = QueryShapeStats.Config.class)
+public class QueryShapeStats {
+
+    @ObjectClassDefinition(name = "MCP Query Shape Statistics")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Tracked shapes",
+                description = "Distinct statement shapes kept; the least recently seen is dropped beyond this.")
+        int max_shapes() default 500;
+    }
+
+    /**
+     * Totals for one shape. The statement, indexes and cost are from its latest execution.
+     */
+    public static final class Shape {
+        private final String id;
+        private final String shape;
+        private String statement;
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+        private long totalRows;
+        private long traversals;
+        private List<String> indexes = Collections.emptyList();
+        private double cost = -1;
+        private long lastSeen;
+
+        Shape(String id, String shape) {
+            this.id = id;
+            this.shape = shape;
+        }
+
+        private Shape copy() {
+            Shape copy = new Shape(id, shape);
+            copy.statement = statement;
+            copy.count = count;
+            copy.totalNanos = totalNanos;
+            copy.maxNanos = maxNanos;
+            copy.totalRows = totalRows;
+            copy.traversals = traversals;
+            copy.indexes = indexes;
+            copy.cost = cost;
+            copy.lastSeen = lastSeen;
+            return copy;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        /**
+         * The most recent statement of this shape, with its literals.
+         */
+        public String getStatement() {
+            return statement;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalMs() {
+            return TimeUnit.NANOSECONDS.toMillis(totalNanos);
+        }
+
+        public double getMeanMs() {
+            return count == 0 ? 0 : totalNanos / 1e6 / count;
+        }
+
+        public long getMaxMs() {
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos);
+        }
+
+        public double getMeanRows() {
+            return count == 0 ? 0 : (double) totalRows / count;
+        }
+
+        /**
+         * Executions whose plan traversed the repository.
+         */
+        public long getTraversals() {
+            return traversals;
+        }
+
+        /**
+         * Indexes of the latest plan; empty when no plan was fetched.
+         */
+        public List<String> getIndexes() {
+            return indexes;
+        }
+
+        /**
+         * Cost estimate of the latest plan, or -1 when unknown.
+         */
+        public double getCost() {
+            return cost;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    private final LinkedHashMap<String, Shape> shapes = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile int maxShapes;
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        maxShapes = Math.max(1, config.max_shapes());
+    }
+
+    /**
+     * Adds one execution.
+     *
+     * @param plan the plan it ran with, or null when none was fetched.
+     */
+    public synchronized void record(String statement, long nanos, long rows, QueryPlan plan) {
+        String text = shapeOf(statement);
+        String id = idOf(text);
+        Shape shape = shapes.get(id);
+        if (shape == null) {
+            shape = new Shape(id, text);
+            shapes.put(id, shape);
+            while (shapes.size() > maxShapes) {
+                shapes.remove(shapes.keySet().iterator().next());
+            }
+        }
+        shape.statement = statement;
+        shape.count++;
+        shape.totalNanos += nanos;
+        shape.maxNanos = Math.max(shape.maxNanos, nanos);
+        shape.totalRows += rows;
+        shape.lastSeen = System.currentTimeMillis();
+        if (plan != null) {
+            shape.indexes = plan.getIndexes();
+            shape.cost = plan.getCost();
+            if (plan.isTraversal()) {
+                shape.traversals++;
+            }
+        }
+    }
+
+    /**
+     * Shapes seen at least minCount times, most total time first.
+     */
+    public synchronized List<Shape> top(int n, long minCount) {
+        List<Shape> result = new ArrayList<>();
+        for (Shape shape : shapes.values()) {
+            if (shape.count >= minCount) {
+                result.add(shape.copy());
+            }
+        }
+        result.sort(Comparator.comparingLong((Shape shape) -> shape.totalNanos).reversed());
+        return result.size() > n ? new ArrayList<>(result.subList(0, n)) : result;
+    }
+
+    /**
+     * @return a copy of the shape's statistics, or null for an unknown id.
+     */
+    public synchronized Shape get(String id) {
+        Shape shape = shapes.get(id);
+        return shape == null ? null : shape.copy();
+    }
+
+    public synchronized void clear() {
+        shapes.clear();
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("shapes", shapes.size());
+        stats.put("maxShapes", maxShapes);
+        return stats;
+    }
+
+    /**
+     * The normalized statement with string and number literals replaced by ?.
+     */
+    static String shapeOf(String statement) {
+        String normalized = QueryResultCache.normalize(statement);
+        StringBuilder shape = new StringBuilder(normalized.length());
+        int i = 0;
+        while (i < normalized.length()) {
+            char c = normalized.charAt(i);
+            if (c == '\'' || c == '"') {
+                int end = i + 1;
+                while (end < normalized.length()) {
+                    if (normalized.charAt(end) == c) {
+                        if (end + 1 < normalized.length() && normalized.charAt(end + 1) == c) {
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    end++;
+                }
+                shape.append('?');
+                i = end + 1;
+            } else if (c == '[') {
+                int end = normalized.indexOf(']', i);
+                end = end < 0 ? normalized.length() : end + 1;
+                shape.append(normalized, i, end);
+                i = end;
+            } else if (Character.isDigit(c) && (i == 0 || !Character.isLetterOrDigit(normalized.charAt(i - 1))
+                    && normalized.charAt(i - 1) != '_' && normalized.charAt(i - 1) != ':')) {
+                int end = i;
+                while (end < normalized.length()
+                        && (Character.isLetterOrDigit(normalized.charAt(end)) || normalized.charAt(end) == '.')) {
+                    end++;
+                }
+                shape.append('?');
+                i = end;
+            } else {
+                shape.append(c);
+                i++;
+            }
+        }
+        return shape.toString();
+    }
+
+    /**
+     * Stable short id for a shape (64-bit FNV-1a in hex), used to refer to it in requests.
+     */
+    static String idOf(String shape) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < shape.length(); i++) {
+            hash ^= shape.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return String.format("%016x", hash);
+    }
+}
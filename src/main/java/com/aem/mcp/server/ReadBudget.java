@@ -0,0 +1,135 @@
+package com.aem.mcp.server;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time deadline and node-read budget for one McpQueryServlet request.
+ *
+ * Oak evaluates queries lazily, so the cost of a runaway statement is paid while its result is
+ * iterated. The servlet asks for every node it reads and stops once the deadline has passed or
+ * the budget is spent, then reports what it has with a "truncated" flag and the reason.
+ *
+ * Those checks only run between result rows. Oak can read far more than that while filtering
+ * or sorting before it returns a row, so the budget also caps the query's own row limit (see
+ * {@link #queryLimit}). The deadline is only checked on the thread that owns the session: JCR
+ * sessions are not thread-safe, so nothing else may stop a query by touching its session.
+ */
+public final class ReadBudget {
+
+    public enum Reason {
+        DEADLINE("deadline"), MAX_NODES("maxNodes"), MAX_BYTES("maxBytes");
+
+        private final String label;
+
+        Reason(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+    }
+
+    private final long deadlineNanos;
+    private final long maxNodes;
+    private long reads;
+    private Reason reason;
+
+    /**
+     * @param startNanos when the request started, from System.nanoTime().
+     * @param deadlineMs time allowed from startNanos; 0 for none.
+     * @param maxNodes nodes that may be read; 0 for no limit.
+     */
+    public ReadBudget(long startNanos, long deadlineMs, long maxNodes) {
+        this.deadlineNanos = deadlineMs > 0 ? startNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMs) : 0;
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Accounts for reading one more node.
+     *
+     * @return false, without counting the read, once either limit has been reached.
+     */
+    public boolean tryRead() {
+        if (reason != null) {
+            return false;
+        }
+        if (maxNodes > 0 && reads >= maxNodes) {
+            reason = Reason.MAX_NODES;
+            return false;
+        }
+        if (deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0) {
+            reason = Reason.DEADLINE;
+            return false;
+        }
+        reads++;
+        return true;
+    }
+
+    /**
+     * Checks the deadline without counting a read, for callers that are waiting rather than
+     * reading.
+     *
+     * @return true once either limit has been reached.
+     */
+    public boolean checkDeadline() {
+        if (reason == null && deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0) {
+            reason = Reason.DEADLINE;
+        }
+        return reason != null;
+    }
+
+    /**
+     * The row limit to set on the Query when the caller would read up to rows rows (0 for all).
+     * Oak then stops producing rows, and holds at most that many in memory for ORDER BY, once
+     * the node budget is spent. One row over the budget is left so tryRead still reports it.
+     *
+     * @return the limit to set, or 0 for none.
+     */
+    public long queryLimit(long rows) {
+        if (maxNodes == 0) {
+            return rows;
+        }
+        long remaining = Math.max(0, maxNodes - reads) + 1;
+        return rows == 0 ? remaining : Math.min(rows, remaining);
+    }
+
+    /**
+     * Stops reading for a limit the budget does not track itself, such as the memory a batch
+     * statement may hold. The first reason given is kept.
+     */
+    public void exhaust(Reason reason) {
+        if (this.reason == null) {
+            this.reason = reason;
+        }
+    }
+
+    public boolean isExhausted() {
+        return reason != null;
+    }
+
+    /**
+     * Why reading stopped, or null while the budget lasts.
+     */
+    public Reason getReason() {
+        return reason;
+    }
+
+    public long getReads() {
+        return reads;
+    }
+
+    /**
+     * Writes "truncated" and "truncatedReason" into the current JSON object when the budget ran
+     * out; nothing otherwise.
+     */
+    public void write(JsonGenerator json) throws IOException {
+        if (reason != null) {
+            json.writeBooleanField("truncated", true);
+            json.writeStringField("truncatedReason", reason.label());
+        }
+    }
+}
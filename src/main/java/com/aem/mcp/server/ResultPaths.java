@@ -0,0 +1,95 @@
+package com.aem.mcp.server;
+
+import com.aem.mcp.common.Sql2Statement;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The paths of a query result's nodes, adding up the time spent reading them.
+ *
+ * Oak refuses QueryResult.getNodes() for a query with several selectors, so a join is read
+ * through getRows() and each row's path for the selector its result stands for (see
+ * {@link Sql2Statement#resultSelector}). Rows an outer join has no node for are skipped.
+ */
+public final class ResultPaths implements Iterator<String> {
+
+    private final NodeIterator nodes;
+    private final RowIterator rows;
+    private final String selector;
+    private String next;
+    private long nanos;
+
+    private ResultPaths(NodeIterator nodes, RowIterator rows, String selector) {
+        this.nodes = nodes;
+        this.rows = rows;
+        this.selector = selector;
+    }
+
+    /**
+     * @param statement the statement the result was executed for.
+     */
+    public static ResultPaths of(QueryResult result, String statement) throws RepositoryException {
+        String selector = selector(statement);
+        return selector == null ? new ResultPaths(result.getNodes(), null, null)
+                : new ResultPaths(null, result.getRows(), selector);
+    }
+
+    /**
+     * The selector to read a join's paths from, or null when QueryResult.getNodes() returns
+     * the statement's nodes.
+     */
+    static String selector(String statement) {
+        Sql2Statement parsed = QueryResultCache.parse(statement);
+        return parsed != null ? parsed.resultSelector() : null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        long start = System.nanoTime();
+        try {
+            if (rows == null) {
+                return nodes.hasNext();
+            }
+            while (next == null && rows.hasNext()) {
+                next = rows.nextRow().getPath(selector);
+            }
+            return next != null;
+        } catch (RepositoryException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        long start = System.nanoTime();
+        try {
+            if (rows == null) {
+                return nodes.nextNode().getPath();
+            }
+            String path = next;
+            next = null;
+            return path;
+        } catch (RepositoryException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Time spent in the repository reading the paths so far.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+}
@@ -0,0 +1,154 @@
+package com.aem.mcp.server;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes selected columns of a query result as compact row tuples, read from
+ * QueryResult.getRows() instead of loading every node.
+ *
+ * Requested columns may be written the way they appear in the statement
+ * (s.[jcr:content/jcr:title]) or bare (jcr:content/jcr:title, cq:lastModifiedBy). Columns the
+ * statement selects are read from the row; anything else falls back to a property lookup on
+ * the row's node.
+ */
+public class RowProjection {
+
+    private final List<String> requested;
+    private final List<String> resultColumns = new ArrayList<>();
+
+    public RowProjection(List<String> requested, String[] columnNames) {
+        this.requested = requested;
+        Map<String, String> available = new HashMap<>();
+        for (String column : columnNames) {
+            available.putIfAbsent(canonical(column), column);
+        }
+        for (String column : requested) {
+            resultColumns.add(available.get(canonical(column)));
+        }
+    }
+
+    /**
+     * Strips the selector prefix and brackets: s.[jcr:content/jcr:title] becomes
+     * jcr:content/jcr:title.
+     */
+    static String canonical(String column) {
+        String name = column.trim();
+        int bracket = name.indexOf('[');
+        if (bracket >= 0 && name.endsWith("]")) {
+            return name.substring(bracket + 1, name.length() - 1);
+        }
+        int dot = name.indexOf('.');
+        int colon = name.indexOf(':');
+        int slash = name.indexOf('/');
+        if (dot > 0 && (colon < 0 || dot < colon) && (slash < 0 || dot < slash)) {
+            return name.substring(dot + 1);
+        }
+        return name;
+    }
+
+    /**
+     * Writes "columns" and "rows" fields into the current JSON object: up to limit rows (all when
+     * limit is 0) while the budget lasts, each starting with the row's path.
+     *
+     * @return the number of rows written.
+     */
+    public long write(JsonGenerator json, RowIterator rows, long limit, ReadBudget budget, int flushInterval)
+            throws IOException, RepositoryException {
+        json.writeArrayFieldStart("columns");
+        json.writeString("jcr:path");
+        for (String column : requested) {
+            json.writeString(column);
+        }
+        json.writeEndArray();
+
+        json.writeArrayFieldStart("rows");
+        long count = 0;
+        while ((limit == 0 || count < limit) && rows.hasNext() && budget.tryRead()) {
+            Row row = rows.nextRow();
+            json.writeStartArray();
+            json.writeString(path(row));
+            Node node = null;
+            for (int i = 0; i < requested.size(); i++) {
+                String column = resultColumns.get(i);
+                if (column != null) {
+                    writeValue(json, row.getValue(column));
+                } else {
+                    if (node == null) {
+                        node = row.getNode();
+                    }
+                    writeProperty(json, node, canonical(requested.get(i)));
+                }
+            }
+            json.writeEndArray();
+            if (++count % flushInterval == 0) {
+                json.flush();
+            }
+        }
+        json.writeEndArray();
+        return count;
+    }
+
+    private static String path(Row row) throws RepositoryException {
+        try {
+            return row.getPath();
+        } catch (RepositoryException e) {
+            // Joins have no single path; the first selector's node stands in for the row.
+            return row.getNode() != null ? row.getNode().getPath() : null;
+        }
+    }
+
+    private static void writeProperty(JsonGenerator json, Node node, String relPath)
+            throws IOException, RepositoryException {
+        if (node == null || !node.hasProperty(relPath)) {
+            json.writeNull();
+            return;
+        }
+        Property property = node.getProperty(relPath);
+        if (property.isMultiple()) {
+            json.writeStartArray();
+            for (Value value : property.getValues()) {
+                writeValue(json, value);
+            }
+            json.writeEndArray();
+        } else {
+            writeValue(json, property.getValue());
+        }
+    }
+
+    private static void writeValue(JsonGenerator json, Value value) throws IOException, RepositoryException {
+        if (value == null) {
+            json.writeNull();
+            return;
+        }
+        switch (value.getType()) {
+            case PropertyType.LONG:
+                json.writeNumber(value.getLong());
+                break;
+            case PropertyType.DOUBLE:
+                json.writeNumber(value.getDouble());
+                break;
+            case PropertyType.BOOLEAN:
+                json.writeBoolean(value.getBoolean());
+                break;
+            case PropertyType.BINARY:
+                json.writeNull();
+                break;
+            default:
+                json.writeString(value.getString());
+                break;
+        }
+    }
+}
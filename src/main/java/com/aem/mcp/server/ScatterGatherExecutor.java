@@ -0,0 +1,259 @@
+package com.aem.mcp.server;
+
+import com.aem.mcp.common.Sql2Statement;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a descendant query as several smaller ones in parallel for McpQueryServlet.
+ *
+ * A statement constrained with ISDESCENDANTNODE(s, [/content/site]) is split into one query
+ * per child subtree of /content/site, plus one ISCHILDNODE query for the children themselves.
+ * The partitions are disjoint, so together they return exactly the original result without
+ * duplicates. Each partition runs on the worker pool with its own pooled session and feeds a
+ * small bounded queue; the request thread streams the partitions out one after another in the
+ * order of the children, so output starts as soon as the first partition has rows while the
+ * others are already running.
+ *
+ * Only the partition being streamed waits for room in its queue. Any other partition that
+ * fills its queue stops, returning its session and worker, and is run again from where it
+ * stopped (with an offset) once the request thread reaches it. Without ORDER BY Oak returns an
+ * unchanged result in the same order, so the second run continues the first. A worker
+ * therefore never holds a session while it waits on a queue nobody is draining.
+ */
+public class ScatterGatherExecutor {
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final long POLL_MS = 100;
+
+    private final SessionPool sessionPool;
+    private final ExecutorService workers;
+    private final int maxPartitions;
+
+    public ScatterGatherExecutor(SessionPool sessionPool, int threads, int maxPartitions) {
+        this.sessionPool = sessionPool;
+        this.maxPartitions = maxPartitions;
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "mcp-scatter-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.workers = pool;
+    }
+
+    /**
+     * A statement whose only path constraint is a top-level ISDESCENDANTNODE, which each
+     * partition replaces with its own.
+     */
+    public static final class Split {
+        private final Sql2Statement statement;
+        private final String root;
+
+        private Split(Sql2Statement statement, String root) {
+            this.statement = statement;
+            this.root = root;
+        }
+
+        public String getRoot() {
+            return root;
+        }
+
+        String children() {
+            return statement.withPathConstraint("ISCHILDNODE", root);
+        }
+
+        String subtree(String path) {
+            return statement.withPathConstraint("ISDESCENDANTNODE", path);
+        }
+    }
+
+    /**
+     * Returns the split for a statement that can be scattered, or null when it cannot (see
+     * {@link Sql2Statement#descendantRoot}): joins, unions, ORDER BY (the merge keeps partition
+     * order, not sort order), more than one path constraint, an ISDESCENDANTNODE that is
+     * negated or combined with OR, or a statement the parser does not accept.
+     */
+    public static Split split(String statement) {
+        Sql2Statement parsed = QueryResultCache.parse(statement);
+        String root = parsed != null ? parsed.descendantRoot() : null;
+        return root != null ? new Split(parsed, root) : null;
+    }
+
+    /**
+     * One partition's rows on their way from a worker to the request thread.
+     */
+    private static final class Partition {
+        final String statement;
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        volatile long produced;
+        volatile boolean paused;
+        volatile boolean done;
+        volatile Exception error;
+
+        Partition(String statement) {
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * Lists the children of the split's root, or returns null when there are more than the
+     * partition limit (the caller then runs the statement as usual).
+     */
+    public List<String> partitions(Split split) throws RepositoryException {
+        List<String> statements = new ArrayList<>();
+        try (SessionPool.Lease lease = sessionPool.borrow()) {
+            Session session = lease.getSession();
+            statements.add(split.children());
+            if (!session.nodeExists(split.getRoot())) {
+                return statements;
+            }
+            NodeIterator children = session.getNode(split.getRoot()).getNodes();
+            while (children.hasNext()) {
+                Node child = children.nextNode();
+                if (statements.size() >= maxPartitions) {
+                    return null;
+                }
+                statements.add(split.subtree(child.getPath()));
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Runs the partition statements in parallel and writes their paths, in partition order, to
+     * the output, and to the compact builder when one is given. Stops when the budget runs out.
+     *
+     * @return the number of paths written.
+     */
+    public long execute(List<String> statements, ReadBudget budget, PathOutput output, int flushInterval,
+                        CompactPathList.Builder compact) throws IOException, RepositoryException {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        // No partition can contribute more rows than the whole request may read.
+        long rowLimit = budget.queryLimit(0);
+        List<Partition> partitions = new ArrayList<>(statements.size());
+        try {
+            for (String statement : statements) {
+                Partition partition = new Partition(statement);
+                partitions.add(partition);
+                workers.execute(() -> run(partition, rowLimit, cancelled, false));
+            }
+
+            long count = 0;
+            for (Partition partition : partitions) {
+                while (true) {
+                    if (partition.paused) {
+                        // This partition is now the one being streamed; its run may wait for room.
+                        partition.paused = false;
+                        workers.execute(() -> run(partition, rowLimit, cancelled, true));
+                    }
+                    String path = partition.queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                    if (path == null) {
+                        if (partition.done && partition.queue.isEmpty()) {
+                            break;
+                        }
+                        if (budget.checkDeadline()) {
+                            return count;
+                        }
+                        continue;
+                    }
+                    if (!budget.tryRead()) {
+                        return count;
+                    }
+                    output.path(path);
+                    if (++count % flushInterval == 0) {
+                        output.flush();
+                    }
+                    if (compact != null) {
+                        compact.add(path);
+                    }
+                }
+                if (partition.error != null) {
+                    throw new RepositoryException("Partition failed: " + partition.error.getMessage(), partition.error);
+                }
+            }
+            return count;
+        } catch (RejectedExecutionException e) {
+            throw new RepositoryException("Scatter worker pool is shut down.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while merging partitions.", e);
+        } finally {
+            cancelled.set(true);
+        }
+    }
+
+    /**
+     * Runs the partition from the rows it has produced so far, up to rowLimit rows in all (0
+     * for no limit). With wait false the run stops and marks the partition paused as soon as
+     * its queue is full, releasing the session; with wait true (the partition being streamed)
+     * it waits for room instead.
+     */
+    private void run(Partition partition, long rowLimit, AtomicBoolean cancelled, boolean wait) {
+        boolean paused = false;
+        try (SessionPool.Lease lease = sessionPool.borrow()) {
+            if (cancelled.get() || (rowLimit > 0 && partition.produced >= rowLimit)) {
+                return;
+            }
+            Query query = lease.getSession().getWorkspace().getQueryManager()
+                    .createQuery(partition.statement, Query.JCR_SQL2);
+            if (rowLimit > 0) {
+                query.setLimit(rowLimit - partition.produced);
+            }
+            if (partition.produced > 0) {
+                query.setOffset(partition.produced);
+            }
+            NodeIterator nodes = query.execute().getNodes();
+            while (!cancelled.get() && nodes.hasNext()) {
+                String path = nodes.nextNode().getPath();
+                if (!wait) {
+                    if (!partition.queue.offer(path)) {
+                        paused = true;
+                        return;
+                    }
+                } else {
+                    while (!partition.queue.offer(path, POLL_MS, TimeUnit.MILLISECONDS)) {
+                        if (cancelled.get()) {
+                            return;
+                        }
+                    }
+                }
+                partition.produced++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            partition.error = e;
+        } catch (Exception e) {
+            partition.error = e;
+        } finally {
+            // Set after the lease is closed, so a resumed run does not need a second session.
+            if (paused) {
+                partition.paused = true;
+            } else {
+                partition.done = true;
+            }
+        }
+    }
+
+    public void close() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,146 @@
+package com.aem.mcp.server;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.slf4j.MDC;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Phase timings of one servlet request, reported as a Server-Timing header and optionally in
+ * the JSON body.
+ *
+ * The header has to be set before the response is committed, which for streamed results is
+ * before iterating. {@link #apply} can therefore be called more than once: early with the
+ * phases done so far, and again at the end, which replaces the header only if nothing has been
+ * sent yet. Streamed responses also carry the complete timings in their trailing "timing"
+ * object.
+ *
+ * The trace id of the caller's traceparent header is put in the logging MDC as "traceId" until
+ * {@link #close}, so AEM log lines written for the request can be matched to the client's.
+ */
+public final class ServerTiming implements AutoCloseable {
+
+    public static final String HEADER = "Server-Timing";
+    public static final String TRACE_HEADER = "traceparent";
+    public static final String MDC_KEY = "traceId";
+
+    private static final Pattern TRACEPARENT = Pattern.compile("^[0-9a-f]{2}-([0-9a-f]{32})-[0-9a-f]{16}-[0-9a-f]{2}$");
+
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private final String traceId;
+    private long mark = System.nanoTime();
+
+    private ServerTiming(String traceId) {
+        this.traceId = traceId;
+        if (traceId != null) {
+            MDC.put(MDC_KEY, traceId);
+        }
+    }
+
+    public static ServerTiming start(HttpServletRequest request) {
+        String traceparent = request.getHeader(TRACE_HEADER);
+        if (traceparent != null) {
+            Matcher matcher = TRACEPARENT.matcher(traceparent.trim().toLowerCase(Locale.ROOT));
+            if (matcher.matches()) {
+                return new ServerTiming(matcher.group(1));
+            }
+        }
+        return new ServerTiming(null);
+    }
+
+    /**
+     * The caller's trace id, or null when it sent none.
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * traceparent value for an outbound call: the caller's trace id with a new span id, or null
+     * when the caller sent none.
+     */
+    public String traceparent() {
+        if (traceId == null) {
+            return null;
+        }
+        return "00-" + traceId + "-" + String.format("%016x", ThreadLocalRandom.current().nextLong() | 1) + "-01";
+    }
+
+    /**
+     * Adds the time since the previous lap (or the start) to the phase.
+     */
+    public void lap(String phase) {
+        long now = System.nanoTime();
+        add(phase, now - mark);
+        mark = now;
+    }
+
+    /**
+     * Splits the time since the previous lap: the separately measured nanos go to the phase,
+     * the rest to the other phase. For loops that interleave two phases, e.g. reading nodes
+     * and writing them out.
+     */
+    public void lap(String phase, long nanos, String rest) {
+        long now = System.nanoTime();
+        add(phase, nanos);
+        add(rest, Math.max(0, now - mark - nanos));
+        mark = now;
+    }
+
+    /**
+     * Adds time measured separately; repeated phases add up. Does not move the lap mark.
+     */
+    public void add(String phase, long nanos) {
+        phases.merge(phase, nanos, Long::sum);
+    }
+
+    /**
+     * Sets the Server-Timing header to the phases so far, unless the response is committed.
+     */
+    public void apply(HttpServletResponse response) {
+        if (!response.isCommitted() && !phases.isEmpty()) {
+            response.setHeader(HEADER, header());
+        }
+    }
+
+    String header() {
+        StringBuilder header = new StringBuilder();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            if (header.length() > 0) {
+                header.append(", ");
+            }
+            header.append(phase.getKey()).append(";dur=").append(millis(phase.getValue()));
+        }
+        return header.toString();
+    }
+
+    /**
+     * Writes "timing": {phase: ms, ...}.
+     */
+    public void write(JsonGenerator json) throws IOException {
+        json.writeObjectFieldStart("timing");
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            json.writeNumberField(phase.getKey(), millis(phase.getValue()));
+        }
+        json.writeEndObject();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+
+    @Override
+    public void close() {
+        if (traceId != null) {
+            MDC.remove(MDC_KEY);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.aem.mcp.server;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of read-only JCR sessions for McpQueryServlet.
+ *
+ * Logging in per request costs an authentication round and, without a logout, leaks the
+ * session. Sessions here are created through the given factory (a service-user login), reused
+ * across requests and refreshed on every borrow so each query sees the latest repository
+ * state. A session that is no longer live is discarded and replaced.
+ *
+ * Callers never save, so the pooled sessions stay read-only.
+ */
+public class SessionPool {
+
+    /**
+     * Creates a new session when the pool has none idle.
+     */
+    @FunctionalInterface
+    public interface SessionFactory {
+        Session create() throws RepositoryException;
+    }
+
+    /**
+     * Thrown when no session becomes free within the borrow timeout.
+     */
+    public static class PoolExhaustedException extends RepositoryException {
+        private static final long serialVersionUID = 1L;
+
+        public PoolExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    private final SessionFactory factory;
+    private final int maxSize;
+    private final long borrowTimeoutMs;
+    private final Semaphore permits;
+    private final Deque<Session> idle = new ArrayDeque<>();
+    private volatile boolean closed;
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public SessionPool(SessionFactory factory, int maxSize, long borrowTimeoutMs) {
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * A borrowed session. Closing the lease returns the session to the pool.
+     */
+    public final class Lease implements AutoCloseable {
+        private Session session;
+
+        private Lease(Session session) {
+            this.session = session;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        @Override
+        public void close() {
+            if (session != null) {
+                release(session);
+                session = null;
+            }
+        }
+    }
+
+    public Lease borrow() throws RepositoryException {
+        if (closed) {
+            throw new RepositoryException("Session pool is closed.");
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while waiting for a session.", e);
+        }
+        long waited = System.nanoTime() - start;
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        if (!acquired) {
+            timeouts.incrementAndGet();
+            throw new PoolExhaustedException("No repository session available within " + borrowTimeoutMs + " ms.");
+        }
+        borrows.incrementAndGet();
+
+        try {
+            return new Lease(healthySession());
+        } catch (RepositoryException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private Session healthySession() throws RepositoryException {
+        Session session;
+        while ((session = pollIdle()) != null) {
+            try {
+                if (session.isLive()) {
+                    session.refresh(false);
+                    return session;
+                }
+            } catch (RepositoryException | RuntimeException e) {
+                // Fall through and replace it.
+            }
+            discard(session);
+        }
+        session = factory.create();
+        created.incrementAndGet();
+        return session;
+    }
+
+    private synchronized Session pollIdle() {
+        return idle.pollFirst();
+    }
+
+    private void release(Session session) {
+        try {
+            boolean pooled = false;
+            if (!closed && session.isLive()) {
+                synchronized (this) {
+                    if (!closed) {
+                        idle.addFirst(session);
+                        pooled = true;
+                    }
+                }
+            }
+            if (!pooled) {
+                discard(session);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(Session session) {
+        discarded.incrementAndGet();
+        try {
+            session.logout();
+        } catch (RuntimeException e) {
+            // Already dead.
+        }
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            for (Session session : idle) {
+                session.logout();
+            }
+            idle.clear();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        int inUse = maxSize - permits.availablePermits();
+        long attempts = borrows.get() + timeouts.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxSize", maxSize);
+        stats.put("inUse", inUse);
+        synchronized (this) {
+            stats.put("idle", idle.size());
+        }
+        stats.put("utilization", (double) inUse / maxSize);
+        stats.put("waiting", permits.getQueueLength());
+        stats.put("borrows", borrows.get());
+        stats.put("created", created.get());
+        stats.put("discarded", discarded.get());
+        stats.put("timeouts", timeouts.get());
+        stats.put("avgWaitMs", attempts == 0 ? 0.0 : totalWaitNanos.get() / 1e6 / attempts);
+        stats.put("maxWaitMs", maxWaitNanos.get() / 1e6);
+        return stats;
+    }
+}
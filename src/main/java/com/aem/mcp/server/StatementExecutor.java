@@ -0,0 +1,157 @@
+package com.aem.mcp.server;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import java.io.IOException;
+
+/**
+ * Runs one JCR-SQL2 statement the way McpQueryServlet and BatchQueryExecutor both need it:
+ * result cache lookup and ticket, a pooled session, the traversal guard, row limits from the
+ * page and the read budget, and the statement's shape statistics. What happens to the rows is
+ * up to the caller's {@link Reader}, which runs while the session is still held.
+ */
+public class StatementExecutor {
+
+    private final SessionPool sessionPool;
+    private final TraversalGuard traversalGuard;
+    private final QueryResultCache resultCache;
+    private final QueryShapeStats shapeStats;
+
+    /**
+     * @param resultCache null when caching is disabled.
+     */
+    public StatementExecutor(SessionPool sessionPool, TraversalGuard traversalGuard, QueryResultCache resultCache,
+                             QueryShapeStats shapeStats) {
+        this.sessionPool = sessionPool;
+        this.traversalGuard = traversalGuard;
+        this.resultCache = resultCache;
+        this.shapeStats = shapeStats;
+    }
+
+    /**
+     * Reads an executed statement's result.
+     */
+    @FunctionalInterface
+    public interface Reader {
+        /**
+         * @return the number of rows read, for the shape statistics.
+         */
+        long read(Execution execution) throws IOException, RepositoryException;
+    }
+
+    /**
+     * An executed statement, handed to the {@link Reader} while its session is held.
+     */
+    public static final class Execution {
+        private final QueryManager queryManager;
+        private final TraversalGuard.Decision decision;
+        private final QueryResult result;
+        private final QueryResultCache.Ticket ticket;
+        private final long maxEntryBytes;
+
+        private Execution(QueryManager queryManager, TraversalGuard.Decision decision, QueryResult result,
+                          QueryResultCache.Ticket ticket, long maxEntryBytes) {
+            this.queryManager = queryManager;
+            this.decision = decision;
+            this.result = result;
+            this.ticket = ticket;
+            this.maxEntryBytes = maxEntryBytes;
+        }
+
+        public QueryManager getQueryManager() {
+            return queryManager;
+        }
+
+        public TraversalGuard.Decision getDecision() {
+            return decision;
+        }
+
+        public QueryResult getResult() {
+            return result;
+        }
+
+        /**
+         * The result's paths, which for a join are read from its rows (see {@link ResultPaths}).
+         */
+        public ResultPaths paths() throws RepositoryException {
+            return ResultPaths.of(result, decision.getStatement());
+        }
+
+        /**
+         * A builder sized for the result cache, or null when this result is not to be cached.
+         */
+        public CompactPathList.Builder cacheBuilder() {
+            return ticket != null ? CompactPathList.builder(maxEntryBytes) : null;
+        }
+
+        /**
+         * Caches the paths, unless something below the statement's scopes changed since the
+         * ticket was opened. Does nothing when the result is not to be cached.
+         */
+        public void commit(CompactPathList paths) {
+            if (ticket != null) {
+                ticket.commit(paths);
+            }
+        }
+    }
+
+    /**
+     * Cache key of one page of a normalized statement (see {@link QueryResultCache#normalize}).
+     */
+    public static String cacheKey(String statement, long offset, long limit) {
+        return limit > 0 || offset > 0 ? statement + " /* page " + offset + ":" + limit + " */" : statement;
+    }
+
+    /**
+     * The cached paths for the key, or null.
+     */
+    public CompactPathList cached(String cacheKey) {
+        return resultCache != null ? resultCache.get(cacheKey) : null;
+    }
+
+    /**
+     * Runs the statement for up to limit rows from offset (all when limit is 0), plus one row
+     * that tells the reader whether there is a next page. The query's row limit is also capped
+     * by the budget's node limit.
+     *
+     * @param cacheKey the key the reader's {@link Execution#commit} caches under, or null when
+     *                 the result is not to be cached.
+     * @param timing   gets the login and query phases, or null.
+     * @throws TraversalGuard.TraversalRejectedException when the traversal guard rejects it.
+     * @throws SessionPool.PoolExhaustedException        when no session is free in time.
+     */
+    public void execute(String queryString, String cacheKey, long offset, long limit, ReadBudget budget,
+                        ServerTiming timing, Reader reader) throws IOException, RepositoryException {
+        long start = System.nanoTime();
+        QueryResultCache cache = cacheKey != null ? resultCache : null;
+        // The ticket is opened before borrowing refreshes the session, so a change committed
+        // after the snapshot the query reads still invalidates it.
+        try (QueryResultCache.Ticket ticket = cache != null ? cache.open(cacheKey, queryString) : null;
+             SessionPool.Lease lease = sessionPool.borrow()) {
+            lap(timing, "login");
+            QueryManager qm = lease.getSession().getWorkspace().getQueryManager();
+            TraversalGuard.Decision decision = traversalGuard.check(qm, queryString);
+            Query query = qm.createQuery(decision.getStatement(), Query.JCR_SQL2);
+            long queryLimit = budget.queryLimit(limit > 0 ? limit + 1 : 0);
+            if (queryLimit > 0) {
+                query.setLimit(queryLimit);
+            }
+            if (offset > 0) {
+                query.setOffset(offset);
+            }
+            QueryResult result = query.execute();
+            lap(timing, "query");
+            long rows = reader.read(new Execution(qm, decision, result, ticket,
+                    cache != null ? cache.maxEntryBytes() : 0));
+            shapeStats.record(decision.getStatement(), System.nanoTime() - start, rows, decision.getPlan());
+        }
+    }
+
+    private static void lap(ServerTiming timing, String phase) {
+        if (timing != null) {
+            timing.lap(phase);
+        }
+    }
+}
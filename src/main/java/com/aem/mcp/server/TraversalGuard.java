@@ -0,0 +1,182 @@
+package com.aem.mcp.server;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.query.QueryManager;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks Oak's plan before McpQueryServlet executes a statement and stops queries that would
+ * traverse the repository.
+ *
+ * Policies:
+ * off - run everything without fetching a plan (the default).
+ * reject - fail traversing statements with {@link TraversalRejectedException}.
+ * rewrite - scope a traversing statement that has no path constraint to the configured root
+ * with ISDESCENDANTNODE and run that instead, provided the new plan no longer traverses;
+ * otherwise reject it.
+ */
+public class TraversalGuard {
+
+    public enum Policy {
+        OFF, REJECT, REWRITE;
+
+        public static Policy of(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException | NullPointerException e) {
+                return OFF;
+            }
+        }
+    }
+
+    /**
+     * Thrown for a statement the guard will not run. The error code is stable so callers (for
+     * example the client's translator) can recognise it and ask for a different statement.
+     */
+    public static class TraversalRejectedException extends RepositoryException {
+        private static final long serialVersionUID = 1L;
+
+        public static final String CODE = "TRAVERSAL_REJECTED";
+
+        private final transient QueryPlan plan;
+
+        public TraversalRejectedException(String message, QueryPlan plan) {
+            super(message);
+            this.plan = plan;
+        }
+
+        public QueryPlan getPlan() {
+            return plan;
+        }
+    }
+
+    /**
+     * The statement to execute and the plan it was checked against.
+     */
+    public static final class Decision {
+        private final String statement;
+        private final QueryPlan plan;
+        private final boolean rewritten;
+
+        Decision(String statement, QueryPlan plan, boolean rewritten) {
+            this.statement = statement;
+            this.plan = plan;
+            this.rewritten = rewritten;
+        }
+
+        public String getStatement() {
+            return statement;
+        }
+
+        /**
+         * Null when the policy is off and no plan was fetched.
+         */
+        public QueryPlan getPlan() {
+            return plan;
+        }
+
+        public boolean isRewritten() {
+            return rewritten;
+        }
+    }
+
+    private static final Pattern PATH_CONSTRAINT = Pattern.compile("(?i)\\bIS(?:DESCENDANT|CHILD|SAME)NODE\\s*\\(");
+    private static final Pattern JOIN = Pattern.compile("(?i)\\bJOIN\\b");
+    private static final Pattern FROM = Pattern.compile("(?i)\\bFROM\\s+(\\[[^\\]]*\\]|[^\\s\\[]+)(?:\\s+(?:AS\\s+)?(\\[[^\\]]*\\]|[A-Za-z_]\\w*))?");
+    private static final Pattern WHERE = Pattern.compile("(?i)\\bWHERE\\b");
+    private static final Pattern TAIL = Pattern.compile("(?i)\\bORDER\\s+BY\\b|\\bOPTION\\s*\\(");
+
+    private static final String HINT = " Constrain it with ISDESCENDANTNODE on a site path or filter on indexed"
+            + " properties such as jcr:primaryType, cq:template or sling:resourceType.";
+
+    private final Policy policy;
+    private final String rewriteRoot;
+
+    public TraversalGuard(Policy policy, String rewriteRoot) {
+        this.policy = policy;
+        this.rewriteRoot = rewriteRoot;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public Decision check(QueryManager qm, String statement) throws RepositoryException {
+        if (policy == Policy.OFF) {
+            return new Decision(statement, null, false);
+        }
+        QueryPlan plan = QueryPlan.explain(qm, statement);
+        if (!plan.isTraversal()) {
+            return new Decision(statement, plan, false);
+        }
+        if (policy == Policy.REWRITE) {
+            String scoped = scope(statement, rewriteRoot);
+            if (scoped != null) {
+                QueryPlan scopedPlan = QueryPlan.explain(qm, scoped);
+                if (!scopedPlan.isTraversal()) {
+                    return new Decision(scoped, scopedPlan, true);
+                }
+            }
+        }
+        throw new TraversalRejectedException("The query would traverse the repository instead of using an index."
+                + HINT, plan);
+    }
+
+    /**
+     * Adds ISDESCENDANTNODE(selector, [root]) to a single-selector statement that has no path
+     * constraint yet. Returns null for joins and already scoped statements.
+     */
+    static String scope(String statement, String root) {
+        String masked = maskLiterals(statement);
+        if (JOIN.matcher(masked).find() || PATH_CONSTRAINT.matcher(masked).find()) {
+            return null;
+        }
+        Matcher from = FROM.matcher(masked);
+        if (!from.find()) {
+            return null;
+        }
+        String alias = from.group(2);
+        if (alias != null && (alias.equalsIgnoreCase("WHERE") || alias.equalsIgnoreCase("ORDER")
+                || alias.equalsIgnoreCase("OPTION"))) {
+            alias = null;
+        }
+        int selectorEnd = alias != null ? from.end(2) : from.end(1);
+        String selector = statement.substring(alias != null ? from.start(2) : from.start(1), selectorEnd);
+        String constraint = "ISDESCENDANTNODE(" + selector + ", [" + root + "])";
+
+        Matcher tail = TAIL.matcher(masked);
+        int end = tail.find(selectorEnd) ? tail.start() : statement.length();
+        Matcher where = WHERE.matcher(masked);
+        if (where.find(selectorEnd) && where.start() < end) {
+            String condition = statement.substring(where.end(), end).trim();
+            return statement.substring(0, where.start()) + "WHERE " + constraint + " AND (" + condition + ")"
+                    + (end < statement.length() ? " " + statement.substring(end) : "");
+        }
+        String head = statement.substring(0, end).trim();
+        return head + " WHERE " + constraint + (end < statement.length() ? " " + statement.substring(end) : "");
+    }
+
+    /**
+     * Replaces the contents of string literals with spaces so keywords inside them are not
+     * matched. Bracketed names are kept since FROM needs them.
+     */
+    static String maskLiterals(String statement) {
+        char[] chars = statement.toCharArray();
+        char quote = 0;
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    chars[i] = ' ';
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,129 @@
+package com.aem.mcp.client;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hedges requests between two stub AEM instances. A fresh router sends its first request to the
+ * first configured instance.
+ */
+class AemInstanceRouterHedgingTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private HttpServer slow;
+    private HttpServer fast;
+    private AemHttpTransport transport;
+    private AemInstanceRouter router;
+
+    @BeforeEach
+    void startServers() throws IOException {
+        slow = stub("slow", true);
+        fast = stub("fast", false);
+        transport = new AemHttpTransport("http://127.0.0.1:1", "admin", "admin", 10, 10, 1000, 5000, 1000, false);
+    }
+
+    @AfterEach
+    void stopServers() throws IOException {
+        release.countDown();
+        if (router != null) {
+            router.close();
+        }
+        transport.close();
+        slow.stop(0);
+        fast.stop(0);
+    }
+
+    private HttpServer stub(String name, boolean hang) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/bin/mcp/query", exchange -> {
+            try {
+                if (hang) {
+                    // Like an instance stuck in a long GC pause.
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                byte[] body = name.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The router cancelled the losing request.
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static String url(HttpServer server) {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private AemInstanceRouter router(String instances, long hedgeDefaultMs) {
+        return new AemInstanceRouter(transport, instances, true, 20, hedgeDefaultMs, 3, 10000,
+                20, 50, 0.5, 5000, 0, 50);
+    }
+
+    private String call(Thread[] handlerThread) throws IOException {
+        return router.post("/bin/mcp/query", "text/plain; charset=UTF-8", new byte[0], response -> {
+            handlerThread[0] = Thread.currentThread();
+            return AemQueryService.readBody(response.getBody());
+        });
+    }
+
+    @Test
+    void slowPrimaryIsHedgedAndTheHandlerRunsOnTheCallingThread() throws IOException {
+        router = router(url(slow) + "," + url(fast), 100);
+        Thread[] handlerThread = new Thread[1];
+
+        long start = System.nanoTime();
+        String body = call(handlerThread);
+
+        assertEquals("fast", body);
+        assertSame(Thread.currentThread(), handlerThread[0]);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertEquals(1L, router.getStats().get("hedges"));
+        assertEquals(1L, router.getStats().get("hedgeWins"));
+    }
+
+    @Test
+    void primaryThatFailsFastIsHedgedWithoutWaitingForTheDelay() throws IOException {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        router = router("http://127.0.0.1:" + closedPort + "," + url(fast), 10000);
+
+        long start = System.nanoTime();
+        String body = call(new Thread[1]);
+
+        assertEquals("fast", body);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertEquals(1L, router.getStats().get("hedges"));
+    }
+
+    @Test
+    void fastPrimaryIsNotHedged() throws IOException {
+        router = router(url(fast) + "," + url(slow), 5000);
+
+        assertEquals("fast", call(new Thread[1]));
+        assertEquals(0L, router.getStats().get("hedges"));
+    }
+}
@@ -0,0 +1,117 @@
+package com.aem.mcp.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Streams completions from a stub OpenAI endpoint that sends each chunk as a server-sent event.
+ */
+class GptServiceStreamingTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private HttpServer server;
+    private volatile List<String> chunks;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/chat/completions", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (String chunk : chunks) {
+                    if (chunk == null) {
+                        // Holds the stream open until the test is done, like a model still generating.
+                        release.await(10, TimeUnit.SECONDS);
+                        continue;
+                    }
+                    String delta = MAPPER.writeValueAsString(
+                            Map.of("choices", List.of(Map.of("delta", Map.of("content", chunk)))));
+                    out.write(("data: " + delta + "\n\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+                out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        release.countDown();
+        server.stop(0);
+    }
+
+    private GptService service() {
+        String endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/v1/chat/completions";
+        return new GptService(new TranslationCache(100, 60, ""), new PromptContextBuilder(null, "/apps", 1500, 30),
+                endpoint, "key", true, 1000, 5000, 8, 64, 0.5, 30000, 0, 10);
+    }
+
+    @Test
+    void blankLineBeforeWhereDoesNotEndTheStatement() {
+        chunks = Arrays.asList("SELECT * FROM [cq:Page] AS s", "\n\n",
+                "WHERE ISDESCENDANTNODE(s, '/content/site')");
+
+        Translation translation = service().translate("pages under /content/site");
+
+        assertEquals("SELECT * FROM [cq:Page] AS s\n\nWHERE ISDESCENDANTNODE(s, '/content/site')",
+                translation.getQuery());
+    }
+
+    @Test
+    void explanationAfterBlankLineIsDropped() {
+        chunks = Arrays.asList("SELECT * FROM [cq:Page] AS s\nWHERE ISDESCENDANTNODE(s, '/content/site')",
+                "\n\nThis query returns ", "every page under the site.");
+
+        Translation translation = service().translate("pages under /content/site");
+
+        assertEquals("SELECT * FROM [cq:Page] AS s\nWHERE ISDESCENDANTNODE(s, '/content/site')",
+                translation.getQuery());
+    }
+
+    @Test
+    void semicolonEndsTheStatementWithoutWaitingForTheStream() {
+        chunks = Arrays.asList("```sql\nSELECT * FROM [cq:Page] AS s WHERE s.[jcr:content/jcr:title] = 'a;b'",
+                ";\n```", null, "\nMore text.");
+
+        long start = System.nanoTime();
+        Translation translation = service().translate("pages titled a;b");
+
+        assertEquals("SELECT * FROM [cq:Page] AS s WHERE s.[jcr:content/jcr:title] = 'a;b'",
+                translation.getQuery());
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+    }
+
+    @Test
+    void closingFenceEndsTheStatement() {
+        chunks = Arrays.asList("```\nSELECT * FROM [cq:Page] AS s\n\nWHERE s.[jcr:content/cq:template] = '/t'\n",
+                "```", null);
+
+        Translation translation = service().translate("pages with template /t");
+
+        assertEquals("SELECT * FROM [cq:Page] AS s\n\nWHERE s.[jcr:content/cq:template] = '/t'",
+                translation.getQuery());
+    }
+}
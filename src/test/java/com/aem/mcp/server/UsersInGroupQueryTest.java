@@ -0,0 +1,205 @@
+package com.aem.mcp.server;
+
+import com.aem.mcp.client.RuleBasedTranslator;
+import org.junit.jupiter.api.Test;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the translator's users-in-group join through the statement executor and path reading
+ * McpQueryServlet uses, against a repository that, like Oak, refuses getNodes() for a query
+ * with several selectors.
+ */
+class UsersInGroupQueryTest {
+
+    private static final String[][] MEMBERSHIPS = {
+            {"/home/groups/a/authors", "/home/users/a/alice"},
+            {"/home/groups/a/authors", "/home/groups/e/editors"},
+            {"/home/groups/a/authors", "/home/users/b/bob"},
+    };
+
+    private final List<String> executed = new ArrayList<>();
+    private final StatementExecutor executor = new StatementExecutor(
+            new SessionPool(this::session, 1, 1000), new TraversalGuard(TraversalGuard.Policy.OFF, "/content"),
+            null, new QueryShapeStats());
+
+    @Test
+    void membersAreReadFromTheJoinRows() throws IOException, RepositoryException {
+        String statement = new RuleBasedTranslator().translate("list users in group authors").getQuery();
+
+        List<String> paths = read(statement);
+
+        assertEquals(List.of("/home/users/a/alice", "/home/groups/e/editors", "/home/users/b/bob"), paths);
+        assertTrue(executed.get(0).contains("ISDESCENDANTNODE(m, '/home')"), executed.get(0));
+    }
+
+    @Test
+    void pagedJoinStopsAtTheLimitAndSeesTheNextRow() throws IOException, RepositoryException {
+        String statement = new RuleBasedTranslator().translate("members of group authors").getQuery();
+        List<String> paths = new ArrayList<>();
+        boolean[] more = new boolean[1];
+
+        executor.execute(statement, null, 0, 2, new ReadBudget(System.nanoTime(), 0, 0), null, execution -> {
+            ResultPaths result = execution.paths();
+            while (paths.size() < 2 && result.hasNext()) {
+                paths.add(result.next());
+            }
+            more[0] = result.hasNext();
+            return paths.size();
+        });
+
+        assertEquals(List.of("/home/users/a/alice", "/home/groups/e/editors"), paths);
+        assertTrue(more[0]);
+    }
+
+    @Test
+    void singleSelectorQueriesStillReadNodes() throws IOException, RepositoryException {
+        List<String> paths = read("SELECT * FROM [rep:User] AS s WHERE ISDESCENDANTNODE(s, '/home/users')");
+
+        assertEquals(List.of("/home/users/a/alice", "/home/users/b/bob"), paths);
+    }
+
+    private List<String> read(String statement) throws IOException, RepositoryException {
+        List<String> paths = new ArrayList<>();
+        executor.execute(statement, null, 0, 0, new ReadBudget(System.nanoTime(), 0, 0), null, execution -> {
+            execution.paths().forEachRemaining(paths::add);
+            return paths.size();
+        });
+        return paths;
+    }
+
+    // ---- a repository with one group ----
+
+    private Session session() {
+        QueryManager queryManager = proxy(QueryManager.class, (p, method, args) -> {
+            if (method.getName().equals("createQuery")) {
+                executed.add((String) args[0]);
+                return query((String) args[0]);
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+        Workspace workspace = proxy(Workspace.class, (p, method, args) -> {
+            if (method.getName().equals("getQueryManager")) {
+                return queryManager;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+        return proxy(Session.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "getWorkspace":
+                    return workspace;
+                case "isLive":
+                    return true;
+                case "refresh":
+                case "logout":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static Query query(String statement) {
+        boolean join = statement.contains(" JOIN ");
+        long[] limit = {0};
+        return proxy(Query.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "setLimit":
+                    limit[0] = (Long) args[0];
+                    return null;
+                case "setOffset":
+                    return null;
+                case "execute":
+                    return result(join, limit[0]);
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static QueryResult result(boolean join, long limit) {
+        List<String[]> rows = new ArrayList<>();
+        for (String[] membership : MEMBERSHIPS) {
+            if (join || membership[1].startsWith("/home/users/")) {
+                rows.add(membership);
+            }
+        }
+        List<String[]> limited = limit > 0 && rows.size() > limit ? rows.subList(0, (int) limit) : rows;
+        return proxy(QueryResult.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "getNodes":
+                    if (join) {
+                        throw new RepositoryException("Query contains more than one selector: [g, m]");
+                    }
+                    return nodes(limited.iterator());
+                case "getRows":
+                    return rows(limited.iterator());
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static NodeIterator nodes(Iterator<String[]> rows) {
+        return proxy(NodeIterator.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "hasNext":
+                    return rows.hasNext();
+                case "nextNode":
+                case "next":
+                    String path = rows.next()[1];
+                    return proxy(Node.class, (n, m, a) -> {
+                        if (m.getName().equals("getPath")) {
+                            return path;
+                        }
+                        throw new UnsupportedOperationException(m.getName());
+                    });
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static RowIterator rows(Iterator<String[]> rows) {
+        return proxy(RowIterator.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "hasNext":
+                    return rows.hasNext();
+                case "nextRow":
+                case "next":
+                    String[] membership = rows.next();
+                    return proxy(Row.class, (r, m, a) -> {
+                        if (m.getName().equals("getPath") && a != null && a.length == 1) {
+                            return a[0].equals("g") ? membership[0] : a[0].equals("m") ? membership[1] : null;
+                        }
+                        throw new UnsupportedOperationException(m.getName());
+                    });
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(UsersInGroupQueryTest.class.getClassLoader(),
+                new Class<?>[]{type}, handler));
+    }
+}